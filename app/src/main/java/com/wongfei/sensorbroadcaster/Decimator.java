@@ -0,0 +1,84 @@
+package com.wongfei.sensorbroadcaster;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// Reduces one sensor stream of one subscriber to target output rate, worker thread only
+class Decimator {
+
+    public final int mode;
+    public final int rate;
+    public final long periodNs;
+
+    // last emitted sample
+    public long timestamp;
+    public int count;
+    public final float[] values = new float[MAX_VALUES];
+
+    private long windowStart = Long.MIN_VALUE;
+    private int windowSamples = 0;
+    private final float[] acc0 = new float[MAX_VALUES]; // sum or min
+    private final float[] acc1 = new float[MAX_VALUES]; // max
+
+    public Decimator(int mode, int rate) {
+        this.mode = mode;
+        this.rate = Math.max(1, rate);
+        this.periodNs = 1000000000L / this.rate;
+    }
+
+    public final void reset() {
+        windowStart = Long.MIN_VALUE;
+        windowSamples = 0;
+    }
+
+    // returns true when window closed and output sample is ready
+    public final boolean process(long ts, float[] src, int n) {
+        if (windowStart == Long.MIN_VALUE) {
+            // first sample goes out right away
+            windowStart = ts - periodNs;
+        }
+
+        if (mode == DECIMATION_BOXCAR) {
+            for (int i = 0; i < n; ++i) {
+                acc0[i] = windowSamples == 0 ? src[i] : acc0[i] + src[i];
+            }
+        } else if (mode == DECIMATION_MIN_MAX) {
+            n = Math.min(n, MAX_VALUES / 2);
+            for (int i = 0; i < n; ++i) {
+                float x = src[i];
+                acc0[i] = windowSamples == 0 ? x : Math.min(acc0[i], x);
+                acc1[i] = windowSamples == 0 ? x : Math.max(acc1[i], x);
+            }
+        }
+        windowSamples++;
+
+        if (ts - windowStart < periodNs) {
+            return false;
+        }
+
+        timestamp = ts;
+        if (mode == DECIMATION_BOXCAR) {
+            float k = 1.0f / windowSamples;
+            for (int i = 0; i < n; ++i) {
+                values[i] = acc0[i] * k;
+            }
+            count = n;
+        } else if (mode == DECIMATION_MIN_MAX) {
+            for (int i = 0; i < n; ++i) {
+                values[i] = acc0[i];
+                values[n + i] = acc1[i];
+            }
+            count = n * 2;
+        } else {
+            System.arraycopy(src, 0, values, 0, n);
+            count = n;
+        }
+
+        // stay on period grid unless input stalled for longer than one period
+        windowStart += periodNs;
+        if (ts - windowStart >= periodNs) {
+            windowStart = ts;
+        }
+        windowSamples = 0;
+        return true;
+    }
+}
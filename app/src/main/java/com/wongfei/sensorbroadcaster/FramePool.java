@@ -0,0 +1,29 @@
+package com.wongfei.sensorbroadcaster;
+
+import com.wongfei.sensorbroadcaster.protocol.EventFrame;
+
+import java.util.ArrayList;
+
+// Keeps encode frames of departed subscribers for next ones, direct buffers are costly to allocate
+// and only freed by GC. Worker thread only.
+class FramePool {
+
+    private final ArrayList<EventFrame> free = new ArrayList<>();
+    private final int max;
+
+    public FramePool(int max) {
+        this.max = max;
+    }
+
+    public final EventFrame acquire() {
+        int n = free.size();
+        return n > 0 ? free.remove(n - 1) : new EventFrame();
+    }
+
+    public final void release(EventFrame frame) {
+        if (frame != null && free.size() < max) {
+            frame.body.clear();
+            free.add(frame);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.wongfei.sensorbroadcaster;
+
+import com.wongfei.sensorbroadcaster.protocol.OrientationFilter;
+import com.wongfei.sensorbroadcaster.protocol.SampleRing;
+
+// Feeds gyroscope, accelerometer and magnetometer samples drained from sample ring into orientation filter
+// and produces quaternion samples of virtual sensor, worker thread only
+class FusionStage {
+
+    public final static float DEFAULT_BETA = 0.1f;
+    public final static long MAX_STEP_NS = 100000000L; // longer gaps restart integration
+
+    public final int uid;
+    public final int gyroUid;
+    public final int accelUid;
+    public final int magUid; // -1 without magnetometer
+
+    public final SampleRing.Sample output = new SampleRing.Sample();
+
+    private final OrientationFilter filter;
+    private final float[] accel = new float[3];
+    private final float[] mag = new float[3];
+    private boolean haveAccel = false;
+    private boolean haveMag = false;
+    private long lastGyro = Long.MIN_VALUE;
+    private long nextEmit = Long.MIN_VALUE;
+    private long periodNs = 0;
+
+    public FusionStage(int uid, int gyroUid, int accelUid, int magUid, float beta) {
+        this.uid = uid;
+        this.gyroUid = gyroUid;
+        this.accelUid = accelUid;
+        this.magUid = magUid;
+        this.filter = new OrientationFilter(beta);
+        output.uid = uid;
+        output.count = 4;
+    }
+
+    public final boolean isInput(int sensorUid) {
+        return sensorUid == gyroUid || sensorUid == accelUid || (magUid >= 0 && sensorUid == magUid);
+    }
+
+    // output period, 0 emits on every gyro sample
+    public final void setPeriod(long periodNs) {
+        this.periodNs = periodNs;
+    }
+
+    public final void reset() {
+        filter.reset();
+        haveAccel = false;
+        haveMag = false;
+        lastGyro = Long.MIN_VALUE;
+        nextEmit = Long.MIN_VALUE;
+    }
+
+    // gyro sample advances filter, returns true when output holds new quaternion
+    public final boolean process(SampleRing.Sample s) {
+        if (s.count < 3) {
+            return false;
+        }
+        if (s.uid == accelUid) {
+            copy(s.values, accel);
+            haveAccel = true;
+            return false;
+        }
+        if (s.uid == magUid) {
+            copy(s.values, mag);
+            haveMag = true;
+            return false;
+        }
+        if (s.uid != gyroUid) {
+            return false;
+        }
+
+        long dtNs = s.timestamp - lastGyro;
+        lastGyro = s.timestamp;
+        if (!haveAccel || dtNs <= 0 || dtNs > MAX_STEP_NS) {
+            return false;
+        }
+
+        float dt = dtNs * 1e-9f;
+        float[] g = s.values;
+        if (haveMag) {
+            filter.updateMarg(g[0], g[1], g[2], accel[0], accel[1], accel[2], mag[0], mag[1], mag[2], dt);
+        } else {
+            filter.updateImu(g[0], g[1], g[2], accel[0], accel[1], accel[2], dt);
+        }
+
+        // half period slack keeps jittery gyro at requested rate from skipping every other output
+        if (nextEmit != Long.MIN_VALUE && s.timestamp < nextEmit - periodNs / 2) {
+            return false;
+        }
+        boolean late = nextEmit == Long.MIN_VALUE || s.timestamp - nextEmit > periodNs;
+        nextEmit = late ? s.timestamp + periodNs : nextEmit + periodNs;
+        output.timestamp = s.timestamp;
+        output.arrival = s.arrival;
+        filter.getQuaternion(output.values);
+        return true;
+    }
+
+    private final static void copy(float[] src, float[] dst) {
+        dst[0] = src[0];
+        dst[1] = src[1];
+        dst[2] = src[2];
+    }
+}
@@ -0,0 +1,119 @@
+package com.wongfei.sensorbroadcaster;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEventListener;
+import android.os.Handler;
+
+import com.wongfei.sensorbroadcaster.protocol.Packets;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// Sensors of SensorManager, continuous ones through listener, one shot ones through trigger listener
+class HardwareSensorSource implements SensorSource {
+
+    private final SensorManager sensorManager;
+    private final SensorEventListener listener;
+    private final Object triggerListener; // TriggerEventListener from API 18, null before
+    private final Handler handler; // null means main looper
+
+    public HardwareSensorSource(SensorManager sensorManager, SensorEventListener listener, Object triggerListener, Handler handler) {
+        this.sensorManager = sensorManager;
+        this.listener = listener;
+        this.triggerListener = triggerListener;
+        this.handler = handler;
+    }
+
+    @Override
+    public final boolean register(SensorContext context, int rate, int latency) {
+        Sensor sensor = context.sensor;
+        boolean success = false;
+
+        // LOL android is so fucked up
+        if (android.os.Build.VERSION.SDK_INT < 18) {
+            success = registerListener(sensor, rate, latency);
+        } else if (android.os.Build.VERSION.SDK_INT < 21) {
+            success = registerListener(sensor, rate, latency);
+            if (!success) {
+                success = sensorManager.requestTriggerSensor((TriggerEventListener) triggerListener, sensor);
+            }
+        } else {
+            if (sensor.getReportingMode() == Sensor.REPORTING_MODE_ONE_SHOT) {
+                success = sensorManager.requestTriggerSensor((TriggerEventListener) triggerListener, sensor);
+            } else {
+                success = registerListener(sensor, rate, latency);
+            }
+        }
+        return success;
+    }
+
+    private final boolean registerListener(Sensor sensor, int rate, int latency) {
+        // sensor hub queues samples in its FIFO up to max report latency and delivers them as one burst
+        if (latency > 0 && android.os.Build.VERSION.SDK_INT >= 19) {
+            return sensorManager.registerListener(listener, sensor, rate, latency, handler);
+        }
+        return sensorManager.registerListener(listener, sensor, rate, handler);
+    }
+
+    @Override
+    public final void unregister(SensorContext context) {
+        Sensor sensor = context.sensor;
+        sensorManager.unregisterListener(listener, sensor);
+
+        if (triggerListener != null && android.os.Build.VERSION.SDK_INT >= 18) {
+            sensorManager.cancelTriggerSensor((TriggerEventListener) triggerListener, sensor);
+        }
+    }
+
+    @Override
+    public final boolean flush(SensorContext context) {
+        // only batched registrations queue samples, flush of listener covers its every sensor
+        if (context.latency > 0 && android.os.Build.VERSION.SDK_INT >= 19) {
+            return sensorManager.flush(listener);
+        }
+        return false;
+    }
+
+    @Override
+    public final void unregisterAll() {
+        try {
+            sensorManager.unregisterListener(listener);
+        } catch (Exception ex) {
+            // IGNORE
+        }
+        if (triggerListener != null && android.os.Build.VERSION.SDK_INT >= 18) {
+            sensorManager.cancelTriggerSensor((TriggerEventListener) triggerListener, null);
+        }
+    }
+
+    @Override
+    public final void getDetails(SensorContext context, Packets.SensorDetails d) {
+        Sensor s = context.sensor;
+        d.vendor = s.getVendor();
+        d.version = s.getVersion();
+        d.resolution = s.getResolution();
+        d.maxRange = s.getMaximumRange();
+        d.power = s.getPower();
+        d.minDelay = s.getMinDelay();
+        d.fifoReserved = 0;
+        d.fifoMax = 0;
+        d.maxDelay = 0;
+        d.reportingMode = 0;
+        d.flags = 0;
+        if (android.os.Build.VERSION.SDK_INT >= 19) {
+            d.fifoReserved = s.getFifoReservedEventCount();
+            d.fifoMax = s.getFifoMaxEventCount();
+        }
+        if (android.os.Build.VERSION.SDK_INT >= 21) {
+            d.maxDelay = s.getMaxDelay();
+            d.reportingMode = s.getReportingMode();
+            d.flags = s.isWakeUpSensor() ? SENSOR_FLAG_WAKE_UP : 0;
+        }
+    }
+
+    @Override
+    public final void shutdown() {
+        unregisterAll();
+    }
+}
@@ -20,6 +20,11 @@ public class MainActivity extends AppCompatActivity {
     private final static String TAG = "SensorBroadcaster";
     private final static String DefaultPort = "9999";
     private final static String DefaultPassword = "";
+    private final static String DefaultMulticastGroup = "";
+    private final static boolean DefaultEventDriven = true;
+    private final static boolean DefaultLowPower = false;
+    private final static boolean DefaultRecord = false;
+    private final static boolean DefaultSensorThread = true;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -37,6 +42,21 @@ public class MainActivity extends AppCompatActivity {
         final TextView textPassword = findViewById(R.id.password);
         textPassword.setText(sharedPref.getString("password", DefaultPassword));
 
+        final TextView textMulticastGroup = findViewById(R.id.multicastGroup);
+        textMulticastGroup.setText(sharedPref.getString("multicastGroup", DefaultMulticastGroup));
+
+        final Switch swEventDriven = findViewById(R.id.eventDriven);
+        swEventDriven.setChecked(sharedPref.getBoolean("eventDriven", DefaultEventDriven));
+
+        final Switch swLowPower = findViewById(R.id.lowPower);
+        swLowPower.setChecked(sharedPref.getBoolean("lowPower", DefaultLowPower));
+
+        final Switch swRecord = findViewById(R.id.record);
+        swRecord.setChecked(sharedPref.getBoolean("record", DefaultRecord));
+
+        final Switch swSensorThread = findViewById(R.id.sensorThread);
+        swSensorThread.setChecked(sharedPref.getBoolean("sensorThread", DefaultSensorThread));
+
         // start/stop
 
         final Switch swStart = findViewById(R.id.start);
@@ -66,8 +86,17 @@ public class MainActivity extends AppCompatActivity {
                 SensorBroadcasterService service = SensorBroadcasterService.getInstance();
                 if (service != null) {
                     SocketAddress addr = service.getClientAddr();
-                    textClientAddr.setText(addr != null ? addr.toString() : "waiting connection");
-                    textNetStatus.setText("pk:" + service.getTotalPacketsSent() + " bytes:" + service.getTotalBytesSent());
+                    int clients = service.getSubscriberCount();
+                    textClientAddr.setText(addr != null ? addr.toString() + (clients > 1 ? " +" + (clients - 1) : "") : "waiting connection");
+                    textNetStatus.setText("pk:" + service.getTotalPacketsSent() + " bytes:" + service.getTotalBytesSent()
+                            + "\ndrop:" + service.getSampleOverflowCount() + " hw:" + service.getQueueHighWater() + " err:" + service.getSendErrorCount() + " full:" + service.getSendDropCount()
+                            + " rtx:" + service.getRetransmitCount() + "/" + service.getReliableDropCount() + " cc:" + service.getCongestionSteps()
+                            + "\nlat(us) p50:" + service.getLatencyUs(50) + " p99:" + service.getLatencyUs(99) + " p999:" + service.getLatencyUs(99.9) + " max:" + service.getMaxLatencyUs()
+                            + (service.isEventDriven() ? " [event]" : " [tick]")
+                            + "\ncb(us) p50:" + service.getCallbackLatencyUs(50) + " p99:" + service.getCallbackLatencyUs(99) + " max:" + service.getMaxCallbackLatencyUs()
+                            + (service.isSensorThread() ? " [thread:" + service.getThreadPriority() + "]" : " [main]")
+                            + "\nloop(us) p50:" + service.getLoopTimeUs(50) + " p99:" + service.getLoopTimeUs(99) + " max:" + service.getMaxLoopTimeUs()
+                            + "\nwake:" + service.getWorkerWakeups() + " burst:" + service.getSensorBursts() + (service.isLowPower() ? " [fifo]" : "") + (service.isRecording() ? " [rec]" : "") + (service.isMulticasting() ? " [mcast]" : ""));
                 } else {
                     textClientAddr.setText("offline");
                     textNetStatus.setText("-");
@@ -90,6 +119,21 @@ public class MainActivity extends AppCompatActivity {
         final TextView textPassword = findViewById(R.id.password);
         editor.putString("password", textPassword.getText().toString());
 
+        final TextView textMulticastGroup = findViewById(R.id.multicastGroup);
+        editor.putString("multicastGroup", textMulticastGroup.getText().toString());
+
+        final Switch swEventDriven = findViewById(R.id.eventDriven);
+        editor.putBoolean("eventDriven", swEventDriven.isChecked());
+
+        final Switch swLowPower = findViewById(R.id.lowPower);
+        editor.putBoolean("lowPower", swLowPower.isChecked());
+
+        final Switch swRecord = findViewById(R.id.record);
+        editor.putBoolean("record", swRecord.isChecked());
+
+        final Switch swSensorThread = findViewById(R.id.sensorThread);
+        editor.putBoolean("sensorThread", swSensorThread.isChecked());
+
         editor.commit();
 
         super.onStop();
@@ -101,6 +145,11 @@ public class MainActivity extends AppCompatActivity {
         Intent service = new Intent(MainActivity.this, SensorBroadcasterService.class);
         service.putExtra("port", ((EditText) findViewById(R.id.port)).getText().toString());
         service.putExtra("password", ((EditText) findViewById(R.id.password)).getText().toString());
+        service.putExtra("multicastGroup", ((EditText) findViewById(R.id.multicastGroup)).getText().toString().trim());
+        service.putExtra("eventDriven", ((Switch) findViewById(R.id.eventDriven)).isChecked());
+        service.putExtra("lowPower", ((Switch) findViewById(R.id.lowPower)).isChecked());
+        service.putExtra("record", ((Switch) findViewById(R.id.record)).isChecked());
+        service.putExtra("sensorThread", ((Switch) findViewById(R.id.sensorThread)).isChecked());
         startService(service);
     }
 
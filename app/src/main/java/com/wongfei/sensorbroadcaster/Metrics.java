@@ -0,0 +1,102 @@
+package com.wongfei.sensorbroadcaster;
+
+import com.wongfei.sensorbroadcaster.protocol.Histogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Service counters, readable from any thread (UI, stats request).
+// Worker owned counters have single writer and are bumped with lazySet, sensor side ones with atomic increments.
+// Send counters move to atomic adds while send stages run, several stages share them.
+class Metrics {
+
+    // worker
+    public final AtomicLong packetsSent = new AtomicLong(0);
+    public final AtomicLong bytesSent = new AtomicLong(0);
+    public final AtomicLong sendErrors = new AtomicLong(0);
+    public final AtomicLong sendDrops = new AtomicLong(0); // socket buffer full, datagram not queued
+    public final AtomicLong wakeups = new AtomicLong(0);
+    public final AtomicLong retransmits = new AtomicLong(0);
+    public final AtomicLong reliableDropped = new AtomicLong(0); // reliable events given up unacked
+    public final AtomicLong congestionSteps = new AtomicLong(0); // congestion control level raises
+    public final AtomicLong requestErrors = new AtomicLong(0); // malformed or failed requests, dropped
+    public final Histogram latency = new Histogram(); // sensor timestamp to send, ns
+    public final Histogram callbackLatency = new Histogram(); // sensor callback to send, ns
+    public final Histogram loopTime = new Histogram(); // worker iteration without sleep, ns
+
+    // control thread
+    public final AtomicLong requestDrops = new AtomicLong(0); // request queue to worker was full
+
+    // control thread and worker
+    public final AtomicLong requestsThrottled = new AtomicLong(0); // over per source rate, dropped unanswered
+
+    // sensor callbacks
+    public final AtomicLong bursts = new AtomicLong(0);
+
+    private volatile AtomicLongArray eventsIn = new AtomicLongArray(0);
+    private volatile AtomicLongArray eventsOut = new AtomicLongArray(0);
+    private volatile long startTime = 0;
+
+    // worker only, before any sensor is registered
+    public final void reset(int sensorCount, long now) {
+        packetsSent.set(0);
+        bytesSent.set(0);
+        sendErrors.set(0);
+        sendDrops.set(0);
+        wakeups.set(0);
+        retransmits.set(0);
+        reliableDropped.set(0);
+        congestionSteps.set(0);
+        requestErrors.set(0);
+        requestDrops.set(0);
+        requestsThrottled.set(0);
+        bursts.set(0);
+        latency.reset();
+        callbackLatency.reset();
+        loopTime.reset();
+        eventsIn = new AtomicLongArray(sensorCount);
+        eventsOut = new AtomicLongArray(sensorCount);
+        startTime = now;
+    }
+
+    public final static void inc(AtomicLong counter) {
+        counter.lazySet(counter.get() + 1);
+    }
+
+    public final static void add(AtomicLong counter, long n) {
+        counter.lazySet(counter.get() + n);
+    }
+
+    public final void countIn(int uid) {
+        AtomicLongArray a = eventsIn;
+        if (uid < a.length()) {
+            a.incrementAndGet(uid);
+        }
+    }
+
+    // worker
+    public final void countOut(int uid) {
+        AtomicLongArray a = eventsOut;
+        if (uid < a.length()) {
+            a.lazySet(uid, a.get(uid) + 1);
+        }
+    }
+
+    public final int getSensorCount() {
+        return eventsIn.length();
+    }
+
+    public final long getEventsIn(int uid) {
+        AtomicLongArray a = eventsIn;
+        return uid < a.length() ? a.get(uid) : 0;
+    }
+
+    public final long getEventsOut(int uid) {
+        AtomicLongArray a = eventsOut;
+        return uid < a.length() ? a.get(uid) : 0;
+    }
+
+    public final long getStartTime() {
+        return startTime;
+    }
+}
@@ -0,0 +1,37 @@
+package com.wongfei.sensorbroadcaster;
+
+import com.wongfei.sensorbroadcaster.protocol.Packets;
+import com.wongfei.sensorbroadcaster.protocol.RecordingReader;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// Recording time range being streamed back to one client, worker thread only
+class ReplaySession {
+
+    public final static int MTU = 1400;
+    public final static int BURST = 16; // packets per worker iteration at max speed
+
+    public final SocketAddress addr;
+    public final boolean realTime;
+    public final RecordingReader reader;
+
+    public final ByteBuffer batch = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    public int batchCount = 0;
+    public final Packets.SensorSample sample = new Packets.SensorSample();
+    public boolean pending = false; // sample read but not sent yet
+
+    public final long started; // elapsedRealtime ms
+    public long firstTimestamp = Long.MIN_VALUE;
+    public long deadline;
+
+    public ReplaySession(SocketAddress addr, RecordingReader reader, boolean realTime, long now) {
+        this.addr = addr;
+        this.reader = reader;
+        this.realTime = realTime;
+        this.started = now;
+        this.deadline = now;
+    }
+}
@@ -0,0 +1,117 @@
+package com.wongfei.sensorbroadcaster;
+
+import java.nio.ByteBuffer;
+
+// Bounded store of reliable events waiting for client ACK, one per subscriber, worker thread only.
+// Unacked packet is resent with doubling timeout, dropped after MAX_ATTEMPTS or when ring is full.
+class RetransmitRing {
+
+    public final static int CAPACITY = 16;
+    public final static int MAX_ATTEMPTS = 8;
+    public final static long INITIAL_TIMEOUT = 20; // ms
+    public final static long MAX_TIMEOUT = 1000;
+
+    // reliable event packet is small: id, seq, one record
+    private final static int PACKET_SIZE = 128;
+
+    private final ByteBuffer[] packets = new ByteBuffer[CAPACITY];
+    private final int[] seqs = new int[CAPACITY];
+    private final long[] deadlines = new long[CAPACITY];
+    private final int[] attempts = new int[CAPACITY];
+    private int count = 0;
+    private int nextSeq = 0;
+    private final Metrics metrics;
+
+    public RetransmitRing(Metrics metrics) {
+        this.metrics = metrics;
+        for (int i = 0; i < CAPACITY; ++i) {
+            packets[i] = ByteBuffer.allocateDirect(PACKET_SIZE);
+            deadlines[i] = Long.MAX_VALUE;
+        }
+    }
+
+    public final int nextSequence() {
+        int seq = nextSeq;
+        nextSeq = (nextSeq + 1) & 0xFFFF;
+        return seq;
+    }
+
+    // returns cleared buffer to encode packet into, caller flips it and sends it right away
+    public final ByteBuffer add(int seq, long now) {
+        int slot = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < CAPACITY; ++i) {
+            if (attempts[i] == 0) {
+                slot = i;
+                break;
+            }
+            if (deadlines[i] < oldest) {
+                oldest = deadlines[i];
+                slot = i;
+            }
+        }
+        if (attempts[slot] != 0) {
+            Metrics.inc(metrics.reliableDropped);
+        } else {
+            count++;
+        }
+        seqs[slot] = seq;
+        attempts[slot] = 1;
+        deadlines[slot] = now + INITIAL_TIMEOUT;
+        packets[slot].clear();
+        return packets[slot];
+    }
+
+    public final boolean ack(int seq) {
+        for (int i = 0; i < CAPACITY; ++i) {
+            if (attempts[i] != 0 && seqs[i] == seq) {
+                free(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // returns packet due for resend rewound for sending, null when nothing is due
+    public final ByteBuffer pollDue(long now) {
+        if (count == 0) {
+            return null;
+        }
+        for (int i = 0; i < CAPACITY; ++i) {
+            if (attempts[i] != 0 && deadlines[i] <= now) {
+                if (attempts[i] >= MAX_ATTEMPTS) {
+                    Metrics.inc(metrics.reliableDropped);
+                    free(i);
+                    continue;
+                }
+                attempts[i]++;
+                Metrics.inc(metrics.retransmits);
+                deadlines[i] = now + Math.min(INITIAL_TIMEOUT << (attempts[i] - 1), MAX_TIMEOUT);
+                packets[i].rewind();
+                return packets[i];
+            }
+        }
+        return null;
+    }
+
+    public final long getDeadline() {
+        if (count == 0) {
+            return Long.MAX_VALUE;
+        }
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0; i < CAPACITY; ++i) {
+            deadline = Math.min(deadline, deadlines[i]);
+        }
+        return deadline;
+    }
+
+    public final int size() {
+        return count;
+    }
+
+    private final void free(int slot) {
+        attempts[slot] = 0;
+        deadlines[slot] = Long.MAX_VALUE;
+        count--;
+    }
+}
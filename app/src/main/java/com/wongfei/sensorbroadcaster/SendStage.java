@@ -0,0 +1,64 @@
+package com.wongfei.sensorbroadcaster;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.wongfei.sensorbroadcaster.protocol.EventFrame;
+import com.wongfei.sensorbroadcaster.protocol.PacketStage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// Sender stage: worker encodes and queues datagrams, this thread does the send syscalls on another core.
+// Each subscriber is pinned to one stage so its datagrams keep their order. Counters shared by stages use atomic adds.
+class SendStage extends PacketStage {
+
+    private final static String TAG = "SendStage";
+
+    public final static int QUEUE_SIZE = 128;
+
+    private final DatagramChannel channel; // unconnected subscribers
+    private final Metrics metrics;
+    private final int priority;
+
+    public SendStage(DatagramChannel channel, Metrics metrics, int priority) {
+        super(QUEUE_SIZE, EventFrame.HEADER_SIZE + MAX_PACKET_SIZE);
+        this.channel = channel;
+        this.metrics = metrics;
+        this.priority = priority;
+    }
+
+    @Override
+    protected final void onStart() {
+        Process.setThreadPriority(priority);
+    }
+
+    @Override
+    protected final void send(Object target, ByteBuffer packet) {
+        Subscriber subscriber = (Subscriber) target;
+        int n = packet.remaining();
+        try {
+            DatagramChannel chan = subscriber.channel;
+            int sent = chan != null ? chan.write(packet) : channel.send(packet, subscriber.addr);
+            if (sent > 0) {
+                metrics.bytesSent.addAndGet(n);
+                metrics.packetsSent.incrementAndGet();
+                Metrics.inc(subscriber.stageSends);
+            } else {
+                metrics.sendDrops.incrementAndGet();
+                Metrics.inc(subscriber.stageSends);
+                Metrics.inc(subscriber.stageDrops);
+            }
+        } catch (ClosedChannelException ex) {
+            // subscriber removed while its datagram was queued
+        } catch (IOException ex) {
+            Log.e(TAG, "send failed: " + subscriber.addr, ex);
+            metrics.sendErrors.incrementAndGet();
+            subscriber.failed = true;
+        }
+    }
+}
@@ -7,89 +7,176 @@ import android.content.Intent;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
+import android.hardware.SensorEventListener2;
 import android.hardware.SensorManager;
 import android.hardware.TriggerEvent;
 import android.hardware.TriggerEventListener;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.PowerManager;
+import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
+import com.wongfei.sensorbroadcaster.protocol.EventFrame;
+import com.wongfei.sensorbroadcaster.protocol.PacketRing;
+import com.wongfei.sensorbroadcaster.protocol.Packets;
+import com.wongfei.sensorbroadcaster.protocol.RecordingReader;
+import com.wongfei.sensorbroadcaster.protocol.RecordingWriter;
+import com.wongfei.sensorbroadcaster.protocol.RequestLimiter;
+import com.wongfei.sensorbroadcaster.protocol.SampleRing;
+import com.wongfei.sensorbroadcaster.protocol.StreamConnection;
+import com.wongfei.sensorbroadcaster.protocol.StreamServer;
+import com.wongfei.sensorbroadcaster.protocol.SyntheticSource;
+
+import java.io.File;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-public class SensorBroadcasterService extends Service implements Runnable, SensorEventListener {
-
-    private class SensorContext {
-        public Sensor sensor;
-        public int uid;
-        public int rate;
-        public boolean enabled;
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
 
-        public SensorContext(Sensor sensor, int uid) {
-            this.sensor = sensor;
-            this.uid = uid;
-            this.rate = SensorManager.SENSOR_DELAY_NORMAL;
-            this.enabled = false;
-        }
-    }
+public class SensorBroadcasterService extends Service implements Runnable, SensorEventListener {
 
     private final static String TAG = "SensorBroadcasterSrv";
     private final static String NOTIF_CHANNEL_ID = "SensorBroadcasterSrv";
     private final static int NOTIF_ID = 1;
 
-    private final static int PK_REQ_DETECT_DEVICE = 0xA0;
-    private final static int PK_RESP_DETECT_DEVICE = 0xA1;
-    private final static int PK_REQ_PING_DEVICE = 0xA2;
-    private final static int PK_RESP_PING_DEVICE = 0xA3;
-    private final static int PK_REQ_ENUMERATE_SENSORS = 0xB0;
-    private final static int PK_RESP_ENUMERATE_SENSORS = 0xB1;
-    private final static int PK_REQ_ENABLE_SENSOR = 0xB2;
-    private final static int PK_RESP_ENABLE_SENSOR = 0xB3;
-    private final static int PK_REQ_DISABLE_ALL_SENSORS = 0xB4;
-    private final static int PK_RESP_DISABLE_ALL_SENSORS = 0xB5;
-    private final static int PK_CB_SENSOR_EVENT = 0xC0;
+    private final static int REQUEST_BUDGET = 32; // datagrams read per iteration, rest waits in socket buffer
+    private final static int REQUEST_SOURCES = 64; // tracked senders per limiter
+    private final static long SENSOR_DRAIN_TIMEOUT = 1000; // ms, unregister goes ahead when flush doesn't complete
+
+    private final static int STREAM_FLAGS_SUPPORTED = STREAM_FLAG_BATCH | STREAM_FLAG_COMPACT | STREAM_FLAG_SEQUENCE | STREAM_FLAG_RELIABLE_TRIGGERS | STREAM_FLAG_CLOCK;
 
     private static SensorBroadcasterService instance = null;
 
     private int port = 0;
     private String password = "";
-
+    private byte[] passwordBytes = new byte[0];
+    private String multicastGroup = "";
+    private int multicastTtl = 1;
+    private int streamPort = 0; // TCP and WebSocket output, 0 off
+    private int streamHighWater = 256 * 1024; // queued bytes per connection above which it is closed
+    private SecureRandom tokenRandom = null;
+
+    private boolean eventDriven = true;
+    private boolean connectedSend = true;
+    private boolean congestionControl = true;
+    private boolean useSensorThread = true;
+    // both off until measured on multi-core devices, a single core gains nothing from extra threads
+    private boolean controlThread = false; // requests received and discovery answered off worker thread
+    private int senderThreads = 0; // 0 sends on worker thread
+    private int threadPriority = Process.THREAD_PRIORITY_URGENT_DISPLAY;
+    private long coalesceWindow = 0;
+    private boolean lowPower = false;
+    private long maxReportLatency = 200; // ms, handed to registerListener, hardware FIFO delivers on its own
+    private boolean record = false;
+    private int recordSegmentSize = 16; // MB
+    private int recordMaxSegments = 16;
+    private String recordSensors = ""; // comma separated sensor types
+    private int recordRate = SensorManager.SENSOR_DELAY_GAME;
+    private boolean useFusion = true;
+    private float fusionBeta = FusionStage.DEFAULT_BETA;
+    private int syntheticCount = 0; // replaces hardware sensors when set
+    private int syntheticRate = 1000; // Hz of SENSOR_DELAY_FASTEST
     private long workerTickRate = 1000 / 60;
     private long workerSleepTimeout = 500;
     private long broadcastHelloRate = 1000;
+    private int requestRate = 50; // per source and second, 0 unlimited
+    private int requestBurst = 20;
 
     private SensorManager sensorManager = null;
+    private HandlerThread sensorThread = null;
+    private Handler sensorHandler = null; // null means main looper
     private ArrayList<SensorContext> sensors = new ArrayList<>();
-    private ArrayList<SensorEvent> sensorEvents = new ArrayList<>();
+    private SensorContext[] sensorsByUid = new SensorContext[0];
+    private IdentityHashMap<Sensor, SensorContext> sensorsByRef = new IdentityHashMap<>();
+    private int enabledSensorCount = 0;
+    private int drainingSensorCount = 0; // flushed before unregister, listener kept until FIFO contents arrived
+    private ByteBuffer detectResponse = null; // cached PK_RESP_DETECT_DEVICE, also hello
+    private ByteBuffer pingResponse = null; // cached plain PK_RESP_PING_DEVICE
+    private ByteBuffer sensorList = null; // cached PK_RESP_ENUMERATE_SENSORS
+    private ArrayList<ByteBuffer> sensorPages = new ArrayList<>(); // cached PK_RESP_ENUMERATE_PAGE
+    private ByteBuffer controlDetectResponse = null; // views of cached responses for control thread, positions are per thread
+    private ByteBuffer controlPingResponse = null;
+    private ByteBuffer controlSensorList = null;
+    private ArrayList<ByteBuffer> controlSensorPages = new ArrayList<>();
+    private Packets.SensorDetails sensorDetails = new Packets.SensorDetails();
+    private SampleRing sensorSamples = new SampleRing(4096, SampleRing.OVERFLOW_DROP_OLDEST);
+    private FusionStage fusion = null;
+    private SensorSource sensorSource = null; // hardware or synthetic, registers every non virtual sensor
+    private int fusionRate = Subscriber.RATE_DISABLED;
 
     private Object triggerListener = null;
-    private ArrayList<TriggerEvent> triggerEvents = new ArrayList<>();
+    private SensorEventListener flushListener = null; // SensorEventListener2 from API 19, service itself before
+    private SampleRing triggerSamples = new SampleRing(64, SampleRing.OVERFLOW_DROP_NEWEST);
+
+    private SampleRing.Sample sample = new SampleRing.Sample();
 
     private DatagramChannel channel = null;
-    private SocketAddress clientAddr = null;
-    private ByteBuffer buffer = ByteBuffer.allocateDirect(2048);
-    private int totalBytesSent = 0;
-    private int totalPacketsSent = 0;
+    private InetSocketAddress helloAddr = null;
+    private InetSocketAddress multicastAddr = null; // group stream target, null when multicast is off
+    private Selector selector = null;
+    private StreamServer streamServer = null; // on worker's selector, connections become subscribers
+    private Selector controlSelector = null;
+    private Thread control = null;
+    private volatile boolean controlRunning = false; // worker may leave run loop on exception with run flag still up
+    private PacketRing requestQueue = new PacketRing(64, MAX_PACKET_SIZE); // control thread -> worker, stamped with receive time
+    private ByteBuffer controlBuffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private RequestLimiter controlLimiter = null; // control thread
+    private RequestLimiter requestLimiter = null; // worker
+    private long requestTime = 0; // receive time of request being handled, sensor time base
+    private SendStage[] sendStages = new SendStage[0];
+    private int nextSendStage = 0;
+    private AtomicBoolean workerWaiting = new AtomicBoolean(false);
+    private HashMap<SocketAddress, Subscriber> subscriberMap = new HashMap<>();
+    private ArrayList<Subscriber> subscribers = new ArrayList<>();
+    private SocketAddress clientAddr = null; // first subscriber, shown in UI
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+    private EventFrame eventFrame = new EventFrame();
+    private EventFrame decimatedFrame = new EventFrame();
+    private ByteBuffer eventBuffer = eventFrame.body;
+    private ByteBuffer decimatedBuffer = decimatedFrame.body;
+    private FramePool framePool = new FramePool(8);
+    private Packets.EnableSensorRequest enableRequest = new Packets.EnableSensorRequest();
+    private Packets.StreamOptions streamOptionsRequest = new Packets.StreamOptions();
+    private Packets.Decimation decimationRequest = new Packets.Decimation();
+    private Packets.SensorEncoding encodingRequest = new Packets.SensorEncoding();
+    private Packets.Stats statsResponse = new Packets.Stats();
+    private Metrics metrics = new Metrics();
+    private Packets.Replay replayRequest = new Packets.Replay();
+    private Packets.Subscribe subscribeRequest = new Packets.Subscribe();
+    private Packets.LossReport lossReport = new Packets.LossReport();
+    private Packets.TimeSync timeSync = new Packets.TimeSync();
+    private File recordDir = null;
+    private RecordingWriter recorder = null;
+    private ReplaySession replay = null;
+    private long lastSensorCallback = 0;
 
     private AtomicBoolean runFlag = new AtomicBoolean(false);
     private Thread worker = null;
     private PowerManager.WakeLock wakeLock = null;
     private WifiManager.WifiLock wifiLock = null;
-    //private WifiManager.MulticastLock mcastLock = null;
+    private WifiManager.MulticastLock mcastLock = null;
 
     //==============================================================================
     // Service
@@ -107,6 +194,9 @@ public class SensorBroadcasterService extends Service implements Runnable, Senso
         Log.d(TAG, "onDestroy");
 
         runFlag.set(false);
+        if (selector != null) {
+            selector.wakeup();
+        }
         if (worker != null) {
             try {
                 worker.join();
@@ -128,6 +218,65 @@ public class SensorBroadcasterService extends Service implements Runnable, Senso
         if (extras != null) {
             port = Integer.parseInt((String) extras.get("port"));
             password = (String) extras.get("password");
+            if (extras.containsKey("multicastGroup")) {
+                multicastGroup = (String) extras.get("multicastGroup");
+            }
+            if (extras.containsKey("multicastTtl")) {
+                multicastTtl = Integer.parseInt((String) extras.get("multicastTtl"));
+            }
+            if (extras.containsKey("streamPort")) {
+                streamPort = Integer.parseInt((String) extras.get("streamPort"));
+            }
+            if (extras.containsKey("streamHighWater")) {
+                streamHighWater = Math.max(MAX_PACKET_SIZE, Integer.parseInt((String) extras.get("streamHighWater")));
+            }
+            eventDriven = extras.getBoolean("eventDriven", true);
+            connectedSend = extras.getBoolean("connectedSend", true);
+            congestionControl = extras.getBoolean("congestionControl", true);
+            useSensorThread = extras.getBoolean("sensorThread", true);
+            controlThread = extras.getBoolean("controlThread", false);
+            if (extras.containsKey("senderThreads")) {
+                senderThreads = Math.max(0, Integer.parseInt((String) extras.get("senderThreads")));
+            }
+            if (extras.containsKey("requestRate")) {
+                requestRate = Math.max(0, Integer.parseInt((String) extras.get("requestRate")));
+            }
+            if (extras.containsKey("requestBurst")) {
+                requestBurst = Math.max(1, Integer.parseInt((String) extras.get("requestBurst")));
+            }
+            if (extras.containsKey("threadPriority")) {
+                threadPriority = Integer.parseInt((String) extras.get("threadPriority"));
+            }
+            if (extras.containsKey("coalesceWindow")) {
+                coalesceWindow = Long.parseLong((String) extras.get("coalesceWindow"));
+            }
+            lowPower = extras.getBoolean("lowPower", false);
+            if (extras.containsKey("maxReportLatency")) {
+                maxReportLatency = Long.parseLong((String) extras.get("maxReportLatency"));
+            }
+            record = extras.getBoolean("record", false);
+            if (extras.containsKey("recordSegmentSize")) {
+                recordSegmentSize = Integer.parseInt((String) extras.get("recordSegmentSize"));
+            }
+            if (extras.containsKey("recordMaxSegments")) {
+                recordMaxSegments = Integer.parseInt((String) extras.get("recordMaxSegments"));
+            }
+            if (extras.containsKey("recordSensors")) {
+                recordSensors = (String) extras.get("recordSensors");
+            }
+            if (extras.containsKey("recordRate")) {
+                recordRate = Integer.parseInt((String) extras.get("recordRate"));
+            }
+            useFusion = extras.getBoolean("fusion", true);
+            if (extras.containsKey("fusionBeta")) {
+                fusionBeta = Float.parseFloat((String) extras.get("fusionBeta"));
+            }
+            if (extras.containsKey("synthetic")) {
+                syntheticCount = Integer.parseInt((String) extras.get("synthetic"));
+            }
+            if (extras.containsKey("syntheticRate")) {
+                syntheticRate = Math.max(1, Integer.parseInt((String) extras.get("syntheticRate")));
+            }
         }
 
         runFlag.set(true);
@@ -168,8 +317,11 @@ public class SensorBroadcasterService extends Service implements Runnable, Senso
     public void run() {
         Log.d(TAG, "ENTER: run");
         try {
+            Process.setThreadPriority(threadPriority);
             initSensors();
             initSocket();
+            initRecorder();
+            startStages();
             acquireWakelock();
 
             Log.d(TAG, "MAIN LOOP");
@@ -177,62 +329,286 @@ public class SensorBroadcasterService extends Service implements Runnable, Senso
 
             while (runFlag.get()) {
                 long t0 = SystemClock.elapsedRealtime();
+                long loopStart = System.nanoTime();
+                Metrics.inc(metrics.wakeups);
 
                 // send self discovery packet because on some hardware udp broadcasts not received when screen turned off
-                if (lastBroadcasted + broadcastHelloRate < t0) {
+                if (control == null && lastBroadcasted + broadcastHelloRate < t0) {
                     //Log.d(TAG, "hello");
                     lastBroadcasted = t0;
-                    broadcastHello();
+                    broadcastHello(detectResponse);
                 }
 
                 try {
                     processRequests();
-                    if (clientAddr != null) {
-                        sendSensorEvents(clientAddr);
+                    if (drainingSensorCount > 0) {
+                        finishDrains(t0);
+                    }
+                    if (isSampling()) {
+                        sendSensorEvents();
+                    }
+                    if (replay != null) {
+                        pumpReplay(t0);
                     }
                 } catch (Exception ex) {
                     Log.e(TAG, "EXCEPTION: run", ex);
+                    clearSubscribers();
                     disableAllSensors();
-                    clientAddr = null;
+                    updateRecordedSensors();
                 }
 
+                metrics.loopTime.record(System.nanoTime() - loopStart);
                 long t1 = SystemClock.elapsedRealtime();
                 long dt = t1 - t0;
 
-                if (clientAddr != null) {
-                    Thread.sleep(dt < workerTickRate ? workerTickRate - dt : 1);
+                if (eventDriven) {
+                    waitForWork(t1, control == null ? lastBroadcasted + broadcastHelloRate : Long.MAX_VALUE);
+                } else if (isSampling() || replay != null) {
+                    long sleep = dt < workerTickRate ? workerTickRate - dt : 1;
+                    // don't oversleep pending batch or retransmit deadline
+                    sleep = Math.max(1, Math.min(sleep, nextSendDeadline() - t1));
+                    Thread.sleep(sleep);
                 } else {
                     Thread.sleep(workerSleepTimeout);
                 }
             }
+
+            drainSensors();
         } catch (Exception ex) {
             Log.e(TAG, "EXCEPTION: run", ex);
         }
 
         releaseWakelock();
+        stopStages();
         shutdownSensors();
+        shutdownRecorder();
         shutdownSocket();
         Log.d(TAG, "LEAVE: run");
     }
 
+    private final void waitForWork(long now, long nextHello) throws Exception {
+        long timeout = Math.min(workerSleepTimeout, nextHello - now);
+        timeout = Math.min(timeout, nextSendDeadline() - now);
+        if (drainingSensorCount > 0) {
+            timeout = Math.min(timeout, SENSOR_DRAIN_TIMEOUT);
+        }
+
+        // sensor callback and control thread wake selector only while this flag is raised, so one wakeup per sleep
+        boolean streaming = isSampling();
+        boolean ready = false;
+        if (streaming || control != null || drainingSensorCount > 0) {
+            workerWaiting.set(true);
+            ready = (streaming && haveSamples()) || !requestQueue.isEmpty();
+        }
+        if (!ready) {
+            selector.select(Math.max(1, timeout));
+            selector.selectedKeys().clear();
+        }
+        workerWaiting.set(false);
+
+        if (coalesceWindow > 0 && streaming && haveSamples()) {
+            Thread.sleep(coalesceWindow);
+        }
+    }
+
+    // samples are consumed while anyone streams or recorder runs
+    private final boolean isSampling() {
+        return !subscribers.isEmpty() || recorder != null;
+    }
+
+    private final void notifyWorker() {
+        if (workerWaiting.get() && workerWaiting.compareAndSet(true, false)) {
+            selector.wakeup();
+        }
+    }
+
+    //==============================================================================
+    // Stages
+    //==============================================================================
+
+    private final void startStages() {
+        requestLimiter = new RequestLimiter(REQUEST_SOURCES, requestRate, requestBurst);
+        if (controlThread) {
+            controlLimiter = new RequestLimiter(REQUEST_SOURCES, requestRate, requestBurst);
+            controlDetectResponse = detectResponse.duplicate();
+            controlPingResponse = pingResponse.duplicate();
+            controlSensorList = sensorList.duplicate();
+            controlSensorPages.clear();
+            for (int i = 0; i < sensorPages.size(); ++i) {
+                controlSensorPages.add(sensorPages.get(i).duplicate());
+            }
+            controlRunning = true;
+            control = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    runControl();
+                }
+            }, "Control");
+            control.start();
+        }
+
+        sendStages = new SendStage[senderThreads];
+        for (int i = 0; i < sendStages.length; ++i) {
+            sendStages[i] = new SendStage(channel, metrics, threadPriority);
+            sendStages[i].start("SendStage" + i);
+        }
+        Log.d(TAG, "control thread: " + controlThread + " send stages: " + sendStages.length);
+    }
+
+    private final void stopStages() {
+        if (control != null) {
+            controlRunning = false;
+            if (controlSelector != null) {
+                controlSelector.wakeup();
+            }
+            try {
+                control.join();
+            } catch (InterruptedException ex) {
+                // IGNORE
+            }
+            control = null;
+        }
+        requestQueue = new PacketRing(requestQueue.getCapacity(), MAX_PACKET_SIZE);
+
+        // subscribers pinned to stages fall back to worker sends
+        for (int i = 0; i < subscribers.size(); ++i) {
+            subscribers.get(i).sender = null;
+        }
+        for (int i = 0; i < sendStages.length; ++i) {
+            sendStages[i].stop();
+        }
+        sendStages = new SendStage[0];
+    }
+
+    // control plane: discovery answered right here, requests touching subscribers or sensors are queued for worker,
+    // so a flood of discovery packets costs this thread only
+    private final void runControl() {
+        Process.setThreadPriority(threadPriority);
+        long lastBroadcasted = 0;
+        while (controlRunning) {
+            try {
+                long now = SystemClock.elapsedRealtime();
+                if (lastBroadcasted + broadcastHelloRate < now) {
+                    lastBroadcasted = now;
+                    broadcastHello(controlDetectResponse);
+                }
+                receiveControl();
+                controlSelector.select(Math.max(1, lastBroadcasted + broadcastHelloRate - now));
+                controlSelector.selectedKeys().clear();
+            } catch (Exception ex) {
+                Log.e(TAG, "EXCEPTION: control", ex);
+            }
+        }
+    }
+
+    // discovery answered here is limited per source, subscriber map is worker's so the rest is limited there.
+    // Budget keeps hello going under flood
+    private final void receiveControl() throws Exception {
+        for (int budget = REQUEST_BUDGET; budget > 0; --budget) {
+            controlBuffer.clear();
+            SocketAddress addr = channel.receive(controlBuffer);
+            if (addr == null) {
+                return;
+            }
+            long now = clockNanos();
+            controlBuffer.flip();
+            if (!controlBuffer.hasRemaining()) {
+                continue;
+            }
+            int id = Packets.readPacketId(controlBuffer);
+            boolean discovery = id == PK_REQ_DETECT_DEVICE || id == PK_REQ_ENUMERATE_SENSORS
+                    || id == PK_REQ_ENUMERATE_PAGE || (id == PK_REQ_PING_DEVICE && !controlBuffer.hasRemaining());
+            if (discovery && !controlLimiter.tryAcquire(sourceOf(addr), now)) {
+                metrics.requestsThrottled.incrementAndGet();
+                continue;
+            }
+
+            switch (id) {
+                case PK_REQ_DETECT_DEVICE:
+                    reqDetectDevice(controlDetectResponse, addr);
+                    continue;
+
+                case PK_REQ_ENUMERATE_SENSORS:
+                    reqEnumerateSensors(controlSensorList, addr);
+                    continue;
+
+                case PK_REQ_ENUMERATE_PAGE:
+                    reqEnumeratePage(controlBuffer, controlSensorPages, addr);
+                    continue;
+
+                case PK_REQ_PING_DEVICE:
+                    // time sync pings feed subscriber's clock estimate, worker owns it
+                    if (!controlBuffer.hasRemaining()) {
+                        reqPlainPing(controlPingResponse, addr);
+                        continue;
+                    }
+                    break;
+            }
+
+            controlBuffer.rewind();
+            if (requestQueue.offer(addr, now, controlBuffer)) {
+                notifyWorker();
+            } else {
+                Metrics.inc(metrics.requestDrops);
+            }
+        }
+    }
+
     private final void acquireWakelock() {
         Log.d(TAG, "acquireWakelock");
 
+        // low power mode holds it only while non wake-up sensors are registered, see updateWakelock
         int wakeType = PowerManager.PARTIAL_WAKE_LOCK;
         PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
         wakeLock = pm.newWakeLock(wakeType, TAG + "::wakeLock");
-        wakeLock.acquire();
+        if (!lowPower) {
+            wakeLock.acquire();
+        } else {
+            updateWakelock();
+        }
 
+        // low power mode lets radio doze between bursts
         WifiManager wm = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
-        wifiLock = wm.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, TAG + "::wifiLock");
+        int wifiMode = lowPower ? WifiManager.WIFI_MODE_FULL : WifiManager.WIFI_MODE_FULL_HIGH_PERF;
+        wifiLock = wm.createWifiLock(wifiMode, TAG + "::wifiLock");
         wifiLock.acquire();
     }
 
+    // Non wake-up sensors never wake the CPU, while it is suspended their FIFO fills up and drops oldest samples.
+    // Low power mode keeps the CPU awake while any of them is registered, the worker still sleeps between FIFO
+    // bursts and Wi-Fi stays in power save. With wake-up sensors only, or none, the CPU may suspend.
+    private final void updateWakelock() {
+        if (!lowPower || wakeLock == null) {
+            return;
+        }
+        boolean needed = false;
+        for (SensorContext context : sensors) {
+            if ((context.enabled || context.draining) && context.source != null && !isWakeUpSensor(context)) {
+                needed = true;
+                break;
+            }
+        }
+        if (needed != wakeLock.isHeld()) {
+            Log.d(TAG, "updateWakelock held=" + needed);
+            if (needed) {
+                wakeLock.acquire();
+            } else {
+                wakeLock.release();
+            }
+        }
+    }
+
+    private final static boolean isWakeUpSensor(SensorContext context) {
+        return context.sensor != null && android.os.Build.VERSION.SDK_INT >= 21 && context.sensor.isWakeUpSensor();
+    }
+
     private final void releaseWakelock() {
         Log.d(TAG, "releaseWakelock");
 
         if (wakeLock != null) {
-            wakeLock.release();
+            if (wakeLock.isHeld()) {
+                wakeLock.release();
+            }
             wakeLock = null;
         }
         if (wifiLock != null) {
@@ -252,10 +628,38 @@ public class SensorBroadcasterService extends Service implements Runnable, Senso
         channel = DatagramChannel.open();
         channel.configureBlocking(false);
         channel.socket().setBroadcast(true);
+        // lets connected per subscriber channels share the port, replies keep coming from it
+        channel.socket().setReuseAddress(connectedSend);
         channel.socket().bind(new InetSocketAddress(port));
+        helloAddr = new InetSocketAddress(InetAddress.getByAddress(new byte[]{-1, -1, -1, -1}), port);
+        passwordBytes = password.getBytes("UTF-8");
+
+        multicastAddr = null;
+        if (!multicastGroup.isEmpty()) {
+            InetAddress group = InetAddress.getByName(multicastGroup);
+            if (group.isMulticastAddress()) {
+                multicastAddr = new InetSocketAddress(group, port);
+                Log.d(TAG, "multicast group " + multicastAddr + " ttl=" + multicastTtl);
+            } else {
+                Log.e(TAG, "not a multicast address: " + multicastGroup);
+            }
+        }
+
+        // control thread keeps request floods on service port away from worker's selector
+        selector = Selector.open();
+        if (controlThread) {
+            controlSelector = Selector.open();
+            channel.register(controlSelector, SelectionKey.OP_READ);
+        } else {
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        if (streamPort > 0) {
+            streamServer = new StreamServer(selector, new InetSocketAddress(streamPort), streamHighWater, streamListener);
+            Log.d(TAG, "stream port " + streamPort + " high water " + streamHighWater);
+        }
 
-        totalBytesSent = 0;
-        totalPacketsSent = 0;
+        metrics.reset(sensors.size(), SystemClock.elapsedRealtime());
     }
 
     private final void shutdownSocket() {
@@ -268,270 +672,1511 @@ public class SensorBroadcasterService extends Service implements Runnable, Senso
             }
             channel = null;
         }
-        clientAddr = null;
+        if (selector != null) {
+            try {
+                selector.close();
+            } catch (Exception ex) {
+                // IGNORE
+            }
+            selector = null;
+        }
+        if (controlSelector != null) {
+            try {
+                controlSelector.close();
+            } catch (Exception ex) {
+                // IGNORE
+            }
+            controlSelector = null;
+        }
+        clearSubscribers();
+        // subscribers are gone, closed connections have nothing left to release
+        if (streamServer != null) {
+            streamServer.close();
+            streamServer = null;
+        }
     }
 
     private final void processRequests() throws Exception {
-        for (; ; ) {
+        if (control != null) {
+            processQueuedRequests();
+        } else {
+            receiveRequests(channel);
+        }
+
+        if (streamServer != null) {
+            streamServer.poll(REQUEST_BUDGET);
+        }
+
+        // connected channel gets datagrams of its peer, so subscriber's requests arrive there
+        for (int i = 0; i < subscribers.size(); ++i) {
+            Subscriber subscriber = subscribers.get(i);
+            if (subscriber.channel != null && !subscriber.failed) {
+                try {
+                    receiveRequests(subscriber.channel);
+                } catch (IOException ex) {
+                    Log.e(TAG, "receive failed: " + subscriber.addr, ex);
+                    subscriber.failed = true;
+                }
+            }
+        }
+    }
+
+    // requests over budget wait in socket buffer for next iteration, so a flood can't starve sending
+    private final void receiveRequests(DatagramChannel chan) throws Exception {
+        // request may remove subscriber and close its channel
+        for (int budget = REQUEST_BUDGET; budget > 0 && chan.isOpen(); --budget) {
             buffer.clear();
-            SocketAddress addr = channel.receive(buffer);
+            SocketAddress addr = chan.receive(buffer);
             if (addr == null || buffer.position() <= 0) {
                 return;
             }
 
+            requestTime = clockNanos();
             buffer.flip();
-            int id = readU8(buffer);
-            //Log.d(TAG, "packet id=" + id + " len=" + buffer.position());
+            int id = Packets.readPacketId(buffer);
+            if (admitRequest(id, addr)) {
+                handleRequest(id, addr);
+            }
+        }
+    }
 
-            switch (id) {
-                case PK_REQ_DETECT_DEVICE:
-                    reqDetectDevice(addr);
-                    break;
+    // requests control thread queued from service port
+    private final void processQueuedRequests() throws Exception {
+        ByteBuffer packet;
+        for (int budget = REQUEST_BUDGET; budget > 0 && (packet = requestQueue.peek()) != null; --budget) {
+            SocketAddress addr = (SocketAddress) requestQueue.peekTarget();
+            requestTime = requestQueue.peekStamp();
+            buffer.clear();
+            buffer.put(packet);
+            buffer.flip();
+            requestQueue.release();
+            int id = Packets.readPacketId(buffer);
+            if (admitRequest(id, addr)) {
+                handleRequest(id, addr);
+            }
+        }
+    }
 
-                case PK_REQ_PING_DEVICE:
-                    reqPingDevice(addr);
-                    break;
+    // requests of TCP / WebSocket consumers, they are answered on their connection
+    private final StreamServer.Listener streamListener = new StreamServer.Listener() {
+        @Override
+        public void onRequest(StreamConnection connection, ByteBuffer packet) throws Exception {
+            requestTime = clockNanos();
+            buffer.clear();
+            buffer.put(packet);
+            buffer.flip();
+            int id = Packets.readPacketId(buffer);
+            if (admitRequest(id, connection.getAddress())) {
+                handleRequest(id, connection.getAddress());
+            }
+        }
 
-                case PK_REQ_ENUMERATE_SENSORS:
-                    reqEnumerateSensors(addr);
-                    break;
+        @Override
+        public void onClose(StreamConnection connection) {
+            Subscriber subscriber = subscriberMap.get(connection.getAddress());
+            if (subscriber != null) {
+                removeSubscriber(subscriber);
+            }
+        }
+    };
 
-                case PK_REQ_ENABLE_SENSOR:
-                    reqEnableSensor(addr);
-                    break;
+    // unknown sources are limited per source. Subscribers, acks and loss reports never are,
+    // enable bursts and feedback must not be lost to a limit meant for floods
+    private final boolean admitRequest(int id, SocketAddress addr) {
+        if (id == PK_REQ_ACK_EVENT || id == PK_REQ_LOSS_REPORT || subscriberMap.containsKey(addr)) {
+            return true;
+        }
+        if (requestLimiter.tryAcquire(sourceOf(addr), requestTime)) {
+            return true;
+        }
+        metrics.requestsThrottled.incrementAndGet();
+        return false;
+    }
 
-                case PK_REQ_DISABLE_ALL_SENSORS:
-                    reqDisableAllSensors(addr);
-                    break;
-            }
+    // malformed request is logged and dropped, the run loop's catch is for worker failures only
+    private final void handleRequest(int id, SocketAddress addr) {
+        try {
+            dispatchRequest(id, addr);
+        } catch (Exception ex) {
+            Log.e(TAG, "request failed: id=" + id + " " + addr, ex);
+            Metrics.inc(metrics.requestErrors);
+        }
+    }
+
+    private final void dispatchRequest(int id, SocketAddress addr) throws Exception {
+        //Log.d(TAG, "packet id=" + id + " len=" + buffer.limit());
+        switch (id) {
+            case PK_REQ_DETECT_DEVICE:
+                reqDetectDevice(detectResponse, addr);
+                break;
+
+            case PK_REQ_PING_DEVICE:
+                reqPingDevice(addr);
+                break;
+
+            case PK_REQ_ENUMERATE_SENSORS:
+                reqEnumerateSensors(sensorList, addr);
+                break;
+
+            case PK_REQ_ENUMERATE_PAGE:
+                reqEnumeratePage(buffer, sensorPages, addr);
+                break;
+
+            case PK_REQ_ENABLE_SENSOR:
+                reqEnableSensor(addr);
+                break;
+
+            case PK_REQ_DISABLE_ALL_SENSORS:
+                reqDisableAllSensors(addr);
+                break;
+
+            case PK_REQ_SET_STREAM_OPTIONS:
+                reqSetStreamOptions(addr);
+                break;
+
+            case PK_REQ_SET_DECIMATION:
+                reqSetDecimation(addr);
+                break;
+
+            case PK_REQ_SET_SENSOR_ENCODING:
+                reqSetSensorEncoding(addr);
+                break;
+
+            case PK_REQ_STATS:
+                reqStats(addr);
+                break;
+
+            case PK_REQ_ACK_EVENT:
+                reqAckEvent(addr);
+                break;
+
+            case PK_REQ_LOSS_REPORT:
+                reqLossReport(addr);
+                break;
+
+            case PK_REQ_REPLAY:
+                reqReplay(addr);
+                break;
+
+            case PK_REQ_SUBSCRIBE:
+                reqSubscribe(addr);
+                break;
         }
     }
 
-    private final void broadcastHello() throws IOException {
-        initPacket(buffer, PK_RESP_DETECT_DEVICE);
-        sendPacket(channel, buffer, new InetSocketAddress("255.255.255.255", port));
+    private final void broadcastHello(ByteBuffer response) throws IOException {
+        sendCached(channel, response, helloAddr);
     }
 
-    private final void reqDetectDevice(SocketAddress addr) throws Exception {
-        Log.d(TAG, "reqDetectDevice");
-        initPacket(buffer, PK_RESP_DETECT_DEVICE);
-        sendPacket(channel, buffer, addr);
+    // discovery handlers run on worker and control thread, each passes its own buffers.
+    // No logging, they are cheap to send in floods
+    private final void reqDetectDevice(ByteBuffer response, SocketAddress addr) throws Exception {
+        sendCached(channel, response, addr);
+    }
+
+    private final void reqPlainPing(ByteBuffer response, SocketAddress addr) throws Exception {
+        sendCached(channel, response, addr);
     }
 
     private final void reqPingDevice(SocketAddress addr) throws Exception {
-        Log.d(TAG, "reqPingDevice");
-        initPacket(buffer, PK_RESP_PING_DEVICE);
+        long t2 = requestTime;
+        Packets.readTimeSyncRequest(buffer, timeSync);
+        if (!timeSync.present) {
+            reqPlainPing(pingResponse, addr);
+            return;
+        }
+
+        // request completes previous exchange, subscriber's clock is estimated on this side too
+        Subscriber subscriber = subscriberMap.get(addr);
+        if (subscriber != null) {
+            if (timeSync.previousT1 != 0 && timeSync.previousT1 == subscriber.syncT1) {
+                subscriber.clock.add(subscriber.syncT1, subscriber.syncT2, subscriber.syncT3, timeSync.previousT4);
+            }
+            subscriber.syncT1 = timeSync.t1;
+            subscriber.syncT2 = t2;
+        }
+
+        long t3 = clockNanos();
+        Packets.writeTimeSyncResponse(buffer, timeSync.t1, t2, t3);
+        if (subscriber != null) {
+            subscriber.syncT3 = t3;
+        }
         sendPacket(channel, buffer, addr);
     }
 
-    private final void reqEnumerateSensors(SocketAddress addr) throws Exception {
-        Log.d(TAG, "reqEnumerateSensors");
-        initPacket(buffer, PK_RESP_ENUMERATE_SENSORS);
-        int n = writeU8(buffer, sensors.size());
-        for (int i = 0; i < n; ++i) {
-            SensorContext context = sensors.get(i);
-            writeU8(buffer, context.uid);
-            writeU8(buffer, context.sensor.getType());
-            writeStringU8(buffer, context.sensor.getName());
+    private final void reqEnumerateSensors(ByteBuffer list, SocketAddress addr) throws Exception {
+        sendCached(channel, list, addr);
+    }
+
+    private final void reqEnumeratePage(ByteBuffer buf, ArrayList<ByteBuffer> pages, SocketAddress addr) throws Exception {
+        int page = Packets.readEnumeratePageRequest(buf);
+        if (page < pages.size()) {
+            sendCached(channel, pages.get(page), addr);
+        } else {
+            Packets.writeEnumeratePage(buf, page);
+            Packets.setEnumeratePageCount(buf, pages.size());
+            sendPacket(channel, buf, addr);
         }
-        sendPacket(channel, buffer, addr);
     }
 
     private final void reqEnableSensor(SocketAddress addr) throws Exception {
         Log.d(TAG, "reqEnableSensor");
-        String clientPassword = readStringU8(buffer);
-        int id = readU8(buffer);
-        boolean enabled = readBool(buffer);
-        int rate = readU8(buffer);
+        Packets.readEnableSensorRequest(buffer, enableRequest);
+        int id = enableRequest.uid;
         boolean success = false;
 
-        if (clientPassword.equals(password)) {
-            success = enableSensor(id, enabled, rate);
-            clientAddr = (success || haveEnabledSensors()) ? addr : null;
+        if (enableRequest.password.equals(password)) {
+            SensorContext context = findSensorContext(id);
+            if (context == null) {
+                Log.e(TAG, "enableSensor: not found: id=" + id);
+            } else {
+                Subscriber subscriber = getSubscriber(addr);
+                subscriber.setEnabled(id, enableRequest.enabled, enableRequest.rate);
+                subscriber.latencies[id] = getDefaultLatency();
+                if (!updateSensor(context)) {
+                    subscriber.setEnabled(id, false, 0);
+                }
+                success = subscriber.isEnabled(id);
+                if (subscriber.isIdle()) {
+                    removeSubscriber(subscriber);
+                }
+            }
+        }
+
+        Packets.writeEnableSensorResponse(buffer, success, id);
+        sendPacket(channel, buffer, addr);
+    }
+
+    // whole sensor set in one round trip, first authenticated request gets token which replaces password
+    private final void reqSubscribe(SocketAddress addr) throws Exception {
+        Log.d(TAG, "reqSubscribe");
+        Packets.Subscribe request = subscribeRequest;
+        Packets.readSubscribeRequest(buffer, passwordBytes, request);
+        Subscriber requester = subscriberMap.get(addr);
+        boolean authorized = request.token != 0 ? requester != null && requester.token == request.token : request.passwordMatch;
+        boolean toGroup = (request.flags & SUBSCRIBE_FLAG_MULTICAST) != 0;
+        if (toGroup && multicastAddr == null) {
+            authorized = false;
+        }
+        int token = 0;
+
+        if (authorized) {
+            Subscriber subscriber = getSubscriber(toGroup ? multicastAddr : addr);
+            if ((request.flags & SUBSCRIBE_FLAG_REPLACE) != 0) {
+                disableUnlisted(subscriber, request);
+            }
+            for (int i = 0; i < request.count; ++i) {
+                Packets.Subscription e = request.entries[i];
+                SensorContext context = findSensorContext(e.uid);
+                // negative rate or latency would become sensor period, entry fails
+                if (context == null || e.rate < 0 || e.latency < 0) {
+                    continue;
+                }
+                subscriber.setEnabled(e.uid, e.enabled, e.rate);
+                subscriber.latencies[e.uid] = e.latency;
+                if (!updateSensor(context)) {
+                    subscriber.setEnabled(e.uid, false, 0);
+                }
+                e.success = subscriber.isEnabled(e.uid) == e.enabled;
+            }
+            if (subscriber.isIdle()) {
+                removeSubscriber(subscriber);
+            } else if (!toGroup) {
+                if (subscriber.token == 0) {
+                    subscriber.token = newToken();
+                }
+                token = subscriber.token;
+            }
+            if (toGroup && requester != null) {
+                token = requester.token;
+            }
         }
 
-        initPacket(buffer, PK_RESP_ENABLE_SENSOR);
-        writeBool(buffer, success);
-        writeU8(buffer, id);
+        Packets.writeSubscribeResponse(buffer, authorized, token, request.entries, request.count);
         sendPacket(channel, buffer, addr);
     }
 
+    private final void disableUnlisted(Subscriber subscriber, Packets.Subscribe request) {
+        for (int uid = 0; uid < subscriber.rates.length; ++uid) {
+            if (!subscriber.isEnabled(uid)) {
+                continue;
+            }
+            boolean listed = false;
+            for (int i = 0; i < request.count && !listed; ++i) {
+                listed = request.entries[i].uid == uid;
+            }
+            if (!listed) {
+                subscriber.setEnabled(uid, false, 0);
+                updateSensor(findSensorContext(uid));
+            }
+        }
+    }
+
+    private final int newToken() {
+        if (tokenRandom == null) {
+            tokenRandom = new SecureRandom();
+        }
+        int token;
+        do {
+            token = tokenRandom.nextInt();
+        } while (token == 0);
+        return token;
+    }
+
     private final void reqDisableAllSensors(SocketAddress addr) throws Exception {
         Log.d(TAG, "reqDisableAllSensors");
-        String clientPassword = readStringU8(buffer);
+        String clientPassword = Packets.readDisableAllSensorsRequest(buffer);
         boolean success = false;
 
+        // only drops requesting client, other subscribers keep streaming
         if (clientPassword.equals(password)) {
-            disableAllSensors();
-            clientAddr = null;
+            Subscriber subscriber = subscriberMap.get(addr);
+            if (subscriber != null) {
+                removeSubscriber(subscriber);
+            }
             success = true;
         }
 
-        initPacket(buffer, PK_RESP_DISABLE_ALL_SENSORS);
-        writeBool(buffer, success);
+        Packets.writeDisableAllSensorsResponse(buffer, success);
         sendPacket(channel, buffer, addr);
     }
 
-    private final void sendSensorEvents(SocketAddress addr) throws Exception {
-        // GODLIKE java array swap!
-        ArrayList<SensorEvent> tmpSensorEvents = null;
-        if (sensorEvents.size() > 0) {
-            synchronized (sensorEvents) {
-                if (sensorEvents.size() > 0) {
-                    tmpSensorEvents = sensorEvents;
-                    sensorEvents = new ArrayList<>();
-                }
-            }
-        }
-        if (tmpSensorEvents != null) {
-            for (SensorEvent event : tmpSensorEvents) {
-                SensorContext context = findSensorContext(event.sensor);
-                if (context != null && context.enabled) {
-                    sendSensorEvent(addr, context, event.timestamp, event.values);
-                }
+    private final void reqSetStreamOptions(SocketAddress addr) throws Exception {
+        Log.d(TAG, "reqSetStreamOptions");
+        Packets.readSetStreamOptionsRequest(buffer, streamOptionsRequest);
+
+        boolean toGroup = (streamOptionsRequest.flags & STREAM_FLAG_MULTICAST) != 0;
+        if (streamOptionsRequest.password.equals(password) && (!toGroup || multicastAddr != null)) {
+            Subscriber subscriber = getSubscriber(toGroup ? multicastAddr : addr);
+            int flags = streamOptionsRequest.flags & STREAM_FLAGS_SUPPORTED;
+            if (toGroup) {
+                // group members can't ack
+                flags &= ~STREAM_FLAG_RELIABLE_TRIGGERS;
             }
-        }
-
-        if (android.os.Build.VERSION.SDK_INT >= 18) {
-            ArrayList<TriggerEvent> tmpTriggerEvents = null;
-            if (triggerEvents.size() > 0) {
-                synchronized (triggerEvents) {
-                    if (triggerEvents.size() > 0) {
-                        tmpTriggerEvents = triggerEvents;
-                        triggerEvents = new ArrayList<>();
-                    }
-                }
+            flushBatch(subscriber);
+            subscriber.setStreamOptions(flags, streamOptionsRequest.mtu, streamOptionsRequest.flushDeadline, metrics);
+            if (subscriber.isBatching() && subscriber.batch.getFrame() == null) {
+                subscriber.batch.setFrame(framePool.acquire());
             }
-            if (tmpTriggerEvents != null) {
-                for (TriggerEvent event : tmpTriggerEvents) {
-                    SensorContext context = findSensorContext(event.sensor);
-                    if (context != null && context.enabled) {
-                        sendSensorEvent(addr, context, event.timestamp, event.values);
-                    }
-                }
+            int responseFlags = subscriber.streamFlags | (toGroup ? STREAM_FLAG_MULTICAST : 0);
+            Packets.writeSetStreamOptionsResponse(buffer, true, responseFlags, subscriber.batchMtu, (int) subscriber.batchFlushDeadline);
+            if (subscriber.isIdle()) {
+                removeSubscriber(subscriber);
             }
+        } else {
+            Packets.writeSetStreamOptionsResponse(buffer, false, 0, Subscriber.BATCH_DEFAULT_MTU, Subscriber.BATCH_DEFAULT_FLUSH_DEADLINE);
         }
+
+        sendPacket(channel, buffer, addr);
     }
 
-    private final void sendSensorEvent(SocketAddress addr, SensorContext context, long timestamp, float[] values) throws Exception {
-        initPacket(buffer, PK_CB_SENSOR_EVENT);
-        writeU8(buffer, context.uid);
-        buffer.putLong(timestamp);
-        int n = writeU8(buffer, values.length);
-        for (int i = 0; i < n; ++i) {
-            buffer.putFloat(values[i]);
+    private final void reqSetDecimation(SocketAddress addr) throws Exception {
+        Log.d(TAG, "reqSetDecimation");
+        Packets.readSetDecimationRequest(buffer, decimationRequest);
+        int id = decimationRequest.uid;
+        boolean success = false;
+
+        boolean valid = decimationRequest.mode <= DECIMATION_MIN_MAX && findSensorContext(id) != null;
+        if (decimationRequest.password.equals(password) && valid) {
+            Subscriber subscriber = getSubscriber(addr);
+            subscriber.setDecimation(id, decimationRequest.mode, decimationRequest.rate);
+            if (subscriber.isIdle()) {
+                removeSubscriber(subscriber);
+            }
+            success = true;
         }
-        totalBytesSent += buffer.position();
-        totalPacketsSent++;
+
+        Packets.writeSetDecimationResponse(buffer, success, id, decimationRequest.mode, decimationRequest.rate);
         sendPacket(channel, buffer, addr);
     }
 
-    //==============================================================================
-    // Sensors
-    //==============================================================================
+    private final void reqSetSensorEncoding(SocketAddress addr) throws Exception {
+        Log.d(TAG, "reqSetSensorEncoding");
+        Packets.readSetSensorEncodingRequest(buffer, encodingRequest);
+        int id = encodingRequest.uid;
+        boolean success = false;
 
-    private final void initSensors() {
-        Log.d(TAG, "initSensors");
-        if (sensorManager != null || sensors.size() > 0) {
-            shutdownSensors();
+        boolean valid = encodingRequest.encoding <= ENCODING_INT16 && findSensorContext(id) != null;
+        if (encodingRequest.password.equals(password) && valid) {
+            Subscriber subscriber = getSubscriber(addr);
+            // scale applies to records written after current batch
+            flushBatch(subscriber);
+            subscriber.setEncoding(id, encodingRequest.encoding, encodingRequest.scale);
+            if (subscriber.isIdle()) {
+                removeSubscriber(subscriber);
+            }
+            success = true;
         }
 
-        sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
-        List<Sensor> sensorList = sensorManager.getSensorList(Sensor.TYPE_ALL);
+        Packets.writeSetSensorEncodingResponse(buffer, success, id, encodingRequest.encoding, encodingRequest.scale);
+        sendPacket(channel, buffer, addr);
+    }
+
+    // no password, stats are read only and let remote tools scrape device without adb
+    private final void reqStats(SocketAddress addr) throws Exception {
+        Packets.Stats stats = statsResponse;
+        stats.uptime = SystemClock.elapsedRealtime() - metrics.getStartTime();
+        stats.packetsSent = metrics.packetsSent.get();
+        stats.bytesSent = metrics.bytesSent.get();
+        stats.sendErrors = metrics.sendErrors.get();
+        stats.sendDrops = metrics.sendDrops.get();
+        stats.sampleDrops = getSampleOverflowCount();
+        stats.queueHighWater = sensorSamples.getHighWaterMark();
+        stats.queueCapacity = sensorSamples.getCapacity();
+        stats.subscribers = subscribers.size();
+        stats.enabledSensors = enabledSensorCount;
+        stats.wakeups = metrics.wakeups.get();
+        stats.bursts = metrics.bursts.get();
+        stats.latencyP50 = metrics.latency.getValueAtPercentile(50) / 1000;
+        stats.latencyP99 = metrics.latency.getValueAtPercentile(99) / 1000;
+        stats.latencyP999 = metrics.latency.getValueAtPercentile(99.9) / 1000;
+        stats.latencyMax = metrics.latency.getMax() / 1000;
+        stats.loopP50 = metrics.loopTime.getValueAtPercentile(50) / 1000;
+        stats.loopP99 = metrics.loopTime.getValueAtPercentile(99) / 1000;
+        stats.loopMax = metrics.loopTime.getMax() / 1000;
+        stats.callbackP50 = metrics.callbackLatency.getValueAtPercentile(50) / 1000;
+        stats.callbackP99 = metrics.callbackLatency.getValueAtPercentile(99) / 1000;
+        stats.callbackMax = metrics.callbackLatency.getMax() / 1000;
+        stats.sensorThread = useSensorThread;
+        stats.threadPriority = threadPriority;
+        stats.requestsThrottled = metrics.requestsThrottled.get();
+        stats.requestDrops = metrics.requestDrops.get();
+        stats.requestErrors = metrics.requestErrors.get();
+        stats.streamConnections = streamServer != null ? streamServer.getConnectionCount() : 0;
+        stats.streamsStalled = streamServer != null ? streamServer.getStalled() : 0;
+
+        // only sensors which saw traffic
+        int n = 0;
+        int count = Math.min(metrics.getSensorCount(), stats.uids.length);
+        for (int uid = 0; uid < count; ++uid) {
+            long in = metrics.getEventsIn(uid);
+            long out = metrics.getEventsOut(uid);
+            if (in > 0 || out > 0) {
+                stats.uids[n] = uid;
+                stats.eventsIn[n] = in;
+                stats.eventsOut[n] = out;
+                n++;
+            }
+        }
+        stats.sensorCount = n;
+
+        Packets.writeStatsResponse(buffer, stats);
+        sendPacket(channel, buffer, addr);
+    }
+
+    // ack only frees retransmit slot, unknown or stale sequences are ignored
+    private final void reqAckEvent(SocketAddress addr) throws Exception {
+        int seq = Packets.readAckEventRequest(buffer);
+        Subscriber subscriber = subscriberMap.get(addr);
+        if (subscriber != null && subscriber.retransmits != null) {
+            subscriber.retransmits.ack(seq);
+        }
+    }
+
+    // multicast receivers report from own addresses, group stream only sees local buffer pressure
+    private final void reqLossReport(SocketAddress addr) throws Exception {
+        Packets.readLossReport(buffer, lossReport);
+        Subscriber subscriber = subscriberMap.get(addr);
+        if (subscriber != null) {
+            subscriber.lossReporting = true;
+            subscriber.congestion.onLossReport(lossReport.received, lossReport.lost);
+        }
+    }
+
+    private final void sendSensorEvents() throws Exception {
+        sendSamples(sensorSamples, false);
+        sendSamples(triggerSamples, true);
+
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < subscribers.size(); ++i) {
+            Subscriber subscriber = subscribers.get(i);
+            if (now >= subscriber.getBatchDeadline()) {
+                flushBatch(subscriber);
+            }
+            if (now >= subscriber.getRetransmitDeadline()) {
+                resendReliable(subscriber, now);
+            }
+            if (congestionControl) {
+                if (subscriber.sender != null) {
+                    subscriber.collectStageSends();
+                }
+                if (subscriber.congestion.update(now)) {
+                    applyCongestion(subscriber);
+                }
+            }
+        }
+
+        removeFailedSubscribers();
+    }
+
+    // one shot samples go out to reliable subscribers through their retransmit ring, continuous ones stay fire and forget
+    private final void sendSamples(SampleRing ring, boolean oneShot) throws Exception {
+        // uid was resolved in sensor callback, subscriber tables are indexed by it directly
+        while (ring.poll(sample)) {
+            if (recorder != null) {
+                recordSample(sample);
+            }
+            trackLatency(sample.timestamp);
+            metrics.callbackLatency.record(System.nanoTime() - sample.arrival);
+
+            dispatchSample(sample, oneShot);
+
+            // fused orientation goes out right behind gyro sample which produced it
+            if (fusionRate != Subscriber.RATE_DISABLED && fusion.process(sample)) {
+                metrics.countIn(fusion.uid);
+                dispatchSample(fusion.output, false);
+            }
+        }
+    }
+
+    private final void dispatchSample(SampleRing.Sample sample, boolean oneShot) throws Exception {
+        // encode once, every interested subscriber gets same bytes
+        boolean encoded = false;
+        for (int i = 0; i < subscribers.size(); ++i) {
+            Subscriber subscriber = subscribers.get(i);
+            if (subscriber.failed || !subscriber.isEnabled(sample.uid)) {
+                continue;
+            }
+
+            if (oneShot && subscriber.isReliable()) {
+                metrics.countOut(sample.uid);
+                sendReliable(subscriber, sample);
+                continue;
+            }
+            if (!oneShot && !subscriber.admit(sample.uid)) {
+                continue;
+            }
+
+            Decimator decimator = subscriber.decimators[sample.uid];
+            if (decimator != null) {
+                if (decimator.process(sample.timestamp, sample.values, sample.count)) {
+                    metrics.countOut(sample.uid);
+                    if (subscriber.isCompact()) {
+                        appendCompact(subscriber, sample.uid, decimator.timestamp, decimator.values, decimator.count);
+                    } else {
+                        Packets.writeSensorEvent(decimatedBuffer, sample.uid, decimator.timestamp, decimator.values, decimator.count);
+                        decimatedBuffer.flip();
+                        sendSensorEvent(subscriber, decimatedFrame);
+                    }
+                }
+                continue;
+            }
+
+            metrics.countOut(sample.uid);
+            if (subscriber.isCompact()) {
+                appendCompact(subscriber, sample.uid, sample.timestamp, sample.values, sample.count);
+                continue;
+            }
+
+            if (!encoded) {
+                Packets.writeSensorEvent(eventBuffer, sample.uid, sample.timestamp, sample.values, sample.count);
+                eventBuffer.flip();
+                encoded = true;
+            }
+            sendSensorEvent(subscriber, eventFrame);
+        }
+    }
+
+    private final void applyCongestion(Subscriber subscriber) throws Exception {
+        Log.d(TAG, "congestion " + subscriber.addr + " level=" + subscriber.congestion.getLevel());
+        flushBatch(subscriber);
+        if (subscriber.applyCongestion()) {
+            Metrics.inc(metrics.congestionSteps);
+        }
+        if (subscriber.isBatching() && subscriber.batch.getFrame() == null) {
+            subscriber.batch.setFrame(framePool.acquire());
+        }
+    }
+
+    private final void sendSensorEvent(Subscriber subscriber, EventFrame event) throws Exception {
+        if (subscriber.isBatching()) {
+            appendBatch(subscriber, event.body);
+        } else {
+            sendFramed(subscriber, event);
+        }
+    }
+
+    // sensor timestamp time base, millisecond resolution before API 17
+    private final static long clockNanos() {
+        if (android.os.Build.VERSION.SDK_INT >= 17) {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+        return SystemClock.elapsedRealtime() * 1000000L;
+    }
+
+    private final void trackLatency(long timestamp) {
+        // sensor timestamps share elapsedRealtimeNanos time base
+        if (android.os.Build.VERSION.SDK_INT >= 17) {
+            long latency = SystemClock.elapsedRealtimeNanos() - timestamp;
+            if (latency >= 0) {
+                metrics.latency.record(latency);
+            }
+        }
+    }
+
+    private final void appendBatch(Subscriber subscriber, ByteBuffer event) throws Exception {
+        // record is encoded event packet without its id byte
+        if (!subscriber.batch.fits(event.limit() - 1)) {
+            flushBatch(subscriber);
+        }
+        subscriber.batch.appendEvent(event, SystemClock.elapsedRealtime());
+    }
+
+    // compact records depend on subscriber's scales and batch base, so encoded per subscriber
+    private final void appendCompact(Subscriber subscriber, int uid, long timestamp, float[] values, int count) throws Exception {
+        float scale = subscriber.scales[uid];
+        if (!subscriber.batch.fits(Packets.compactRecordMaxSize(count, scale))) {
+            flushBatch(subscriber);
+        }
+        subscriber.batch.appendCompact(uid, timestamp, values, count, scale, SystemClock.elapsedRealtime());
+    }
+
+    private final void flushBatch(Subscriber subscriber) throws Exception {
+        if (!subscriber.batch.finish()) {
+            return;
+        }
+        EventFrame frame = subscriber.batch.getFrame();
+        if (subscriber.isClocked() && subscriber.clock.isValid()) {
+            frame.clock(subscriber.clock.getOffset(clockNanos()));
+        }
+        sendFramed(subscriber, frame);
+    }
+
+    private final void sendReliable(Subscriber subscriber, SampleRing.Sample sample) {
+        RetransmitRing ring = subscriber.retransmits;
+        int seq = ring.nextSequence();
+        ByteBuffer packet = ring.add(seq, SystemClock.elapsedRealtime());
+        Packets.writeReliableEvent(packet, seq, sample.uid, sample.timestamp, sample.values, sample.count);
+        packet.flip();
+        sendEncoded(subscriber, packet);
+    }
+
+    private final void resendReliable(Subscriber subscriber, long now) {
+        ByteBuffer packet;
+        while ((packet = subscriber.retransmits.pollDue(now)) != null) {
+            sendEncoded(subscriber, packet);
+        }
+    }
+
+    // sequence counts every event packet of subscriber's stream, so receiver sees lost ones as gaps
+    private final void sendFramed(Subscriber subscriber, EventFrame event) {
+        if (subscriber.isSequenced()) {
+            sendEncoded(subscriber, event.sequenced(subscriber.sequence++));
+        } else {
+            sendEncoded(subscriber, event.plain());
+        }
+    }
+
+    private final void sendEncoded(Subscriber subscriber, ByteBuffer buf) {
+        if (subscriber.stream != null) {
+            // queued on connection, one which crossed high watermark drops until poll closes it
+            int n = buf.remaining();
+            boolean sent = subscriber.stream.send(buf);
+            subscriber.congestion.onSend(!sent);
+            // shared with send stages, atomic updates
+            if (sent) {
+                metrics.bytesSent.addAndGet(n);
+                metrics.packetsSent.incrementAndGet();
+            } else {
+                metrics.sendDrops.incrementAndGet();
+            }
+            return;
+        }
+        if (subscriber.sender != null) {
+            // copied into stage queue, buffer is free for next encode right away
+            if (!subscriber.sender.offer(subscriber, buf)) {
+                subscriber.congestion.onSend(true);
+                metrics.sendDrops.incrementAndGet();
+            }
+            return;
+        }
+
+        int n = buf.remaining();
+        try {
+            DatagramChannel chan = subscriber.channel;
+            int sent = chan != null ? chan.write(buf) : channel.send(buf, subscriber.addr);
+            subscriber.congestion.onSend(sent <= 0);
+            if (sent > 0) {
+                metrics.bytesSent.addAndGet(n);
+                metrics.packetsSent.incrementAndGet();
+            } else {
+                metrics.sendDrops.incrementAndGet();
+            }
+        } catch (IOException ex) {
+            Log.e(TAG, "send failed: " + subscriber.addr, ex);
+            Metrics.inc(metrics.sendErrors);
+            subscriber.failed = true;
+        }
+    }
+
+    private final long nextSendDeadline() {
+        long deadline = Long.MAX_VALUE;
+        for (int i = 0; i < subscribers.size(); ++i) {
+            Subscriber subscriber = subscribers.get(i);
+            deadline = Math.min(deadline, subscriber.getBatchDeadline());
+            deadline = Math.min(deadline, subscriber.getRetransmitDeadline());
+        }
+        if (replay != null) {
+            deadline = Math.min(deadline, replay.deadline);
+        }
+        return deadline;
+    }
+
+    //==============================================================================
+    // Recording
+    //==============================================================================
+
+    private final void initRecorder() {
+        File base = getExternalFilesDir(null);
+        recordDir = new File(base != null ? base : getFilesDir(), "recordings");
+        if (record) {
+            try {
+                recorder = new RecordingWriter(recordDir, recordSegmentSize * 1024 * 1024, recordMaxSegments);
+                Log.d(TAG, "recording to " + recordDir + " sensors " + recordSensors);
+            } catch (IOException ex) {
+                Log.e(TAG, "initRecorder", ex);
+            }
+        }
+        for (String type : recordSensors.split(",")) {
+            if (type.trim().length() > 0) {
+                markRecorded(Integer.parseInt(type.trim()));
+            }
+        }
+        updateRecordedSensors();
+    }
+
+    private final void markRecorded(int type) {
+        for (SensorContext context : sensors) {
+            if (context.type == type) {
+                context.recorded = true;
+            }
+        }
+    }
+
+    // recorded sensors follow recorder, live subscribers only raise their rate
+    private final void updateRecordedSensors() {
+        for (SensorContext context : sensors) {
+            if (context.recorded) {
+                updateSensor(context);
+            }
+        }
+    }
+
+    private final void shutdownRecorder() {
+        stopReplay();
+        if (recorder != null) {
+            Log.d(TAG, "shutdownRecorder");
+            recorder.close();
+            recorder = null;
+        }
+    }
+
+    // worker side of ring, sensor callback only copies into ring as before
+    private final void recordSample(SampleRing.Sample sample) {
+        try {
+            recorder.append(sample.uid, sample.timestamp, sample.values, sample.count);
+        } catch (IOException ex) {
+            Log.e(TAG, "recording failed", ex);
+            recorder.close();
+            recorder = null;
+            updateRecordedSensors();
+        }
+    }
+
+    // one replay at a time, new request takes over
+    private final void reqReplay(SocketAddress addr) throws Exception {
+        Log.d(TAG, "reqReplay");
+        Packets.readReplayRequest(buffer, replayRequest);
+        boolean success = false;
+
+        if (replayRequest.password.equals(password) && recordDir != null) {
+            stopReplay();
+            RecordingReader reader = new RecordingReader(recordDir);
+            try {
+                success = reader.seek(replayRequest.from, replayRequest.to);
+            } catch (IOException ex) {
+                Log.e(TAG, "replay seek failed", ex);
+            }
+            if (success) {
+                boolean realTime = (replayRequest.flags & REPLAY_FLAG_REAL_TIME) != 0;
+                replay = new ReplaySession(addr, reader, realTime, SystemClock.elapsedRealtime());
+            } else {
+                reader.close();
+            }
+        }
+
+        Packets.writeReplayResponse(buffer, success);
+        sendPacket(channel, buffer, addr);
+    }
+
+    private final void pumpReplay(long now) throws Exception {
+        ReplaySession r = replay;
+        int packets = 0;
+        for (; ; ) {
+            if (!r.pending) {
+                boolean more;
+                try {
+                    more = r.reader.next(r.sample);
+                } catch (IOException ex) {
+                    Log.e(TAG, "replay read failed", ex);
+                    more = false;
+                }
+                // reader skips records outside range, log order isn't timestamp order
+                if (!more) {
+                    stopReplay();
+                    return;
+                }
+                if (r.firstTimestamp == Long.MIN_VALUE) {
+                    r.firstTimestamp = r.sample.timestamp;
+                }
+                r.pending = true;
+            }
+
+            if (r.realTime) {
+                long due = r.started + (r.sample.timestamp - r.firstTimestamp) / 1000000;
+                if (due > now) {
+                    flushReplay(r);
+                    r.deadline = due;
+                    return;
+                }
+            } else if (packets >= ReplaySession.BURST) {
+                // yield to live streaming, continue next iteration
+                r.deadline = now;
+                return;
+            }
+
+            int size = Packets.sensorRecordSize(r.sample.count);
+            if (r.batchCount > 0 && (r.batchCount >= 0xFF || r.batch.position() + size > ReplaySession.MTU)) {
+                flushReplay(r);
+                packets++;
+            }
+            if (r.batchCount == 0) {
+                Packets.writeReplayBatch(r.batch);
+            }
+            Packets.writeSensorRecord(r.batch, r.sample.uid, r.sample.timestamp, r.sample.values, r.sample.count);
+            r.batchCount++;
+            r.pending = false;
+        }
+    }
+
+    // failed send loses the batch only, same as a dropped datagram
+    private final void flushReplay(ReplaySession r) {
+        if (r.batchCount == 0) {
+            return;
+        }
+        Packets.finishSensorEventBatch(r.batch, r.batchCount);
+        r.batchCount = 0;
+        try {
+            sendPacket(channel, r.batch, r.addr);
+        } catch (IOException ex) {
+            Log.e(TAG, "replay send failed: " + r.addr, ex);
+        }
+    }
+
+    // remaining records and empty batch marking end
+    private final void stopReplay() {
+        ReplaySession r = replay;
+        if (r == null) {
+            return;
+        }
+        Log.d(TAG, "stopReplay " + r.addr);
+        replay = null;
+        r.reader.close();
+        try {
+            flushReplay(r);
+            Packets.writeReplayBatch(r.batch);
+            sendPacket(channel, r.batch, r.addr);
+        } catch (IOException ex) {
+            // IGNORE
+        }
+    }
+
+    //==============================================================================
+    // Subscribers
+    //==============================================================================
+
+    private final Subscriber getSubscriber(SocketAddress addr) {
+        Subscriber subscriber = subscriberMap.get(addr);
+        if (subscriber == null) {
+            Log.d(TAG, "addSubscriber " + addr);
+            subscriber = new Subscriber(addr, sensors.size());
+            if (addr instanceof StreamConnection.Address) {
+                subscriber.stream = ((StreamConnection.Address) addr).connection;
+            } else if (sendStages.length > 0) {
+                subscriber.sender = sendStages[nextSendStage++ % sendStages.length];
+            }
+            subscriberMap.put(addr, subscriber);
+            subscribers.add(subscriber);
+            clientAddr = subscribers.get(0).addr;
+            if (addr.equals(multicastAddr)) {
+                connectMulticast(subscriber);
+            } else if (connectedSend && subscriber.stream == null) {
+                connectSubscriber(subscriber);
+            }
+        }
+        return subscriber;
+    }
+
+    // connected channel skips per send address handling, on failure subscriber stays on service channel
+    private final void connectSubscriber(Subscriber subscriber) {
+        DatagramChannel chan = null;
+        try {
+            chan = DatagramChannel.open();
+            chan.configureBlocking(false);
+            chan.socket().setReuseAddress(true);
+            chan.socket().bind(new InetSocketAddress(port));
+            chan.connect(subscriber.addr);
+            chan.register(selector, SelectionKey.OP_READ);
+            subscriber.channel = chan;
+        } catch (IOException ex) {
+            Log.e(TAG, "connectSubscriber " + subscriber.addr, ex);
+            closeChannel(chan);
+        }
+    }
+
+    // group stream is one more subscriber, every sample is encoded once no matter how many receivers joined
+    private final void connectMulticast(Subscriber subscriber) {
+        acquireMulticastLock();
+        DatagramChannel chan = null;
+        try {
+            chan = DatagramChannel.open();
+            chan.configureBlocking(false);
+            // own socket keeps ttl away from unicast replies, older releases send with default ttl 1
+            if (android.os.Build.VERSION.SDK_INT >= 24) {
+                chan.setOption(StandardSocketOptions.IP_MULTICAST_TTL, multicastTtl);
+            }
+            chan.connect(subscriber.addr);
+            subscriber.channel = chan;
+        } catch (IOException ex) {
+            Log.e(TAG, "connectMulticast " + subscriber.addr, ex);
+            closeChannel(chan);
+        }
+    }
+
+    private final void acquireMulticastLock() {
+        if (mcastLock == null) {
+            WifiManager wm = (WifiManager) getApplicationContext().getSystemService(WIFI_SERVICE);
+            mcastLock = wm.createMulticastLock(TAG + "::mcastLock");
+            mcastLock.setReferenceCounted(false);
+            mcastLock.acquire();
+        }
+    }
+
+    private final void releaseMulticastLock() {
+        if (mcastLock != null) {
+            mcastLock.release();
+            mcastLock = null;
+        }
+    }
+
+    private final void releaseSubscriber(Subscriber subscriber) {
+        if (subscriber.addr.equals(multicastAddr)) {
+            releaseMulticastLock();
+        }
+        closeChannel(subscriber.channel);
+        subscriber.channel = null;
+        framePool.release(subscriber.batch.getFrame());
+        subscriber.batch.setFrame(null);
+    }
+
+    private final void removeSubscriber(Subscriber subscriber) {
+        Log.d(TAG, "removeSubscriber " + subscriber.addr);
+        subscriberMap.remove(subscriber.addr);
+        subscribers.remove(subscriber);
+        clientAddr = subscribers.isEmpty() ? null : subscribers.get(0).addr;
+        releaseSubscriber(subscriber);
+
+        for (int uid = 0; uid < subscriber.rates.length; ++uid) {
+            if (subscriber.isEnabled(uid)) {
+                subscriber.setEnabled(uid, false, 0);
+                SensorContext context = findSensorContext(uid);
+                if (context != null) {
+                    updateSensor(context);
+                }
+            }
+        }
+        if (!isSampling()) {
+            sensorSamples.clear();
+            triggerSamples.clear();
+        }
+    }
+
+    private final void removeFailedSubscribers() {
+        for (int i = subscribers.size() - 1; i >= 0; --i) {
+            Subscriber subscriber = subscribers.get(i);
+            if (subscriber.failed) {
+                removeSubscriber(subscriber);
+            }
+        }
+    }
+
+    private final void clearSubscribers() {
+        for (int i = 0; i < subscribers.size(); ++i) {
+            releaseSubscriber(subscribers.get(i));
+        }
+        subscriberMap.clear();
+        subscribers.clear();
+        clientAddr = null;
+    }
+
+    //==============================================================================
+    // Sensors
+    //==============================================================================
+
+    private final void initSensors() throws IOException {
+        Log.d(TAG, "initSensors");
+        if (sensorManager != null || sensors.size() > 0) {
+            shutdownSensors();
+        }
+        if (syntheticCount > 0) {
+            initSyntheticSensors();
+            return;
+        }
+
+        sensorManager = (SensorManager) getSystemService(Context.SENSOR_SERVICE);
+
+        // keeps sensor delivery away from UI work on main looper, trigger sensors have no handler overload
+        if (useSensorThread) {
+            sensorThread = new HandlerThread("SensorThread", threadPriority);
+            sensorThread.start();
+            sensorHandler = new Handler(sensorThread.getLooper());
+        }
+        List<Sensor> sensorList = sensorManager.getSensorList(Sensor.TYPE_ALL);
         int uid = 0;
 
         for (Sensor s : sensorList) {
             Log.d(TAG, s.toString());
             SensorContext context = new SensorContext(s, uid);
             sensors.add(context);
+            sensorsByRef.put(s, context);
             uid++;
         }
+        if (useFusion) {
+            initFusion();
+        }
+        sensorsByUid = sensors.toArray(new SensorContext[sensors.size()]);
+        buildSensorCache();
 
         if (android.os.Build.VERSION.SDK_INT >= 18) {
             triggerListener = new TriggerEventListener() {
                 @Override
                 public void onTrigger(TriggerEvent event) {
-                    synchronized (triggerEvents) {
-                        triggerEvents.add(event);
+                    SensorContext context = findSensorContext(event.sensor);
+                    if (context != null) {
+                        metrics.countIn(context.uid);
+                        triggerSamples.offer(context.uid, event.timestamp, event.values);
+                        notifyWorker();
+                    }
+                }
+            };
+        }
+        // onFlushCompleted tells when samples queued in FIFO before unregister have all arrived
+        flushListener = this;
+        if (android.os.Build.VERSION.SDK_INT >= 19) {
+            flushListener = new SensorEventListener2() {
+                @Override
+                public void onSensorChanged(SensorEvent event) {
+                    SensorBroadcasterService.this.onSensorChanged(event);
+                }
+
+                @Override
+                public void onAccuracyChanged(Sensor sensor, int accuracy) {
+                    SensorBroadcasterService.this.onAccuracyChanged(sensor, accuracy);
+                }
+
+                @Override
+                public void onFlushCompleted(Sensor sensor) {
+                    SensorContext context = findSensorContext(sensor);
+                    if (context != null) {
+                        context.flushed = true;
+                        notifyWorker();
                     }
                 }
             };
         }
+        sensorSource = new HardwareSensorSource(sensorManager, flushListener, triggerListener, sensorHandler);
+        for (SensorContext context : sensors) {
+            if (context.sensor != null) {
+                context.source = sensorSource;
+            }
+        }
+    }
+
+    // generated sensors instead of hardware ones, end to end benchmarks on devices or emulators without sensors
+    private final void initSyntheticSensors() throws IOException {
+        int count = Math.min(syntheticCount, 0xFF);
+        SyntheticSource generator = new SyntheticSource(count, new SyntheticSource.Sink() {
+            @Override
+            public void onSample(int uid, long timestamp, float[] values) {
+                metrics.countIn(uid);
+                sensorSamples.offer(uid, timestamp, values);
+                notifyWorker();
+            }
+        }) {
+            @Override
+            protected long now() {
+                return clockNanos();
+            }
+        };
+        sensorSource = new SyntheticSensorSource(generator, syntheticRate);
+        for (int uid = 0; uid < count; ++uid) {
+            SensorContext context = new SensorContext(uid, Sensor.TYPE_ACCELEROMETER, "Synthetic " + uid);
+            context.source = sensorSource;
+            sensors.add(context);
+        }
+        sensorsByUid = sensors.toArray(new SensorContext[sensors.size()]);
+        buildSensorCache();
+        Log.d(TAG, "synthetic sensors: " + sensors.size() + " fastest: " + syntheticRate + " Hz");
+    }
+
+    // virtual sensor after hardware ones, needs at least gyroscope and accelerometer
+    private final void initFusion() {
+        SensorContext gyro = findSensorContext(sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE));
+        SensorContext accel = findSensorContext(sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER));
+        SensorContext mag = findSensorContext(sensorManager.getDefaultSensor(Sensor.TYPE_MAGNETIC_FIELD));
+        if (gyro == null || accel == null) {
+            Log.d(TAG, "fusion not available");
+            return;
+        }
+        // uid is u8 on the wire, writeU8 would clamp it onto another sensor
+        if (sensors.size() > 0xFF) {
+            Log.e(TAG, "fusion left out, no free uid: sensors=" + sensors.size());
+            return;
+        }
+
+        SensorContext context = new SensorContext(sensors.size(), SENSOR_TYPE_ORIENTATION_FUSION, mag != null ? "Orientation Fusion (MARG)" : "Orientation Fusion (IMU)");
+        sensors.add(context);
+        fusion = new FusionStage(context.uid, gyro.uid, accel.uid, mag != null ? mag.uid : -1, fusionBeta);
+        Log.d(TAG, "fusion uid=" + context.uid + " beta=" + fusionBeta);
+    }
+
+    // discovery responses change only with sensor list, so they are encoded once
+    private final void buildSensorCache() throws IOException {
+        detectResponse = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        Packets.writeDetectDeviceResponse(detectResponse);
+        detectResponse.flip();
+        pingResponse = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        Packets.writePingDeviceResponse(pingResponse);
+        pingResponse.flip();
+
+        // legacy list leaves out whatever doesn't fit one packet
+        ByteBuffer list = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        int n = Packets.writeEnumerateSensorsResponse(list, sensors.size());
+        int written = 0;
+        while (written < n) {
+            SensorContext context = sensors.get(written);
+            if (list.position() + Packets.sensorInfoSize(context.name) > list.capacity()) {
+                Log.e(TAG, "enumerate response truncated to " + written + " sensors");
+                break;
+            }
+            Packets.writeSensorInfo(list, context.uid, context.type, context.name);
+            written++;
+        }
+        Packets.finishEnumerateSensorsResponse(list, written);
+        list.flip();
+        sensorList = list;
+
+        sensorPages.clear();
+        ByteBuffer entry = ByteBuffer.allocate(MAX_PACKET_SIZE);
+        ByteBuffer page = null;
+        int count = 0;
+        for (int i = 0; i < sensors.size() && i <= 0xFF; ++i) {
+            entry.clear();
+            Packets.writeSensorDetails(entry, getSensorDetails(sensors.get(i)));
+            entry.flip();
+            if (page != null && page.position() + entry.remaining() > ENUMERATE_PAGE_SIZE) {
+                Packets.finishEnumeratePage(page, count);
+                page.flip();
+                page = null;
+            }
+            if (page == null) {
+                page = ByteBuffer.allocateDirect(ENUMERATE_PAGE_SIZE);
+                Packets.writeEnumeratePage(page, sensorPages.size());
+                sensorPages.add(page);
+                count = 0;
+            }
+            page.put(entry);
+            count++;
+        }
+        if (page != null) {
+            Packets.finishEnumeratePage(page, count);
+            page.flip();
+        }
+        for (int i = 0; i < sensorPages.size(); ++i) {
+            Packets.setEnumeratePageCount(sensorPages.get(i), sensorPages.size());
+        }
+        Log.d(TAG, "sensor pages: " + sensorPages.size());
+    }
+
+    private final Packets.SensorDetails getSensorDetails(SensorContext context) {
+        Packets.SensorDetails d = sensorDetails;
+        d.uid = context.uid;
+        d.type = context.type;
+        d.name = context.name;
+
+        if (context.source == null) {
+            // fusion output follows gyroscope
+            Sensor gyro = sensors.get(fusion.gyroUid).sensor;
+            d.vendor = "SensorBroadcaster";
+            d.version = 1;
+            d.resolution = QUATERNION_SCALE;
+            d.maxRange = 1;
+            d.power = gyro.getPower();
+            d.minDelay = gyro.getMinDelay();
+            d.maxDelay = 0;
+            d.fifoReserved = 0;
+            d.fifoMax = 0;
+            d.reportingMode = 0; // continuous
+            d.flags = SENSOR_FLAG_VIRTUAL;
+            return d;
+        }
+
+        context.source.getDetails(context, d);
+        return d;
     }
 
     private final void shutdownSensors() {
         Log.d(TAG, "shutdownSensors");
         disableAllSensors();
+        if (sensorSource != null) {
+            sensorSource.shutdown();
+            sensorSource = null;
+        }
+        fusion = null;
+        triggerListener = null;
+        flushListener = null;
+        if (sensorThread != null) {
+            sensorThread.quit();
+            sensorThread = null;
+            sensorHandler = null;
+        }
         sensors.clear();
+        sensorList = null;
+        sensorPages.clear();
+        sensorsByUid = new SensorContext[0];
+        sensorsByRef.clear();
     }
 
-    private final boolean enableSensor(int id, boolean enabled, int rate) {
-        SensorContext context = findSensorContext(id);
-        if (context == null) {
-            Log.e(TAG, "enableSensor: not found: id=" + id);
-            return false;
+    private final boolean updateSensor(SensorContext context) {
+        boolean wasEnabled = context.enabled;
+        boolean enabled = applySensorRate(context);
+        if (wasEnabled != enabled) {
+            enabledSensorCount += enabled ? 1 : -1;
+            updateWakelock();
         }
-        if (context.enabled != enabled) {
+        return enabled;
+    }
+
+    // registers sensor once at fastest rate requested by any subscriber
+    private final boolean applySensorRate(SensorContext context) {
+        int rate = requestedRate(context.uid);
+        if (context.source == null) {
+            return applyFusionRate(context, rate);
+        }
+        int latency = requestedLatency(context.uid);
+
+        if (rate == Subscriber.RATE_DISABLED) {
             if (context.enabled) {
-                unregisterListener(context.sensor);
+                unregisterListener(context);
                 context.enabled = false;
-            } else {
-                context.enabled = registerListener(context.sensor, rate);
             }
+            return false;
         }
+        if (context.enabled && context.rate == rate && context.latency == latency) {
+            return true;
+        }
+        if (context.enabled) {
+            unregisterListener(context);
+        }
+        context.enabled = registerListener(context, rate, latency);
+        context.rate = rate;
+        context.latency = latency;
         return context.enabled;
     }
 
-    private final boolean registerListener(Sensor sensor, int rate) {
-        Log.d(TAG, "registerListener sensor=" + sensor.getName() + " rate=" + rate);
-        boolean success = false;
+    // fastest of subscribers' rates, fusion inputs also run at fusion rate, recorded sensors at least at record rate
+    private final int requestedRate(int uid) {
+        int rate = Subscriber.RATE_DISABLED;
+        long period = Long.MAX_VALUE;
+        for (int i = 0; i < subscribers.size(); ++i) {
+            Subscriber subscriber = subscribers.get(i);
+            if (subscriber.isEnabled(uid)) {
+                long p = ratePeriodUs(subscriber.rates[uid]);
+                if (p < period) {
+                    period = p;
+                    rate = subscriber.rates[uid];
+                }
+            }
+        }
+        if (fusionRate != Subscriber.RATE_DISABLED && fusion.isInput(uid) && ratePeriodUs(fusionRate) < period) {
+            rate = fusionRate;
+            period = ratePeriodUs(fusionRate);
+        }
+        if (isRecorded(uid) && ratePeriodUs(recordRate) < period) {
+            rate = recordRate;
+        }
+        return rate;
+    }
 
-        // LOL android is so fucked up
-        if (android.os.Build.VERSION.SDK_INT < 18) {
-            success = sensorManager.registerListener(this, sensor, rate);
-        } else if (android.os.Build.VERSION.SDK_INT < 21) {
-            success = sensorManager.registerListener(this, sensor, rate);
-            if (!success) {
-                success = sensorManager.requestTriggerSensor((TriggerEventListener) triggerListener, sensor);
+    // lowest latency any subscriber of sensor accepts, hardware FIFO may hold samples that long
+    private final int requestedLatency(int uid) {
+        int latency = Integer.MAX_VALUE;
+        for (int i = 0; i < subscribers.size(); ++i) {
+            Subscriber subscriber = subscribers.get(i);
+            if (subscriber.isEnabled(uid)) {
+                latency = Math.min(latency, subscriber.latencies[uid]);
             }
-        } else {
-            if (sensor.getReportingMode() == Sensor.REPORTING_MODE_ONE_SHOT) {
-                success = sensorManager.requestTriggerSensor((TriggerEventListener) triggerListener, sensor);
-            } else {
-                success = sensorManager.registerListener(this, sensor, rate);
+        }
+        if ((fusionRate != Subscriber.RATE_DISABLED && fusion.isInput(uid)) || isRecorded(uid)) {
+            latency = Math.min(latency, getDefaultLatency());
+        }
+        return latency != Integer.MAX_VALUE ? latency : 0;
+    }
+
+    private final boolean isRecorded(int uid) {
+        SensorContext context = findSensorContext(uid);
+        return recorder != null && context != null && context.recorded;
+    }
+
+    // latency of sensors enabled with PK_REQ_ENABLE_SENSOR
+    private final int getDefaultLatency() {
+        return lowPower ? (int) (maxReportLatency * 1000) : 0;
+    }
+
+    // virtual sensor has no listener, it keeps its inputs registered while enabled
+    private final boolean applyFusionRate(SensorContext context, int rate) {
+        if (rate != fusionRate) {
+            if (fusionRate == Subscriber.RATE_DISABLED) {
+                fusion.reset();
+            }
+            fusionRate = rate;
+            fusion.setPeriod(rate != Subscriber.RATE_DISABLED ? ratePeriodUs(rate) * 1000 : 0);
+            updateFusionInputs();
+            if (rate != Subscriber.RATE_DISABLED && !(findSensorContext(fusion.gyroUid).enabled && findSensorContext(fusion.accelUid).enabled)) {
+                Log.e(TAG, "fusion inputs not available");
+                fusionRate = Subscriber.RATE_DISABLED;
+                updateFusionInputs();
             }
         }
-        return success;
+        context.enabled = fusionRate != Subscriber.RATE_DISABLED;
+        context.rate = rate;
+        return context.enabled;
+    }
+
+    private final void updateFusionInputs() {
+        updateSensor(findSensorContext(fusion.gyroUid));
+        updateSensor(findSensorContext(fusion.accelUid));
+        if (fusion.magUid >= 0) {
+            updateSensor(findSensorContext(fusion.magUid));
+        }
     }
 
-    private final void unregisterListener(Sensor sensor) {
-        Log.d(TAG, "unregisterListener sensor=" + sensor.getName());
+    final static long ratePeriodUs(int rate) {
+        switch (rate) {
+            case SensorManager.SENSOR_DELAY_FASTEST:
+                return 0;
+            case SensorManager.SENSOR_DELAY_GAME:
+                return 20000;
+            case SensorManager.SENSOR_DELAY_UI:
+                return 66667;
+            case SensorManager.SENSOR_DELAY_NORMAL:
+                return 200000;
+        }
+        return rate;
+    }
 
-        sensorManager.unregisterListener(this, sensor);
+    private final boolean registerListener(SensorContext context, int rate, int latency) {
+        // finishDrains registers at context's rate and latency once flush completed
+        if (context.draining) {
+            return true;
+        }
+        Log.d(TAG, "registerListener sensor=" + context.name + " rate=" + rate + " latency=" + latency);
+        return context.source.register(context, rate, latency);
+    }
 
-        if (triggerListener != null && android.os.Build.VERSION.SDK_INT >= 18) {
-            sensorManager.cancelTriggerSensor((TriggerEventListener) triggerListener, sensor);
+    // unregister drops samples still queued in hardware FIFO, so it waits for flush to deliver them
+    private final void unregisterListener(SensorContext context) {
+        if (context.draining || startDrain(context)) {
+            return;
         }
+        Log.d(TAG, "unregisterListener sensor=" + context.name);
+        context.source.unregister(context);
     }
 
-    private final void disableAllSensors() {
-        Log.d(TAG, "disableAllSensors");
-        if (sensorManager != null) {
-            try {
-                sensorManager.unregisterListener(this);
-            } catch (Exception ex) {
-                // IGNORE
+    private final boolean startDrain(SensorContext context) {
+        // nobody left to take the samples
+        if (!isSampling()) {
+            return false;
+        }
+        context.flushed = false;
+        if (!context.source.flush(context)) {
+            return false;
+        }
+        Log.d(TAG, "flushSensor sensor=" + context.name);
+        context.draining = true;
+        context.drainDeadline = SystemClock.elapsedRealtime() + SENSOR_DRAIN_TIMEOUT;
+        drainingSensorCount++;
+        return true;
+    }
+
+    // flushed samples precede onFlushCompleted on sensor thread, they are in sample ring by now
+    private final void finishDrains(long now) {
+        for (SensorContext context : sensors) {
+            if (!context.draining || !(context.flushed || now >= context.drainDeadline)) {
+                continue;
+            }
+            if (!context.flushed) {
+                Log.w(TAG, "flush timed out sensor=" + context.name);
+            }
+            context.draining = false;
+            drainingSensorCount--;
+            Log.d(TAG, "unregisterListener sensor=" + context.name);
+            context.source.unregister(context);
+            // enabled again or at new rate while draining
+            if (context.enabled && !registerListener(context, context.rate, context.latency)) {
+                context.enabled = false;
+                enabledSensorCount--;
+            }
+        }
+        updateWakelock();
+    }
+
+    // on stop samples still queued in FIFOs are sent before sensors shut down
+    private final void drainSensors() throws Exception {
+        for (SensorContext context : sensors) {
+            if (context.enabled && context.source != null && !context.draining) {
+                startDrain(context);
             }
-            if (triggerListener != null && android.os.Build.VERSION.SDK_INT >= 18) {
-                sensorManager.cancelTriggerSensor((TriggerEventListener) triggerListener, null);
-                triggerListener = null;
+            // nothing registered again once drained
+            context.enabled = false;
+        }
+        while (drainingSensorCount > 0) {
+            finishDrains(SystemClock.elapsedRealtime());
+            sendSensorEvents();
+            if (drainingSensorCount > 0) {
+                Thread.sleep(1);
             }
         }
+        for (int i = 0; i < subscribers.size(); ++i) {
+            flushBatch(subscribers.get(i));
+        }
+    }
+
+    private final void disableAllSensors() {
+        Log.d(TAG, "disableAllSensors");
+        if (sensorSource != null) {
+            sensorSource.unregisterAll();
+        }
         for (SensorContext context : sensors) {
             context.enabled = false;
+            context.draining = false;
         }
-        sensorEvents.clear();
-        triggerEvents.clear();
+        enabledSensorCount = 0;
+        drainingSensorCount = 0;
+        updateWakelock();
+        fusionRate = Subscriber.RATE_DISABLED;
+        sensorSamples.clear();
+        triggerSamples.clear();
     }
 
     @Override
@@ -541,36 +2186,32 @@ public class SensorBroadcasterService extends Service implements Runnable, Senso
 
     @Override
     public final void onSensorChanged(SensorEvent event) {
-        synchronized (sensorEvents) {
-            sensorEvents.add(event);
+        long now = SystemClock.elapsedRealtime();
+        if (now - lastSensorCallback > 1) {
+            Metrics.inc(metrics.bursts);
+        }
+        lastSensorCallback = now;
+
+        // copy values right away, framework may reuse event object
+        SensorContext context = findSensorContext(event.sensor);
+        if (context != null) {
+            metrics.countIn(context.uid);
+            sensorSamples.offer(context.uid, event.timestamp, event.values);
+            notifyWorker();
         }
     }
 
     private final SensorContext findSensorContext(Sensor sensor) {
-        for (SensorContext iter : sensors) {
-            if (iter.sensor == sensor) {
-                return iter;
-            }
-        }
-        return null;
+        return sensorsByRef.get(sensor);
     }
 
     private final SensorContext findSensorContext(int uid) {
-        for (SensorContext iter : sensors) {
-            if (iter.uid == uid) {
-                return iter;
-            }
-        }
-        return null;
+        SensorContext[] table = sensorsByUid;
+        return uid >= 0 && uid < table.length ? table[uid] : null;
     }
 
-    private final boolean haveEnabledSensors() {
-        for (SensorContext context : sensors) {
-            if (context.enabled) {
-                return true;
-            }
-        }
-        return false;
+    private final boolean haveSamples() {
+        return !sensorSamples.isEmpty() || !triggerSamples.isEmpty();
     }
 
     //==============================================================================
@@ -585,71 +2226,144 @@ public class SensorBroadcasterService extends Service implements Runnable, Senso
         return clientAddr;
     }
 
-    public final int getTotalBytesSent() {
-        return totalBytesSent;
+    public final int getSubscriberCount() {
+        return subscribers.size();
     }
 
-    public final int getTotalPacketsSent() {
-        return totalPacketsSent;
+    public final int getEnabledSensorCount() {
+        return enabledSensorCount;
     }
 
-    //==============================================================================
-    // Utils
-    //==============================================================================
+    public final long getTotalBytesSent() {
+        return metrics.bytesSent.get();
+    }
 
-    private final static int castU8(byte x) {
-        return ((int) x) & 0xff;
+    public final long getTotalPacketsSent() {
+        return metrics.packetsSent.get();
     }
 
-    private final static void writeBool(ByteBuffer buf, boolean x) {
-        buf.put((byte) (x ? 1 : 0));
+    public final long getSendErrorCount() {
+        return metrics.sendErrors.get();
     }
 
-    private final static int writeU8(ByteBuffer buf, int x) {
-        x = Math.min(x, 0xFF);
-        buf.put((byte) x);
-        return x;
+    public final long getSendDropCount() {
+        return metrics.sendDrops.get();
     }
 
-    private final static void writeArrayU8(ByteBuffer buf, byte[] data) {
-        int n = writeU8(buf, data.length);
-        for (int i = 0; i < n; ++i) {
-            buf.put(data[i]);
-        }
+    public final long getRetransmitCount() {
+        return metrics.retransmits.get();
     }
 
-    private final static void writeStringU8(ByteBuffer buf, String str) throws UnsupportedEncodingException {
-        byte[] data = str.getBytes("UTF-8");
-        writeArrayU8(buf, data);
+    public final long getCongestionSteps() {
+        return metrics.congestionSteps.get();
     }
 
-    private final static boolean readBool(ByteBuffer buf) {
-        return buf.get() != 0;
+    public final long getReliableDropCount() {
+        return metrics.reliableDropped.get();
     }
 
-    private final static int readU8(ByteBuffer buf) {
-        return castU8(buf.get());
+    public final int getQueueHighWater() {
+        return sensorSamples.getHighWaterMark();
     }
 
-    private final static String readStringU8(ByteBuffer buf) throws UnsupportedEncodingException {
-        int len = readU8(buf);
-        if (len > 0) {
-            byte[] data = new byte[len];
-            for (int i = 0; i < len; ++i) {
-                data[i] = buf.get();
-            }
-            return new String(data, 0, len, "UTF-8");
-        }
-        return new String();
+    public final boolean isEventDriven() {
+        return eventDriven;
+    }
+
+    public final boolean isLowPower() {
+        return lowPower;
+    }
+
+    public final boolean isMulticasting() {
+        return mcastLock != null;
+    }
+
+    public final boolean isRecording() {
+        return recorder != null;
+    }
+
+    public final long getWorkerWakeups() {
+        return metrics.wakeups.get();
+    }
+
+    public final long getSensorBursts() {
+        return metrics.bursts.get();
+    }
+
+    public final long getLatencyUs(double percentile) {
+        return metrics.latency.getValueAtPercentile(percentile) / 1000;
+    }
+
+    public final long getMaxLatencyUs() {
+        return metrics.latency.getMax() / 1000;
+    }
+
+    public final long getCallbackLatencyUs(double percentile) {
+        return metrics.callbackLatency.getValueAtPercentile(percentile) / 1000;
+    }
+
+    public final long getMaxCallbackLatencyUs() {
+        return metrics.callbackLatency.getMax() / 1000;
+    }
+
+    public final boolean isSensorThread() {
+        return useSensorThread;
+    }
+
+    public final int getThreadPriority() {
+        return threadPriority;
+    }
+
+    public final long getLoopTimeUs(double percentile) {
+        return metrics.loopTime.getValueAtPercentile(percentile) / 1000;
     }
 
-    private final static void initPacket(ByteBuffer buf, int packetId) {
-        buf.clear();
-        writeU8(buf, packetId);
+    public final long getMaxLoopTimeUs() {
+        return metrics.loopTime.getMax() / 1000;
     }
 
+    public final long getSampleOverflowCount() {
+        return sensorSamples.getOverflowCount() + triggerSamples.getOverflowCount();
+    }
+
+    //==============================================================================
+    // Utils
+    //==============================================================================
+
+    // TCP / WebSocket requesters get reply on their connection
     private final static void sendPacket(DatagramChannel chan, ByteBuffer buf, SocketAddress addr) throws IOException {
         buf.flip();
-        chan.send(buf, addr);
+        if (addr instanceof StreamConnection.Address) {
+            ((StreamConnection.Address) addr).connection.send(buf);
+        } else {
+            chan.send(buf, addr);
+        }
+    }
+
+    private final static int sourceOf(SocketAddress addr) {
+        if (addr instanceof StreamConnection.Address) {
+            addr = ((StreamConnection.Address) addr).connection.getRemoteAddress();
+        }
+        return ((InetSocketAddress) addr).getAddress().hashCode();
+    }
+
+    // cached packet stays intact, only its position moves
+    private final static void sendCached(DatagramChannel chan, ByteBuffer buf, SocketAddress addr) throws IOException {
+        buf.rewind();
+        if (addr instanceof StreamConnection.Address) {
+            ((StreamConnection.Address) addr).connection.send(buf);
+        } else {
+            chan.send(buf, addr);
+        }
+    }
+
+    private final static void closeChannel(DatagramChannel chan) {
+        if (chan != null) {
+            try {
+                chan.close();
+            } catch (IOException ex) {
+                // IGNORE
+            }
+        }
     }
 }
@@ -0,0 +1,33 @@
+package com.wongfei.sensorbroadcaster;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+
+// Worker side state of one sensor uid
+class SensorContext {
+    public Sensor sensor; // null for virtual and synthetic sensors
+    public SensorSource source; // null for virtual sensors, their inputs are registered instead
+    public int uid;
+    public int type;
+    public String name;
+    public int rate;
+    public int latency; // us
+    public boolean enabled;
+    public boolean recorded; // kept registered while recorder runs, subscribers or not
+    public boolean draining; // flush requested, unregister waits until FIFO contents arrived
+    public long drainDeadline; // ms, unregister anyway after
+    public volatile boolean flushed; // set on sensor thread by onFlushCompleted
+
+    public SensorContext(Sensor sensor, int uid) {
+        this(uid, sensor.getType(), sensor.getName());
+        this.sensor = sensor;
+    }
+
+    public SensorContext(int uid, int type, String name) {
+        this.uid = uid;
+        this.type = type;
+        this.name = name;
+        this.rate = SensorManager.SENSOR_DELAY_NORMAL;
+        this.enabled = false;
+    }
+}
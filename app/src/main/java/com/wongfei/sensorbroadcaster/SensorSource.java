@@ -0,0 +1,23 @@
+package com.wongfei.sensorbroadcaster;
+
+import com.wongfei.sensorbroadcaster.protocol.Packets;
+
+// Where samples of a sensor come from: SensorManager listeners or SyntheticSource generator.
+// Worker thread registers, samples arrive on source's own thread and go to worker through sample rings.
+interface SensorSource {
+
+    // rate is SENSOR_DELAY_* or period in us, latency is max report latency in us, 0 delivers right away
+    boolean register(SensorContext context, int rate, int latency);
+
+    void unregister(SensorContext context);
+
+    // delivers samples queued in hardware FIFO, listener gets onFlushCompleted after them; false when nothing is queued
+    boolean flush(SensorContext context);
+
+    void unregisterAll();
+
+    // fills source specific fields, uid, type and name are already set
+    void getDetails(SensorContext context, Packets.SensorDetails d);
+
+    void shutdown();
+}
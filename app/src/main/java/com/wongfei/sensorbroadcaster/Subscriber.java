@@ -0,0 +1,180 @@
+package com.wongfei.sensorbroadcaster;
+
+import com.wongfei.sensorbroadcaster.protocol.ClockSync;
+import com.wongfei.sensorbroadcaster.protocol.CongestionController;
+import com.wongfei.sensorbroadcaster.protocol.EventBatch;
+import com.wongfei.sensorbroadcaster.protocol.Packets;
+import com.wongfei.sensorbroadcaster.protocol.StreamConnection;
+
+import java.net.SocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// Per client stream state, owned by worker thread
+class Subscriber {
+
+    public final static int RATE_DISABLED = -1;
+
+    // largest record (compact, float values, 10 byte delta) in batch with all headers always fits
+    public final static int BATCH_MIN_MTU = SEQUENCE_HEADER_SIZE + CLOCK_HEADER_SIZE + 1 + 1 + 8
+            + Packets.compactRecordMaxSize(MAX_VALUES, 0);
+    public final static int BATCH_DEFAULT_MTU = 1400;
+    public final static int BATCH_DEFAULT_FLUSH_DEADLINE = 5;
+
+    public final SocketAddress addr;
+    public DatagramChannel channel = null; // connected to addr, null when sending through service channel
+    public int[] rates;
+    public int[] latencies; // max report latency in us per uid
+    public int enabledCount = 0;
+    public Decimator[] decimators;
+    public int decimatorCount = 0;
+    public float[] scales; // int16 scale per uid for compact batches, 0 means float
+    public int encodingCount = 0;
+
+    public int streamFlags = 0;
+    public int batchMtu = BATCH_DEFAULT_MTU;
+    public long batchFlushDeadline = BATCH_DEFAULT_FLUSH_DEADLINE;
+    public final EventBatch batch = new EventBatch(); // frame set while batching
+
+    public int sequence = 0;
+    public RetransmitRing retransmits = null;
+    public volatile boolean failed = false; // also raised by send stage
+    public SendStage sender = null; // null sends on worker thread
+    public StreamConnection stream = null; // TCP or WebSocket consumer, worker queues on connection directly
+    public int token = 0; // session token issued on first authenticated subscribe
+
+    public final CongestionController congestion = new CongestionController();
+    public int congestionLevel = 0; // level applied to stream
+    public boolean compactForced = false; // only for clients which negotiated stream flags or report loss
+    public boolean lossReporting = false; // sent PK_REQ_LOSS_REPORT
+    public int rateDivisor = 1;
+    public int[] admitted; // samples seen per uid while rate is divided
+
+    // written by subscriber's send stage only, folded into congestion on worker thread
+    public final AtomicLong stageSends = new AtomicLong(0);
+    public final AtomicLong stageDrops = new AtomicLong(0);
+    private long stageSendsSeen = 0;
+    private long stageDropsSeen = 0;
+
+    public final ClockSync clock = new ClockSync(); // subscriber's clock from its time sync pings
+    public long syncT1 = 0; // last answered ping, completed by subscriber's next one
+    public long syncT2 = 0;
+    public long syncT3 = 0;
+
+    public Subscriber(SocketAddress addr, int sensorCount) {
+        this.addr = addr;
+        this.rates = new int[sensorCount];
+        this.latencies = new int[sensorCount];
+        this.admitted = new int[sensorCount];
+        this.decimators = new Decimator[sensorCount];
+        this.scales = new float[sensorCount];
+        batch.setLimit(BATCH_DEFAULT_MTU);
+        for (int i = 0; i < sensorCount; ++i) {
+            rates[i] = RATE_DISABLED;
+        }
+    }
+
+    public final boolean isEnabled(int uid) {
+        return uid >= 0 && uid < rates.length && rates[uid] != RATE_DISABLED;
+    }
+
+    public final void setEnabled(int uid, boolean enabled, int rate) {
+        boolean wasEnabled = isEnabled(uid);
+        rates[uid] = enabled ? rate : RATE_DISABLED;
+        // counted by stored rate, enable with RATE_DISABLED must not count
+        boolean isEnabled = rates[uid] != RATE_DISABLED;
+        if (wasEnabled != isEnabled) {
+            enabledCount += isEnabled ? 1 : -1;
+            if (decimators[uid] != null) {
+                decimators[uid].reset();
+            }
+        }
+    }
+
+    public final void setDecimation(int uid, int mode, int rate) {
+        boolean wasSet = decimators[uid] != null;
+        boolean set = mode != DECIMATION_NONE && rate > 0;
+        decimators[uid] = set ? new Decimator(mode, rate) : null;
+        if (wasSet != set) {
+            decimatorCount += set ? 1 : -1;
+        }
+    }
+
+    public final void setEncoding(int uid, int encoding, float scale) {
+        boolean wasSet = scales[uid] > 0;
+        boolean set = encoding == ENCODING_INT16 && scale > 0;
+        scales[uid] = set ? scale : 0;
+        if (wasSet != set) {
+            encodingCount += set ? 1 : -1;
+        }
+    }
+
+    public final boolean isBatching() {
+        return (streamFlags & (STREAM_FLAG_BATCH | STREAM_FLAG_COMPACT | STREAM_FLAG_CLOCK)) != 0 || compactForced;
+    }
+
+    public final boolean isCompact() {
+        return (streamFlags & STREAM_FLAG_COMPACT) != 0 || compactForced;
+    }
+
+    // caller flushes batch first, batch packet type may change. Returns true when level went up.
+    public final boolean applyCongestion() {
+        int level = congestion.getLevel();
+        boolean raised = level > congestionLevel;
+        congestionLevel = level;
+        // legacy clients only know single events, they get rate divisor only
+        compactForced = congestion.isCompactForced() && (streamFlags != 0 || lossReporting);
+        rateDivisor = congestion.getRateDivisor();
+        return raised;
+    }
+
+    public final void collectStageSends() {
+        long sends = stageSends.get();
+        long drops = stageDrops.get();
+        congestion.onSends(sends - stageSendsSeen, drops - stageDropsSeen);
+        stageSendsSeen = sends;
+        stageDropsSeen = drops;
+    }
+
+    // continuous samples kept under congestion, one of rateDivisor per sensor
+    public final boolean admit(int uid) {
+        return rateDivisor <= 1 || admitted[uid]++ % rateDivisor == 0;
+    }
+
+    public final boolean isSequenced() {
+        return (streamFlags & STREAM_FLAG_SEQUENCE) != 0;
+    }
+
+    public final boolean isClocked() {
+        return (streamFlags & STREAM_FLAG_CLOCK) != 0;
+    }
+
+    public final boolean isReliable() {
+        return (streamFlags & STREAM_FLAG_RELIABLE_TRIGGERS) != 0;
+    }
+
+    // idle subscribers are dropped, same as old single client lost its stream with last sensor
+    public final boolean isIdle() {
+        return enabledCount == 0 && streamFlags == 0 && decimatorCount == 0 && encodingCount == 0;
+    }
+
+    public final void setStreamOptions(int flags, int mtu, int flushDeadline, Metrics metrics) {
+        streamFlags = flags;
+        batchMtu = Math.max(BATCH_MIN_MTU, Math.min(mtu, MAX_PACKET_SIZE));
+        batch.setLimit(batchMtu - (isSequenced() ? SEQUENCE_HEADER_SIZE : 0) - (isClocked() ? CLOCK_HEADER_SIZE : 0));
+        batchFlushDeadline = flushDeadline;
+        if (isReliable() && retransmits == null) {
+            retransmits = new RetransmitRing(metrics);
+        }
+    }
+
+    public final long getBatchDeadline() {
+        return batch.getCount() > 0 ? batch.getStarted() + batchFlushDeadline : Long.MAX_VALUE;
+    }
+
+    public final long getRetransmitDeadline() {
+        return retransmits != null ? retransmits.getDeadline() : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,63 @@
+package com.wongfei.sensorbroadcaster;
+
+import com.wongfei.sensorbroadcaster.protocol.Packets;
+import com.wongfei.sensorbroadcaster.protocol.SyntheticSource;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// Generated sensors instead of hardware ones, end to end benchmarks on devices or emulators without sensors.
+// Uid of context is generator's sensor index.
+class SyntheticSensorSource implements SensorSource {
+
+    private final SyntheticSource generator;
+    private final int fastestRate; // Hz of SENSOR_DELAY_FASTEST
+
+    public SyntheticSensorSource(SyntheticSource generator, int fastestRate) {
+        this.generator = generator;
+        this.fastestRate = fastestRate;
+        generator.start();
+    }
+
+    @Override
+    public final boolean register(SensorContext context, int rate, int latency) {
+        long period = Math.max(SensorBroadcasterService.ratePeriodUs(rate), 1000000L / fastestRate);
+        generator.setPeriod(context.uid, period * 1000);
+        return true;
+    }
+
+    @Override
+    public final void unregister(SensorContext context) {
+        generator.setPeriod(context.uid, 0);
+    }
+
+    @Override
+    public final boolean flush(SensorContext context) {
+        // generator delivers right away
+        return false;
+    }
+
+    @Override
+    public final void unregisterAll() {
+        generator.disableAll();
+    }
+
+    @Override
+    public final void getDetails(SensorContext context, Packets.SensorDetails d) {
+        d.vendor = "SensorBroadcaster";
+        d.version = 1;
+        d.resolution = 0;
+        d.maxRange = 1;
+        d.power = 0;
+        d.minDelay = 1000000 / fastestRate;
+        d.maxDelay = 0;
+        d.fifoReserved = 0;
+        d.fifoMax = 0;
+        d.reportingMode = 0; // continuous
+        d.flags = SENSOR_FLAG_VIRTUAL;
+    }
+
+    @Override
+    public final void shutdown() {
+        generator.stop();
+    }
+}
@@ -0,0 +1,127 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Time sync pings over simulated Wi-Fi in virtual time: exponential queuing jitter, power save spikes, loss.
+// Phone clock drifts against receiver clock. Phone side estimator is fed exactly like the service does
+// (request completes previous exchange), every 10 ms a sample timestamp is mapped to receiver clock and
+// compared with truth. Baseline is offset of last completed exchange alone.
+// usage: ClockSyncHarness [seconds] [drift ppm] [spike probability] [loss] [ping interval ms]
+public class ClockSyncHarness {
+
+    private final static long[] JITTER_US = {200, 1000, 5000, 20000}; // mean one way queuing delay
+    private final static long BASE_DELAY_NS = 1500000L;
+    private final static long SPIKE_MIN_NS = 20000000L;
+    private final static long SPIKE_MAX_NS = 200000000L;
+    private final static long SAMPLE_PERIOD_NS = 10000000L;
+    private final static long WARMUP_NS = 5000000000L;
+
+    private static Random random;
+    private static double drift;
+    private static double spikes;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 120;
+        drift = (args.length > 1 ? Double.parseDouble(args[1]) : 40) * 1e-6;
+        spikes = args.length > 2 ? Double.parseDouble(args[2]) : 0.05;
+        double loss = args.length > 3 ? Double.parseDouble(args[3]) : 0.02;
+        long interval = (args.length > 4 ? Long.parseLong(args[4]) : 250) * 1000000L;
+
+        System.out.println("sync error us, phone drift " + drift * 1e6 + " ppm, spikes " + spikes + ", loss " + loss
+                + ", ping every " + interval / 1000000 + " ms, " + seconds + " s");
+        System.out.println("jitter-us  last-p50  last-p99  last-max  sync-p50  sync-p99  sync-max  drift-ppm  rtt-us");
+        for (long jitter : JITTER_US) {
+            run(seconds * 1000000000L, jitter * 1000, loss, interval);
+        }
+    }
+
+    private static void run(long duration, long jitterNs, double loss, long interval) {
+        random = new Random(1);
+        ByteBuffer buf = ByteBuffer.allocate(Protocol.MAX_PACKET_SIZE);
+        Packets.TimeSync request = new Packets.TimeSync();
+        Packets.TimeSync response = new Packets.TimeSync();
+        ClockSync clock = new ClockSync();
+        Histogram last = new Histogram();
+        Histogram synced = new Histogram();
+
+        // requester (receiver) state
+        long previousT1 = 0;
+        long previousT4 = 0;
+        // responder (phone) state, same as Subscriber.syncT1..3
+        long syncT1 = 0;
+        long syncT2 = 0;
+        long syncT3 = 0;
+        long lastOffset = 0;
+        boolean haveLast = false;
+
+        long nextSample = 0;
+        for (long t = 0; t < duration; t += interval) {
+            long t1 = receiverClock(t);
+            Packets.writeTimeSyncRequest(buf, t1, previousT1, previousT4);
+            buf.flip();
+
+            long arrive = t + delay(jitterNs);
+            if (random.nextDouble() >= loss) {
+                Packets.readPacketId(buf);
+                Packets.readTimeSyncRequest(buf, request);
+                long t2 = phoneClock(arrive);
+                if (request.previousT1 != 0 && request.previousT1 == syncT1) {
+                    clock.add(syncT1, syncT2, syncT3, request.previousT4);
+                    lastOffset = ((syncT1 - syncT2) + (request.previousT4 - syncT3)) / 2;
+                    haveLast = true;
+                }
+                long processing = 50000 + (long) (random.nextDouble() * 500000);
+                long t3 = phoneClock(arrive + processing);
+                syncT1 = request.t1;
+                syncT2 = t2;
+                syncT3 = t3;
+
+                Packets.writeTimeSyncResponse(buf, request.t1, t2, t3);
+                buf.flip();
+                long back = arrive + processing + delay(jitterNs);
+                if (random.nextDouble() >= loss) {
+                    Packets.readPacketId(buf);
+                    Packets.readTimeSyncResponse(buf, response);
+                    previousT1 = response.t1;
+                    previousT4 = receiverClock(back);
+                }
+            }
+
+            // phone maps sample timestamps until next ping
+            for (; nextSample < t + interval; nextSample += SAMPLE_PERIOD_NS) {
+                if (nextSample < WARMUP_NS || !clock.isValid() || !haveLast) {
+                    continue;
+                }
+                long ts = phoneClock(nextSample);
+                long truth = receiverClock(nextSample);
+                last.record(Math.abs(ts + lastOffset - truth));
+                synced.record(Math.abs(ts + clock.getOffset(ts) - truth));
+            }
+        }
+
+        System.out.println(String.format("%9d %9d %9d %9d %9d %9d %9d %10.2f %7d",
+                jitterNs / 1000,
+                last.getValueAtPercentile(50) / 1000, last.getValueAtPercentile(99) / 1000, last.getMax() / 1000,
+                synced.getValueAtPercentile(50) / 1000, synced.getValueAtPercentile(99) / 1000, synced.getMax() / 1000,
+                -clock.getDrift() * 1e6, clock.getDelay() / 1000));
+    }
+
+    private static long delay(long jitterNs) {
+        long d = BASE_DELAY_NS + (long) (-Math.log(1 - random.nextDouble()) * jitterNs);
+        if (random.nextDouble() < spikes) {
+            d += SPIKE_MIN_NS + (long) (random.nextDouble() * (SPIKE_MAX_NS - SPIKE_MIN_NS));
+        }
+        return d;
+    }
+
+    // elapsedRealtimeNanos like, boot some hours ago, crystal off by drift
+    private static long phoneClock(long t) {
+        return 7200000000000L + t + (long) (t * drift);
+    }
+
+    // System.nanoTime like, unrelated origin
+    private static long receiverClock(long t) {
+        return -123456789012345L + t;
+    }
+}
@@ -0,0 +1,100 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// Compares plain batch records with compact ones for a 400 Hz 3 axis stream.
+// Each op encodes one sample, bytes per sample are printed once per trial.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompactEncodingBenchmark {
+
+    private final static int MTU = 1400;
+    private final static long PERIOD_NS = 2500000L;
+
+    @Param({"batch", "compactFloat", "compactInt16"})
+    public String format;
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(Protocol.MAX_PACKET_SIZE);
+    private float[][] values = new float[256][3];
+    private float scale = 0;
+    private boolean compact = false;
+    private long timestamp = 0;
+    private long base = 0;
+    private int count = 0;
+    private int index = 0;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < values.length; ++i) {
+            double t = i * 0.05;
+            values[i][0] = (float) (0.3 * Math.sin(t));
+            values[i][1] = (float) (9.81 + 0.1 * Math.cos(t));
+            values[i][2] = (float) (0.05 * Math.sin(3 * t));
+        }
+        compact = !format.equals("batch");
+        scale = format.equals("compactInt16") ? 0.001f : 0;
+
+        int samples = 0;
+        long bytes = 0;
+        begin();
+        for (int i = 0; i < 10000; ++i) {
+            if (append()) {
+                bytes += buffer.position();
+                samples += count;
+                begin();
+            }
+        }
+        System.out.println(format + ": " + String.format("%.2f", (double) bytes / samples) + " bytes/sample");
+        begin();
+    }
+
+    @Benchmark
+    public int encodeSample() {
+        if (append()) {
+            begin();
+        }
+        return count;
+    }
+
+    // returns true when batch is full and was not written to
+    private final boolean append() {
+        float[] v = values[index++ & 0xFF];
+        timestamp += PERIOD_NS;
+        if (compact) {
+            if (buffer.position() + Packets.compactRecordMaxSize(v.length, scale) > MTU) {
+                Packets.finishSensorEventBatch(buffer, count);
+                return true;
+            }
+            Packets.writeCompactRecord(buffer, 1, timestamp - base, v, v.length, scale);
+        } else {
+            if (buffer.position() + Packets.sensorRecordSize(v.length) > MTU) {
+                Packets.finishSensorEventBatch(buffer, count);
+                return true;
+            }
+            Packets.writeSensorRecord(buffer, 1, timestamp, v, v.length);
+        }
+        count++;
+        return false;
+    }
+
+    private final void begin() {
+        if (compact) {
+            Packets.writeCompactBatch(buffer, timestamp);
+        } else {
+            Packets.writeSensorEventBatch(buffer);
+        }
+        base = timestamp;
+        count = 0;
+    }
+}
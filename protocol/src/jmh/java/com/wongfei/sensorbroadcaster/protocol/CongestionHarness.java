@@ -0,0 +1,211 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+// Simulated Wi-Fi link in virtual time: sender socket buffer drained at per packet airtime, random air loss,
+// receiver reporting cumulative loss every CongestionController.INTERVAL_MS. Sender mirrors service:
+// one event packet per sample, compact batches and divided rates as controller raises level.
+// Link degrades for a while and recovers, run is done with and without controller.
+// usage: CongestionHarness [seconds] [congested from s] [congested to s] [loss during congestion 0..1]
+public class CongestionHarness {
+
+    private final static int[] RATES = {400, 400, 100}; // Hz per uid
+    private final static int SOCKET_BUFFER = 32 * 1024;
+    private final static int MTU = 1400;
+    private final static long FLUSH_DEADLINE_NS = 5000000L;
+    private final static long REPORT_DELAY_NS = 20000000L;
+    private final static double BIT_RATE = 20e6;
+
+    private static class Packet {
+        int size;
+        int samples;
+        long timestampSum;
+        long seq;
+    }
+
+    private static class Result {
+        long generated;
+        long delivered;
+        long socketDrops;
+        long airLost;
+        long packets;
+        double latencySumMs;
+        int maxLevel;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int congestedFrom = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int congestedTo = args.length > 2 ? Integer.parseInt(args[2]) : 25;
+        double congestedLoss = args.length > 3 ? Double.parseDouble(args[3]) : 0.03;
+
+        Result off = run(false, seconds, congestedFrom, congestedTo, congestedLoss, false);
+        Result on = run(true, seconds, congestedFrom, congestedTo, congestedLoss, true);
+
+        System.out.println();
+        System.out.println("mode        delivered    generated  socket-drop  air-lost  packets  avg-latency-ms  max-level");
+        print("fixed", off);
+        print("controlled", on);
+    }
+
+    private static void print(String name, Result r) {
+        System.out.println(String.format("%-10s %10d %12d %12d %9d %8d %15.1f %10d",
+                name, r.delivered, r.generated, r.socketDrops, r.airLost, r.packets,
+                r.delivered > 0 ? r.latencySumMs / r.delivered : 0, r.maxLevel));
+    }
+
+    private static Result run(boolean controlled, int seconds, int congestedFrom, int congestedTo, double congestedLoss, boolean verbose) {
+        Random random = new Random(1);
+        CongestionController cc = new CongestionController();
+        Result total = new Result();
+
+        ArrayDeque<Packet> socket = new ArrayDeque<>();
+        ArrayDeque<long[]> reports = new ArrayDeque<>(); // due, received, lost
+        int buffered = 0;
+        long airBusyUntil = 0;
+
+        ByteBuffer batch = ByteBuffer.allocate(Protocol.MAX_PACKET_SIZE);
+        int batchCount = 0;
+        long batchBase = 0;
+        long batchStarted = 0;
+        long batchTimestampSum = 0;
+        float[] values = new float[]{0.1f, -9.81f, 0.25f};
+
+        long[] next = new long[RATES.length];
+        int[] admitted = new int[RATES.length];
+        long seq = 0;
+        long received = 0;
+        long nextReport = CongestionController.INTERVAL_MS * 1000000L;
+
+        Result second = new Result();
+        if (verbose) {
+            System.out.println("  t  link       level  gen/s  out-pk/s  delivered/s  sock-drop  air-lost  latency-ms");
+        }
+
+        long step = 100000L; // 0.1 ms
+        long end = seconds * 1000000000L;
+        for (long now = 0; now < end; now += step) {
+            boolean congested = now >= congestedFrom * 1000000000L && now < congestedTo * 1000000000L;
+            // contention and retries multiply per packet airtime on busy AP
+            long overheadNs = congested ? 1500000L : 100000L;
+            double loss = congested ? congestedLoss : 0.001;
+
+            // link: one packet in the air at a time
+            while (!socket.isEmpty() && airBusyUntil <= now) {
+                Packet p = socket.poll();
+                buffered -= p.size;
+                airBusyUntil = Math.max(airBusyUntil, now) + overheadNs + (long) (p.size * 8 / BIT_RATE * 1e9);
+                if (random.nextDouble() < loss) {
+                    second.airLost++;
+                } else {
+                    received++;
+                    second.delivered += p.samples;
+                    second.latencySumMs += (p.samples * (double) airBusyUntil - p.timestampSum) / 1e6;
+                }
+            }
+
+            // receiver reports, applied after return trip
+            if (now >= nextReport) {
+                nextReport += CongestionController.INTERVAL_MS * 1000000L;
+                reports.add(new long[]{now + REPORT_DELAY_NS, received, seq - received});
+            }
+            while (!reports.isEmpty() && reports.peek()[0] <= now) {
+                long[] r = reports.poll();
+                cc.onLossReport(r[1], r[2]);
+            }
+
+            if (controlled && cc.update(now / 1000000L)) {
+                // batch type may change, send pending records first
+                if (batchCount > 0) {
+                    buffered += send(cc, socket, buffered, batch, true, batchCount, batchTimestampSum, seq++, second);
+                    batchCount = 0;
+                }
+            }
+            boolean compact = controlled && cc.isCompactForced();
+            int divisor = controlled ? cc.getRateDivisor() : 1;
+
+            // sensors
+            for (int uid = 0; uid < RATES.length; ++uid) {
+                long period = 1000000000L / RATES[uid];
+                while (next[uid] <= now) {
+                    long ts = next[uid];
+                    next[uid] += period;
+                    second.generated++;
+                    if (divisor > 1 && admitted[uid]++ % divisor != 0) {
+                        continue;
+                    }
+
+                    if (!compact) {
+                        batch.clear();
+                        Packets.writeSensorEvent(batch, uid, ts, values, values.length);
+                        buffered += send(cc, socket, buffered, batch, false, 1, ts, seq++, second);
+                        continue;
+                    }
+
+                    int size = Packets.compactRecordMaxSize(values.length, 0);
+                    if (batchCount > 0 && (batchCount >= 0xFF || batch.position() + size > MTU)) {
+                        buffered += send(cc, socket, buffered, batch, true, batchCount, batchTimestampSum, seq++, second);
+                        batchCount = 0;
+                    }
+                    if (batchCount == 0) {
+                        Packets.writeCompactBatch(batch, ts);
+                        batchBase = ts;
+                        batchStarted = now;
+                        batchTimestampSum = 0;
+                    }
+                    Packets.writeCompactRecord(batch, uid, ts - batchBase, values, values.length, 0);
+                    batchCount++;
+                    batchTimestampSum += ts;
+                }
+            }
+            if (batchCount > 0 && now - batchStarted >= FLUSH_DEADLINE_NS) {
+                buffered += send(cc, socket, buffered, batch, true, batchCount, batchTimestampSum, seq++, second);
+                batchCount = 0;
+            }
+
+            if ((now + step) % 1000000000L == 0) {
+                second.maxLevel = Math.max(second.maxLevel, cc.getLevel());
+                if (verbose) {
+                    System.out.println(String.format("%3d  %-9s %6d %6d %9d %12d %10d %9d %11.1f",
+                            (now + step) / 1000000000L, congested ? "congested" : "good", cc.getLevel(),
+                            second.generated, second.packets, second.delivered, second.socketDrops, second.airLost,
+                            second.delivered > 0 ? second.latencySumMs / second.delivered : 0));
+                }
+                total.generated += second.generated;
+                total.delivered += second.delivered;
+                total.socketDrops += second.socketDrops;
+                total.airLost += second.airLost;
+                total.packets += second.packets;
+                total.latencySumMs += second.latencySumMs;
+                total.maxLevel = Math.max(total.maxLevel, second.maxLevel);
+                second = new Result();
+            }
+        }
+        return total;
+    }
+
+    // returns bytes queued, 0 when socket buffer was full (datagram dropped like non-blocking send returning 0)
+    private static int send(CongestionController cc, ArrayDeque<Packet> socket, int buffered, ByteBuffer buf, boolean isBatch, int samples, long timestampSum, long seq, Result stats) {
+        if (isBatch) {
+            Packets.finishSensorEventBatch(buf, samples);
+        }
+        int size = buf.position() + Protocol.SEQUENCE_HEADER_SIZE;
+        buf.clear();
+        stats.packets++;
+        boolean drop = buffered + size > SOCKET_BUFFER;
+        cc.onSend(drop);
+        if (drop) {
+            stats.socketDrops++;
+            return 0;
+        }
+        Packet p = new Packet();
+        p.size = size;
+        p.samples = samples;
+        p.timestampSum = timestampSum;
+        p.seq = seq;
+        socket.add(p);
+        return size;
+    }
+}
@@ -0,0 +1,65 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// Cost of one orientation filter step per gyro sample, 400 Hz slowly rotating device.
+// Run with -prof gc to confirm zero allocation per update.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FusionBenchmark {
+
+    private final static float DT = 0.0025f;
+
+    @Param({"imu", "marg"})
+    public String mode;
+
+    private OrientationFilter filter = new OrientationFilter(0.1f);
+    private float[][] gyro = new float[256][3];
+    private float[][] accel = new float[256][3];
+    private float[][] mag = new float[256][3];
+    private float[] quaternion = new float[4];
+    private boolean marg = false;
+    private int index = 0;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < gyro.length; ++i) {
+            double t = i * DT;
+            gyro[i][0] = (float) (0.2 * Math.sin(t));
+            gyro[i][1] = (float) (0.1 * Math.cos(2 * t));
+            gyro[i][2] = 0.05f;
+            accel[i][0] = (float) (0.3 * Math.sin(t));
+            accel[i][1] = (float) (0.2 * Math.cos(t));
+            accel[i][2] = 9.81f;
+            mag[i][0] = 22.0f;
+            mag[i][1] = (float) (2.0 * Math.sin(t));
+            mag[i][2] = -40.0f;
+        }
+        marg = mode.equals("marg");
+    }
+
+    @Benchmark
+    public float[] update() {
+        int i = index++ & 0xFF;
+        float[] g = gyro[i];
+        float[] a = accel[i];
+        if (marg) {
+            float[] m = mag[i];
+            filter.updateMarg(g[0], g[1], g[2], a[0], a[1], a[2], m[0], m[1], m[2], DT);
+        } else {
+            filter.updateImu(g[0], g[1], g[2], a[0], a[1], a[2], DT);
+        }
+        filter.getQuaternion(quaternion);
+        return quaternion;
+    }
+}
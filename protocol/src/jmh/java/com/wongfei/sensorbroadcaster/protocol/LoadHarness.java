@@ -0,0 +1,456 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// End to end load without a phone: SyntheticSource -> SampleRing -> worker (encode once, batch and sequence per
+// subscriber with service's EventFrame / EventBatch) -> optional PacketStage send stages -> loopback UDP -> StreamReceiver.
+// Rate per sensor is stepped up, every step reports throughput, ring overflow, send drops, stream loss,
+// sensor timestamp to receive latency and bytes allocated per sample by generator, worker and send threads.
+// Highest step which delivered everything is reported as sustainable. Pipeline of 1 thread encodes and sends on
+// worker. With send stages n threads run worker plus n - 1 send stages with subscribers pinned round robin, like
+// senderThreads extra. With encode stages worker only hands every sample to n - 1 encoder threads, each encoding,
+// batching and sending the subscribers pinned to it.
+// usage: LoadHarness [sensors] [event|batch|compact] [seconds per step] [Hz per sensor,..] [subscribers] [threads,..]
+//        [send|encode]
+public class LoadHarness {
+
+    private final static int MTU = 1400;
+    private final static long FLUSH_DEADLINE_NS = 5000000L;
+    private final static long IDLE_PARK_NS = 500000000L;
+    private final static long WARMUP_NS = 1000000000L;
+    private final static double SUSTAINED = 0.999;
+    private final static int STAGE_QUEUE = 128;
+
+    private final static int MODE_EVENT = 0;
+    private final static int MODE_BATCH = 1;
+    private final static int MODE_COMPACT = 2;
+
+    // one subscriber: connected sender socket, its own receiver and batch state
+    private static class Stream {
+        DatagramChannel tx;
+        DatagramChannel rx;
+        StreamReceiver receiver;
+        Stage stage;
+        final EventBatch batch = new EventBatch();
+        int sequence = 0;
+    }
+
+    // encodes, batches and sends its subscribers' samples, on worker or on an encoder stage fed by worker
+    private class Encoder implements Runnable {
+        final Stream[] owned;
+        final SampleRing input = new SampleRing(4096, SampleRing.OVERFLOW_DROP_OLDEST);
+        final AtomicBoolean waiting = new AtomicBoolean(false);
+        final SampleRing.Sample sample = new SampleRing.Sample();
+        final EventFrame event = new EventFrame(); // encoded once for every owned subscriber
+        Thread thread;
+
+        Encoder(Stream[] owned) {
+            this.owned = owned;
+        }
+
+        @Override
+        public void run() {
+            while (running.get()) {
+                while (input.poll(sample)) {
+                    dispatch(sample);
+                }
+                long now = System.nanoTime();
+                long deadline = flushDue(now);
+                waiting.set(true);
+                if (input.isEmpty()) {
+                    LockSupport.parkNanos(deadline != Long.MAX_VALUE ? deadline - now : IDLE_PARK_NS);
+                }
+                waiting.set(false);
+            }
+        }
+
+        // service worker's rules: event encoded once, plain batches copy its record, compact records encoded per subscriber
+        void dispatch(SampleRing.Sample sample) {
+            long now = System.nanoTime();
+            if (mode != MODE_COMPACT) {
+                Packets.writeSensorEvent(event.body, sample.uid, sample.timestamp, sample.values, sample.count);
+                event.body.flip();
+            }
+            for (Stream s : owned) {
+                if (mode == MODE_EVENT) {
+                    send(s, event);
+                } else if (mode == MODE_BATCH) {
+                    if (!s.batch.fits(event.body.limit() - 1)) {
+                        flush(s);
+                    }
+                    s.batch.appendEvent(event.body, now);
+                } else {
+                    if (!s.batch.fits(Packets.compactRecordMaxSize(sample.count, 0))) {
+                        flush(s);
+                    }
+                    s.batch.appendCompact(sample.uid, sample.timestamp, sample.values, sample.count, 0, now);
+                }
+            }
+        }
+
+        // flushes batches past deadline, returns next deadline
+        long flushDue(long now) {
+            long deadline = Long.MAX_VALUE;
+            for (Stream s : owned) {
+                if (s.batch.getCount() > 0 && now - s.batch.getStarted() >= FLUSH_DEADLINE_NS) {
+                    flush(s);
+                }
+                if (s.batch.getCount() > 0) {
+                    deadline = Math.min(deadline, s.batch.getStarted() + FLUSH_DEADLINE_NS);
+                }
+            }
+            return deadline;
+        }
+    }
+
+    // same stage base as app's SendStage
+    private class Stage extends PacketStage {
+        Stage() {
+            super(STAGE_QUEUE, EventFrame.HEADER_SIZE + MAX_PACKET_SIZE);
+        }
+
+        @Override
+        protected void send(Object target, ByteBuffer packet) {
+            write(((Stream) target).tx, packet);
+        }
+    }
+
+    private final SampleRing ring = new SampleRing(4096, SampleRing.OVERFLOW_DROP_OLDEST);
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicBoolean workerWaiting = new AtomicBoolean(false);
+    private final AtomicLong packetsSent = new AtomicLong(0);
+    private final AtomicLong sendDrops = new AtomicLong(0);
+    private final AtomicLong delivered = new AtomicLong(0); // receiver thread only
+    private volatile Histogram latency = null;
+
+    private final int mode;
+    private final Stream[] streams;
+    private final Stage[] stages;
+    private final Encoder[] encoders;
+    private final Encoder encoder; // worker's own when there are no encoder stages
+    private final Selector selector;
+    private Thread worker;
+    private final SampleRing.Sample sample = new SampleRing.Sample();
+    private final float[][] forwarded = new float[MAX_VALUES + 1][]; // values of sample handed to encoders, by count
+
+    public static void main(String[] args) throws Exception {
+        int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        String modeName = args.length > 1 ? args[1] : "compact";
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        String[] rates = (args.length > 3 ? args[3] : "250,500,1000,2000,4000,8000").split(",");
+        int subscribers = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+        String[] threads = (args.length > 5 ? args[5] : "1").split(",");
+        boolean encodeStages = args.length > 6 && args[6].equals("encode");
+        int mode = modeName.equals("event") ? MODE_EVENT : modeName.equals("batch") ? MODE_BATCH : MODE_COMPACT;
+
+        System.out.println(sensors + " sensors, " + modeName + ", " + subscribers + " subscribers, "
+                + (encodeStages ? "encode" : "send") + " stages, " + seconds + " s per step, "
+                + Runtime.getRuntime().availableProcessors() + " cpus, latency in us");
+        ArrayList<String> summary = new ArrayList<>();
+        for (String t : threads) {
+            int n = Integer.parseInt(t.trim());
+            LoadHarness h = new LoadHarness(mode, subscribers, encodeStages ? 0 : n - 1, encodeStages ? n - 1 : 0);
+            int sustainable = h.run(sensors, seconds, rates);
+            summary.add(String.format("%d thread%s: %d samples/s", n, n > 1 ? "s" : "", sustainable));
+        }
+        System.out.println();
+        System.out.println("max sustainable (generated samples/s, every subscriber got all of them)");
+        for (String line : summary) {
+            System.out.println("  " + line);
+        }
+    }
+
+    private LoadHarness(int mode, int subscribers, int stageCount, int encoderCount) throws Exception {
+        this.mode = mode;
+        selector = Selector.open();
+        streams = new Stream[subscribers];
+        stages = new Stage[stageCount];
+        for (int i = 0; i < stages.length; ++i) {
+            stages[i] = new Stage();
+        }
+
+        StreamReceiver.Listener listener = new StreamReceiver.Listener() {
+            @Override
+            public void onSample(Packets.SensorSample s, long arrivalNs) {
+                delivered.lazySet(delivered.get() + 1);
+                Histogram h = latency;
+                if (h != null) {
+                    h.record(arrivalNs - s.timestamp);
+                }
+            }
+        };
+        for (int i = 0; i < subscribers; ++i) {
+            Stream s = new Stream();
+            s.batch.setFrame(new EventFrame());
+            s.batch.setLimit(MTU - SEQUENCE_HEADER_SIZE);
+            s.rx = DatagramChannel.open();
+            s.rx.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+            s.rx.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            s.rx.configureBlocking(false);
+            s.rx.register(selector, SelectionKey.OP_READ, s);
+            s.tx = DatagramChannel.open();
+            s.tx.configureBlocking(false);
+            s.tx.connect(s.rx.getLocalAddress());
+            s.receiver = new StreamReceiver(listener);
+            s.stage = stages.length > 0 ? stages[i % stages.length] : null;
+            streams[i] = s;
+        }
+
+        encoders = new Encoder[encoderCount];
+        for (int i = 0; i < encoders.length; ++i) {
+            ArrayList<Stream> owned = new ArrayList<>();
+            for (int j = i; j < streams.length; j += encoders.length) {
+                owned.add(streams[j]);
+            }
+            encoders[i] = new Encoder(owned.toArray(new Stream[owned.size()]));
+        }
+        encoder = encoders.length == 0 ? new Encoder(streams) : null;
+    }
+
+    private int run(int sensors, int seconds, String[] rates) throws Exception {
+        SyntheticSource source = new SyntheticSource(sensors, new SyntheticSource.Sink() {
+            @Override
+            public void onSample(int uid, long timestamp, float[] values) {
+                ring.offer(uid, timestamp, values);
+                if (workerWaiting.get() && workerWaiting.compareAndSet(true, false)) {
+                    LockSupport.unpark(worker);
+                }
+            }
+        });
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, "Worker");
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "Receiver");
+        ArrayList<Thread> pipeline = new ArrayList<>();
+        pipeline.add(worker);
+        for (int i = 0; i < stages.length; ++i) {
+            stages[i].start("Stage" + i);
+            pipeline.add(stages[i].getThread());
+        }
+        for (int i = 0; i < encoders.length; ++i) {
+            encoders[i].thread = new Thread(encoders[i], "Encoder" + i);
+            encoders[i].thread.start();
+            pipeline.add(encoders[i].thread);
+        }
+        reader.start();
+        worker.start();
+        source.start();
+        pipeline.add(findThread("SyntheticSource"));
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        System.out.println();
+        int extra = stages.length + encoders.length;
+        System.out.println((extra + 1) + " pipeline thread" + (extra == 0 ? " (worker encodes and sends)"
+                : "s (worker + " + extra + (stages.length > 0 ? " send)" : " encode)")));
+        System.out.println("  Hz/sensor   gen/s  delivered/s  ring-drop  send-drop  lost-pk  packets/s    p50    p99   p999    max  B/sample");
+        int sustainable = 0;
+        for (String r : rates) {
+            int hz = Integer.parseInt(r.trim());
+            for (int uid = 0; uid < sensors; ++uid) {
+                source.setPeriod(uid, 1000000000L / hz);
+            }
+            Thread.sleep(WARMUP_NS / 1000000);
+
+            long gen0 = source.getGenerated();
+            long del0 = delivered.get();
+            long ovf0 = overflows();
+            long drop0 = sendDrops.get();
+            long pk0 = packetsSent.get();
+            long lost0 = lost();
+            long alloc0 = allocated(threads, pipeline);
+            Histogram h = new Histogram();
+            latency = h;
+
+            Thread.sleep(seconds * 1000L);
+
+            latency = null;
+            long gen = source.getGenerated() - gen0;
+            long del = delivered.get() - del0;
+            long alloc = allocated(threads, pipeline) - alloc0;
+            long ringDrops = overflows() - ovf0;
+            System.out.println(String.format("%11d %7d %12d %10d %10d %8d %10d %6d %6d %6d %6d %9.2f",
+                    hz, gen / seconds, del / seconds, ringDrops, sendDrops.get() - drop0,
+                    lost() - lost0, (packetsSent.get() - pk0) / seconds,
+                    h.getValueAtPercentile(50) / 1000, h.getValueAtPercentile(99) / 1000,
+                    h.getValueAtPercentile(99.9) / 1000, h.getMax() / 1000, gen > 0 ? (double) alloc / gen : 0));
+            if (del >= gen * streams.length * SUSTAINED && ringDrops == 0) {
+                sustainable = Math.max(sustainable, (int) (gen / seconds));
+            }
+        }
+
+        source.stop();
+        running.set(false);
+        LockSupport.unpark(worker);
+        worker.join();
+        for (Encoder e : encoders) {
+            LockSupport.unpark(e.thread);
+            e.thread.join();
+        }
+        for (Stage stage : stages) {
+            stage.stop();
+        }
+        selector.close();
+        reader.join();
+        for (Stream s : streams) {
+            s.tx.close();
+            s.rx.close();
+        }
+        return sustainable;
+    }
+
+    private long overflows() {
+        long n = ring.getOverflowCount();
+        for (Encoder e : encoders) {
+            n += e.input.getOverflowCount();
+        }
+        return n;
+    }
+
+    private long lost() {
+        long n = 0;
+        for (Stream s : streams) {
+            n += s.receiver.getSequence().getLost();
+        }
+        return n;
+    }
+
+    private static long allocated(com.sun.management.ThreadMXBean threads, ArrayList<Thread> pipeline) {
+        long n = 0;
+        for (Thread t : pipeline) {
+            n += threads.getThreadAllocatedBytes(t.getId());
+        }
+        return n;
+    }
+
+    private static Thread findThread(String name) {
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals(name)) {
+                return t;
+            }
+        }
+        throw new IllegalStateException(name);
+    }
+
+    //==============================================================================
+    // Worker
+    //==============================================================================
+
+    private void work() {
+        while (running.get()) {
+            while (ring.poll(sample)) {
+                if (encoder != null) {
+                    encoder.dispatch(sample);
+                } else {
+                    forward();
+                }
+            }
+            long now = System.nanoTime();
+            long deadline = encoder != null ? encoder.flushDue(now) : Long.MAX_VALUE;
+
+            // producer unparks only while flag is raised, so one wakeup per sleep
+            workerWaiting.set(true);
+            if (ring.isEmpty()) {
+                LockSupport.parkNanos(deadline != Long.MAX_VALUE ? deadline - now : IDLE_PARK_NS);
+            }
+            workerWaiting.set(false);
+        }
+    }
+
+    // every encoder stage gets a copy, its own subscribers are encoded there
+    private void forward() {
+        float[] values = forwarded[sample.count];
+        if (values == null) {
+            values = new float[sample.count];
+            forwarded[sample.count] = values;
+        }
+        System.arraycopy(sample.values, 0, values, 0, sample.count);
+        for (Encoder e : encoders) {
+            e.input.offer(sample.uid, sample.timestamp, values);
+            if (e.waiting.get() && e.waiting.compareAndSet(true, false)) {
+                LockSupport.unpark(e.thread);
+            }
+        }
+    }
+
+    private void flush(Stream s) {
+        if (s.batch.finish()) {
+            send(s, s.batch.getFrame());
+        }
+    }
+
+    private void send(Stream s, EventFrame frame) {
+        ByteBuffer packet = frame.sequenced(s.sequence++);
+        if (s.stage == null) {
+            write(s.tx, packet);
+        } else if (!s.stage.offer(s, packet)) {
+            sendDrops.incrementAndGet();
+        }
+    }
+
+    private void write(DatagramChannel tx, ByteBuffer packet) {
+        try {
+            if (tx.write(packet) > 0) {
+                packetsSent.incrementAndGet();
+            } else {
+                sendDrops.incrementAndGet();
+            }
+        } catch (Exception ex) {
+            sendDrops.incrementAndGet();
+        }
+    }
+
+    //==============================================================================
+    // Receiver
+    //==============================================================================
+
+    private void receive() {
+        ByteBuffer in = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+        try {
+            while (selector.isOpen()) {
+                selector.select(100);
+                if (!selector.isOpen()) {
+                    return;
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Stream s = (Stream) key.attachment();
+                    for (; ; ) {
+                        in.clear();
+                        if (s.rx.receive(in) == null) {
+                            break;
+                        }
+                        long arrival = System.nanoTime();
+                        in.flip();
+                        s.receiver.receive(in, arrival);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (Exception ex) {
+            if (selector.isOpen()) {
+                ex.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// Sends sequenced batches over loopback UDP with injected loss, reordering and delay jitter,
+// decodes them with StreamReceiver and prints injected vs measured numbers.
+// usage: LoopbackHarness [loss 0..1] [reorder 0..1] [jitter us] [packets]
+public class LoopbackHarness {
+
+    private final static int[] RATES = {400, 200, 50}; // Hz per uid
+    private final static int RECORDS = 4;
+    private final static long BASE_DELAY_NS = 2000000L;
+
+    public static void main(String[] args) throws Exception {
+        double loss = args.length > 0 ? Double.parseDouble(args[0]) : 0.05;
+        double reorder = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+        long jitterNs = (args.length > 2 ? Long.parseLong(args[2]) : 500) * 1000;
+        int packets = args.length > 3 ? Integer.parseInt(args[3]) : 100000;
+
+        DatagramChannel rx = DatagramChannel.open();
+        rx.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        rx.configureBlocking(false);
+        DatagramChannel tx = DatagramChannel.open();
+        tx.connect(rx.getLocalAddress());
+
+        ByteBuffer frame = ByteBuffer.allocateDirect(SEQUENCE_HEADER_SIZE + MAX_PACKET_SIZE);
+        frame.position(SEQUENCE_HEADER_SIZE);
+        ByteBuffer body = frame.slice();
+        ByteBuffer held = ByteBuffer.allocateDirect(SEQUENCE_HEADER_SIZE + MAX_PACKET_SIZE);
+        ByteBuffer in = ByteBuffer.allocateDirect(SEQUENCE_HEADER_SIZE + MAX_PACKET_SIZE);
+        boolean holding = false;
+
+        // arrival time is simulated so injected jitter is known exactly
+        long[] arrivals = new long[packets];
+        long[] timestamps = new long[RATES.length];
+        long[] droppedSamples = new long[RATES.length];
+        float[] values = new float[3];
+        Random rnd = new Random(1);
+        StreamReceiver receiver = new StreamReceiver(null);
+
+        int dropped = 0;
+        int swapped = 0;
+        long received = 0;
+
+        for (int seq = 0; seq < packets; ++seq) {
+            int uid = seq % RATES.length;
+            long period = 1000000000L / RATES[uid];
+
+            Packets.writeSensorEventBatch(body);
+            for (int i = 0; i < RECORDS; ++i) {
+                timestamps[uid] += period;
+                values[0] = (float) Math.sin(timestamps[uid] * 1e-9);
+                Packets.writeSensorRecord(body, uid, timestamps[uid], values, values.length);
+            }
+            Packets.finishSensorEventBatch(body, RECORDS);
+            body.flip();
+            frame.limit(SEQUENCE_HEADER_SIZE + body.limit());
+            frame.position(0);
+            Packets.putSequenceHeader(frame, seq);
+            arrivals[seq] = timestamps[uid] + BASE_DELAY_NS + (long) (rnd.nextDouble() * jitterNs);
+
+            if (rnd.nextDouble() < loss) {
+                dropped++;
+                droppedSamples[uid] += RECORDS;
+            } else if (!holding && rnd.nextDouble() < reorder) {
+                held.clear();
+                held.put(frame);
+                held.flip();
+                holding = true;
+            } else {
+                tx.write(frame);
+                if (holding) {
+                    tx.write(held);
+                    holding = false;
+                    swapped++;
+                }
+            }
+            received += drain(rx, in, receiver, arrivals);
+        }
+        if (holding) {
+            tx.write(held);
+        }
+
+        for (int i = 0; i < 100; ++i) {
+            received += drain(rx, in, receiver, arrivals);
+            Thread.sleep(1);
+        }
+
+        SequenceTracker s = receiver.getSequence();
+        System.out.println("packets sent:" + packets + " received:" + received + " malformed:" + receiver.getMalformed());
+        System.out.println("injected loss:" + dropped + " reorder:" + swapped);
+        System.out.println("measured loss:" + s.getLost() + " reorder:" + s.getReordered() + " dup:" + s.getDuplicates());
+        for (int uid = 0; uid < RATES.length; ++uid) {
+            StreamReceiver.SensorStats st = receiver.getSensorStats(uid);
+            System.out.println("uid " + uid + " @" + RATES[uid] + "Hz samples:" + st.samples
+                    + " dropped:" + droppedSamples[uid] + " missing(est):" + st.missingEstimate + " gaps:" + st.gaps
+                    + " reordered:" + st.reordered + " jitter(us):" + String.format("%.1f", st.jitterNs / 1000));
+        }
+
+        tx.close();
+        rx.close();
+    }
+
+    private final static int drain(DatagramChannel rx, ByteBuffer in, StreamReceiver receiver, long[] arrivals) throws Exception {
+        int n = 0;
+        for (; ; ) {
+            in.clear();
+            if (rx.receive(in) == null) {
+                return n;
+            }
+            in.flip();
+            int seq = in.getInt(1);
+            receiver.receive(in, arrivals[seq]);
+            n++;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Run with: ./gradlew :protocol:jmh (gc profiler reports allocations per packet)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PacketBenchmark {
+
+    private final static int SENSOR_COUNT = 40;
+    private final static int SUBSCRIBE_COUNT = 8;
+    private final static byte[] PASSWORD = new byte[]{'p', 'a', 's', 's', 'w', 'o', 'r', 'd'};
+
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(Protocol.MAX_PACKET_SIZE);
+    private ByteBuffer eventPacket = ByteBuffer.allocateDirect(Protocol.MAX_PACKET_SIZE);
+    private ByteBuffer batchPacket = ByteBuffer.allocateDirect(Protocol.MAX_PACKET_SIZE);
+    private ByteBuffer enablePacket = ByteBuffer.allocateDirect(Protocol.MAX_PACKET_SIZE);
+    private ByteBuffer enumeratePacket = ByteBuffer.allocateDirect(Protocol.MAX_PACKET_SIZE);
+    private ByteBuffer subscribePacket = ByteBuffer.allocateDirect(Protocol.MAX_PACKET_SIZE);
+
+    private float[] values = new float[]{0.1f, -9.81f, 0.25f};
+    private String[] names = new String[SENSOR_COUNT];
+    private Packets.SensorSample sample = new Packets.SensorSample();
+    private Packets.EnableSensorRequest enableRequest = new Packets.EnableSensorRequest();
+    private Packets.Subscribe subscribeRequest = new Packets.Subscribe();
+    private List<Packets.SensorInfo> sensorInfos = new ArrayList<>();
+    private long timestamp = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        for (int i = 0; i < SENSOR_COUNT; ++i) {
+            names[i] = "Vendor Sensor " + i;
+        }
+
+        Packets.writeSensorEvent(eventPacket, 1, 123456789L, values, values.length);
+        eventPacket.flip();
+
+        fillBatch(batchPacket, 1400);
+        batchPacket.flip();
+
+        Packets.writeEnableSensorRequest(enablePacket, "password", 1, true, 0);
+        enablePacket.flip();
+
+        encodeEnumerate(enumeratePacket);
+        enumeratePacket.flip();
+
+        for (int i = 0; i < SUBSCRIBE_COUNT; ++i) {
+            Packets.Subscription e = subscribeRequest.entries[i];
+            e.uid = i;
+            e.enabled = true;
+            e.rate = 5000;
+            e.latency = 0;
+        }
+        Packets.writeSubscribeRequest(subscribePacket, 0, "password", 0, subscribeRequest.entries, SUBSCRIBE_COUNT);
+        subscribePacket.flip();
+    }
+
+    @Benchmark
+    public int encodeSensorEvent() {
+        Packets.writeSensorEvent(buffer, 1, timestamp++, values, values.length);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public long decodeSensorEvent() {
+        eventPacket.rewind();
+        Packets.readPacketId(eventPacket);
+        Packets.readSensorEvent(eventPacket, sample);
+        return sample.timestamp;
+    }
+
+    // one full MTU sized batch per op, divide score by records per batch for per sample cost
+    @Benchmark
+    public int encodeSensorEventBatch() {
+        return fillBatch(buffer, 1400);
+    }
+
+    @Benchmark
+    public long decodeSensorEventBatch() {
+        batchPacket.rewind();
+        Packets.readPacketId(batchPacket);
+        int n = Packets.readSensorEventBatch(batchPacket);
+        long sum = 0;
+        for (int i = 0; i < n; ++i) {
+            Packets.readSensorRecord(batchPacket, sample);
+            sum += sample.timestamp;
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int encodeEnableSensorRequest() throws Exception {
+        Packets.writeEnableSensorRequest(buffer, "password", 1, true, 0);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public int decodeEnableSensorRequest() throws Exception {
+        enablePacket.rewind();
+        Packets.readPacketId(enablePacket);
+        Packets.readEnableSensorRequest(enablePacket, enableRequest);
+        return enableRequest.uid;
+    }
+
+    // same work as SUBSCRIBE_COUNT enable requests, compare with decodeEnableSensorRequest
+    @Benchmark
+    public int decodeSubscribeRequest() {
+        subscribePacket.rewind();
+        Packets.readPacketId(subscribePacket);
+        Packets.readSubscribeRequest(subscribePacket, PASSWORD, subscribeRequest);
+        return subscribeRequest.passwordMatch ? subscribeRequest.count : 0;
+    }
+
+    @Benchmark
+    public int encodeEnumerateSensorsResponse() throws Exception {
+        encodeEnumerate(buffer);
+        return buffer.position();
+    }
+
+    @Benchmark
+    public int decodeEnumerateSensorsResponse() throws Exception {
+        enumeratePacket.rewind();
+        Packets.readPacketId(enumeratePacket);
+        sensorInfos.clear();
+        return Packets.readEnumerateSensorsResponse(enumeratePacket, sensorInfos);
+    }
+
+    private final int fillBatch(ByteBuffer buf, int mtu) {
+        Packets.writeSensorEventBatch(buf);
+        int n = 0;
+        while (buf.position() + Packets.sensorRecordSize(values.length) <= mtu) {
+            Packets.writeSensorRecord(buf, n % SENSOR_COUNT, timestamp++, values, values.length);
+            n++;
+        }
+        Packets.finishSensorEventBatch(buf, n);
+        return n;
+    }
+
+    private final void encodeEnumerate(ByteBuffer buf) throws Exception {
+        int n = Packets.writeEnumerateSensorsResponse(buf, SENSOR_COUNT);
+        for (int i = 0; i < n; ++i) {
+            Packets.writeSensorInfo(buf, i, i + 1, names[i]);
+        }
+    }
+}
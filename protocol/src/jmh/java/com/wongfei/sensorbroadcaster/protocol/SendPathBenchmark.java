@@ -0,0 +1,89 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.TimeUnit;
+
+// One sequenced sensor event datagram per op over loopback, one send syscall each.
+// newAddress: address built per send (old hello path), cached: unconnected send to cached address,
+// connected: write() on connected channel, gather: connected write of sequence header + shared body.
+// Nobody reads the receiving socket, kernel drops overflow after send returned.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SendPathBenchmark {
+
+    @Param({"newAddress", "cached", "connected", "gather"})
+    public String path;
+
+    private DatagramChannel rx;
+    private DatagramChannel tx;
+    private InetSocketAddress target;
+    private int port;
+
+    private ByteBuffer frame = ByteBuffer.allocateDirect(Protocol.SEQUENCE_HEADER_SIZE + Protocol.MAX_PACKET_SIZE);
+    private ByteBuffer body;
+    private ByteBuffer header = ByteBuffer.allocateDirect(Protocol.SEQUENCE_HEADER_SIZE);
+    private ByteBuffer[] gather = new ByteBuffer[2];
+    private float[] values = new float[]{0.1f, -9.81f, 0.25f};
+    private int sequence = 0;
+
+    @Setup
+    public void setup() throws Exception {
+        rx = DatagramChannel.open();
+        rx.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        target = (InetSocketAddress) rx.getLocalAddress();
+        port = target.getPort();
+
+        tx = DatagramChannel.open();
+        if (path.equals("connected") || path.equals("gather")) {
+            tx.connect(target);
+        }
+
+        frame.position(Protocol.SEQUENCE_HEADER_SIZE);
+        body = frame.slice();
+        Packets.writeSensorEvent(body, 1, 123456789L, values, values.length);
+        body.flip();
+        gather[0] = header;
+        gather[1] = body;
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        tx.close();
+        rx.close();
+    }
+
+    @Benchmark
+    public long send() throws Exception {
+        if (path.equals("gather")) {
+            header.clear();
+            Packets.putSequenceHeader(header, sequence++);
+            body.position(0);
+            return tx.write(gather);
+        }
+
+        frame.limit(Protocol.SEQUENCE_HEADER_SIZE + body.limit());
+        frame.position(0);
+        Packets.putSequenceHeader(frame, sequence++);
+        if (path.equals("connected")) {
+            return tx.write(frame);
+        }
+        if (path.equals("newAddress")) {
+            return tx.send(frame, new InetSocketAddress("127.0.0.1", port));
+        }
+        return tx.send(frame, target);
+    }
+}
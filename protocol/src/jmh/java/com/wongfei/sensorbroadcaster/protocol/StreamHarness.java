@@ -0,0 +1,346 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// TCP / WebSocket output over loopback: SyntheticSource -> SampleRing -> worker encoding compact batches once
+// and sending them to every StreamServer connection from the same selector loop the service uses.
+// Raw TCP clients and a WebSocket client decode with StreamReceiver, one more raw client stops reading
+// to show the watermarks: it is dropped, the others lose nothing and the worker never blocks.
+// usage: StreamHarness [sensors] [Hz per sensor] [seconds] [raw clients] [high water KB] [low water KB]
+public class StreamHarness {
+
+    private final static int MTU = 1400;
+    private final static long FLUSH_DEADLINE_NS = 5000000L;
+    private final static int REQUEST_BUDGET = 32;
+
+    private final SampleRing ring = new SampleRing(4096, SampleRing.OVERFLOW_DROP_OLDEST);
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicBoolean workerWaiting = new AtomicBoolean(false);
+    private final SampleRing.Sample sample = new SampleRing.Sample();
+    private final ByteBuffer frame = ByteBuffer.allocateDirect(SEQUENCE_HEADER_SIZE + MAX_PACKET_SIZE);
+    private ByteBuffer body;
+    private int sequence = 0;
+    private int batchCount = 0;
+    private long batchStarted = 0;
+    private long batchBase = 0;
+    private long requests = 0;
+    private final Histogram sendTime = new Histogram(); // worker time per batch over all connections
+
+    private Selector selector;
+    private StreamServer server;
+
+    // consumer side, own thread and blocking socket
+    private static class Client implements Runnable {
+        final String name;
+        final boolean webSocket;
+        final boolean stall;
+        final InetSocketAddress addr;
+        final Histogram latency = new Histogram();
+        final StreamReceiver receiver;
+        volatile long samples = 0;
+        volatile boolean closedByServer = false;
+        volatile boolean done = false;
+        SocketChannel chan;
+
+        Client(String name, InetSocketAddress addr, boolean webSocket, boolean stall) {
+            this.name = name;
+            this.addr = addr;
+            this.webSocket = webSocket;
+            this.stall = stall;
+            this.receiver = new StreamReceiver(new StreamReceiver.Listener() {
+                @Override
+                public void onSample(Packets.SensorSample s, long arrivalNs) {
+                    latency.record(arrivalNs - s.timestamp);
+                    samples++;
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+            ByteBuffer packet = ByteBuffer.allocateDirect(MAX_PACKET_SIZE);
+            try {
+                chan = SocketChannel.open();
+                if (stall) {
+                    // kernel buffers would otherwise swallow megabytes before watermarks matter
+                    chan.setOption(StandardSocketOptions.SO_RCVBUF, 16 * 1024);
+                }
+                chan.connect(addr);
+                if (webSocket) {
+                    handshake(in);
+                }
+
+                // any request starts stream, ping is the cheapest
+                ByteBuffer req = ByteBuffer.allocate(64);
+                Packets.writePingDeviceRequest(req);
+                req.flip();
+                ByteBuffer out = ByteBuffer.allocate(64);
+                if (webSocket) {
+                    out.put((byte) 0x82).put((byte) (0x80 | req.remaining())).putInt(0x1234ABCD);
+                    for (int i = 0; req.hasRemaining(); ++i) {
+                        out.put((byte) (req.get() ^ out.get(2 + (i & 3))));
+                    }
+                } else {
+                    out.putShort((short) req.remaining()).put(req);
+                }
+                out.flip();
+                while (out.hasRemaining()) {
+                    chan.write(out);
+                }
+
+                if (stall) {
+                    // reads nothing, server reports whether it gave up on this one
+                    while (!done) {
+                        Thread.sleep(10);
+                    }
+                    return;
+                }
+
+                for (; ; ) {
+                    if (chan.read(in) < 0) {
+                        closedByServer = !done;
+                        return;
+                    }
+                    long arrival = System.nanoTime();
+                    in.flip();
+                    while (nextPacket(in, packet)) {
+                        receiver.receive(packet, arrival);
+                    }
+                    in.compact();
+                }
+            } catch (Exception ex) {
+                if (!done) {
+                    closedByServer = true;
+                }
+            }
+        }
+
+        private void handshake(ByteBuffer in) throws Exception {
+            String request = "GET /sensors HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n";
+            chan.write(ByteBuffer.wrap(request.getBytes("US-ASCII")));
+            StringBuilder sb = new StringBuilder();
+            while (sb.indexOf("\r\n\r\n") < 0) {
+                ByteBuffer one = ByteBuffer.allocate(1);
+                if (chan.read(one) < 0) {
+                    throw new IllegalStateException("closed during handshake");
+                }
+                sb.append((char) one.get(0));
+            }
+            // RFC 6455 sample key and its accept value
+            if (!sb.toString().startsWith("HTTP/1.1 101") || sb.indexOf("s3pPLMBiTxaQ9kYGzzhZRbK+xOo=") < 0) {
+                throw new IllegalStateException("handshake: " + sb);
+            }
+        }
+
+        private boolean nextPacket(ByteBuffer in, ByteBuffer packet) {
+            int p = in.position();
+            int header;
+            int n;
+            if (webSocket) {
+                if (in.remaining() < 2) {
+                    return false;
+                }
+                n = in.get(p + 1) & 0x7F;
+                header = 2;
+                if (n == 126) {
+                    if (in.remaining() < 4) {
+                        return false;
+                    }
+                    n = in.getShort(p + 2) & 0xFFFF;
+                    header = 4;
+                }
+            } else {
+                if (in.remaining() < STREAM_FRAME_HEADER_SIZE) {
+                    return false;
+                }
+                n = in.getShort(p) & 0xFFFF;
+                header = STREAM_FRAME_HEADER_SIZE;
+            }
+            if (in.remaining() < header + n) {
+                return false;
+            }
+            packet.clear();
+            int limit = in.limit();
+            in.position(p + header).limit(p + header + n);
+            packet.put(in);
+            in.limit(limit);
+            packet.flip();
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int hz = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 15;
+        int rawClients = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+        int highWater = (args.length > 4 ? Integer.parseInt(args[4]) : 256) * 1024;
+        new StreamHarness().run(sensors, hz, seconds, rawClients, highWater);
+    }
+
+    private void run(int sensors, int hz, int seconds, int rawClients, int highWater) throws Exception {
+        frame.position(SEQUENCE_HEADER_SIZE);
+        body = frame.slice();
+        selector = Selector.open();
+        final long start = System.nanoTime();
+        server = new StreamServer(selector, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), highWater,
+                new StreamServer.Listener() {
+                    @Override
+                    public void onRequest(StreamConnection connection, ByteBuffer packet) {
+                        requests++;
+                    }
+
+                    @Override
+                    public void onClose(StreamConnection connection) {
+                        System.out.println(String.format("%6d ms  ", (System.nanoTime() - start) / 1000000) + String.format("server closed %s: sent %d, dropped %d, stalled %b",
+                                connection.getAddress(), connection.getSent(), connection.getDropped(), connection.isStalled()));
+                    }
+                });
+        InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+
+        ArrayList<Client> clients = new ArrayList<>();
+        for (int i = 0; i < rawClients; ++i) {
+            clients.add(new Client("tcp" + i, addr, false, false));
+        }
+        clients.add(new Client("ws", addr, true, false));
+        clients.add(new Client("stalled", addr, false, true));
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (Client c : clients) {
+            Thread t = new Thread(c, c.name);
+            t.start();
+            threads.add(t);
+        }
+
+        SyntheticSource source = new SyntheticSource(sensors, new SyntheticSource.Sink() {
+            @Override
+            public void onSample(int uid, long timestamp, float[] values) {
+                ring.offer(uid, timestamp, values);
+                if (workerWaiting.get() && workerWaiting.compareAndSet(true, false)) {
+                    selector.wakeup();
+                }
+            }
+        });
+        Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    work();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }, "Worker");
+        worker.start();
+        // let every client connect and speak before samples flow
+        Thread.sleep(500);
+        for (int uid = 0; uid < sensors; ++uid) {
+            source.setPeriod(uid, 1000000000L / hz);
+        }
+        source.start();
+
+        System.out.println(sensors + " sensors at " + hz + " Hz, " + seconds + " s, high water " + highWater / 1024
+                + " KB");
+        Thread.sleep(seconds * 1000L);
+        source.stop();
+        Thread.sleep(200);
+        long generated = source.getGenerated();
+        long stalled = server.getStalled();
+        for (Client c : clients) {
+            c.done = true;
+        }
+        running.set(false);
+        selector.wakeup();
+        worker.join();
+        // clients see end of stream and leave
+        server.close();
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (Client c : clients) {
+            if (c.chan != null) {
+                c.chan.close();
+            }
+        }
+
+        System.out.println();
+        System.out.println("generated " + generated + " samples, ring drops " + ring.getOverflowCount() + ", requests " + requests
+                + ", stalled connections closed " + stalled);
+        System.out.println(String.format("worker send per batch us: p50 %d  p99 %d  max %d",
+                sendTime.getValueAtPercentile(50) / 1000, sendTime.getValueAtPercentile(99) / 1000, sendTime.getMax() / 1000));
+        System.out.println("client    samples  lost-pk     p50     p99     max  closed-by-server");
+        for (Client c : clients) {
+            System.out.println(String.format("%-8s %8d %8d %7d %7d %7d  %b", c.name, c.samples, c.receiver.getSequence().getLost(),
+                    c.latency.getValueAtPercentile(50) / 1000, c.latency.getValueAtPercentile(99) / 1000, c.latency.getMax() / 1000,
+                    c.closedByServer));
+        }
+        selector.close();
+    }
+
+    //==============================================================================
+    // Worker
+    //==============================================================================
+
+    private void work() throws Exception {
+        while (running.get()) {
+            server.poll(REQUEST_BUDGET);
+            while (ring.poll(sample)) {
+                dispatch();
+            }
+            long now = System.nanoTime();
+            if (batchCount > 0 && now - batchStarted >= FLUSH_DEADLINE_NS) {
+                flush();
+            }
+
+            workerWaiting.set(true);
+            if (ring.isEmpty()) {
+                long timeout = batchCount > 0 ? batchStarted + FLUSH_DEADLINE_NS - now : 500000000L;
+                selector.select(Math.max(1, timeout / 1000000));
+                selector.selectedKeys().clear();
+            }
+            workerWaiting.set(false);
+        }
+    }
+
+    private void dispatch() {
+        int size = Packets.compactRecordMaxSize(sample.count, 0);
+        if (batchCount > 0 && (batchCount >= 0xFF || body.position() + size > MTU - SEQUENCE_HEADER_SIZE)) {
+            flush();
+        }
+        if (batchCount == 0) {
+            Packets.writeCompactBatch(body, sample.timestamp);
+            batchBase = sample.timestamp;
+            batchStarted = System.nanoTime();
+        }
+        Packets.writeCompactRecord(body, sample.uid, sample.timestamp - batchBase, sample.values, sample.count, 0);
+        batchCount++;
+    }
+
+    // one encoded packet, every connection copies it into its own buffer
+    private void flush() {
+        Packets.finishSensorEventBatch(body, batchCount);
+        batchCount = 0;
+        body.flip();
+        frame.limit(SEQUENCE_HEADER_SIZE + body.limit());
+        frame.position(0);
+        Packets.putSequenceHeader(frame, sequence++);
+
+        long t0 = System.nanoTime();
+        for (int i = 0; i < server.getConnectionCount(); ++i) {
+            frame.position(0);
+            server.getConnection(i).send(frame);
+        }
+        sendTime.record(System.nanoTime() - t0);
+        body.clear();
+    }
+}
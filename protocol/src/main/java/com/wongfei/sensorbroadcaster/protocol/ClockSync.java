@@ -0,0 +1,118 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.util.Arrays;
+
+// Offset and drift between requester and responder clocks from NTP style exchanges, no allocations.
+// t1 request sent and t4 response received are requester clock, t2 request received and t3 response sent responder clock.
+// Model: requester time = responder time + offset + drift * (responder time - reference).
+// Queuing only ever adds delay, so line is fitted through the quarter of recent exchanges with shortest round trip.
+public class ClockSync {
+
+    public final static int WINDOW = 64; // exchanges
+    public final static int MIN_EXCHANGES = 4;
+    public final static long MIN_DRIFT_SPAN_NS = 2000000000L; // shorter history estimates offset only
+    public final static double MAX_DRIFT = 500e-6; // crystal tolerance, anything above is noise
+
+    private final long[] x = new long[WINDOW]; // responder midpoint
+    private final long[] y = new long[WINDOW]; // requester minus responder
+    private final long[] d = new long[WINDOW]; // round trip without responder processing
+    private final long[] sorted = new long[WINDOW];
+    private int count = 0;
+    private int head = 0;
+
+    private long reference = 0;
+    private long offset = 0;
+    private double drift = 0;
+    private long delay = 0;
+    private boolean valid = false;
+
+    public final void reset() {
+        count = 0;
+        head = 0;
+        reference = 0;
+        offset = 0;
+        drift = 0;
+        delay = 0;
+        valid = false;
+    }
+
+    // returns false for inconsistent stamps
+    public final boolean add(long t1, long t2, long t3, long t4) {
+        long rtt = (t4 - t1) - (t3 - t2);
+        if (rtt < 0 || t3 < t2) {
+            return false;
+        }
+        x[head] = t2 + (t3 - t2) / 2;
+        y[head] = ((t1 - t2) + (t4 - t3)) / 2;
+        d[head] = rtt;
+        head = (head + 1) % WINDOW;
+        if (count < WINDOW) {
+            count++;
+        }
+        estimate();
+        return true;
+    }
+
+    private final void estimate() {
+        System.arraycopy(d, 0, sorted, 0, count);
+        Arrays.sort(sorted, 0, count);
+        long threshold = sorted[count / 4];
+
+        // relative to newest exchange, absolute clock values don't fit double precision
+        int newest = (head + WINDOW - 1) % WINDOW;
+        long x0 = x[newest];
+        long y0 = y[newest];
+        int n = 0;
+        double sx = 0, sy = 0, sxx = 0, sxy = 0;
+        long minX = Long.MAX_VALUE;
+        for (int i = 0; i < count; ++i) {
+            if (d[i] > threshold) {
+                continue;
+            }
+            double dx = x[i] - x0;
+            double dy = y[i] - y0;
+            sx += dx;
+            sy += dy;
+            sxx += dx * dx;
+            sxy += dx * dy;
+            minX = Math.min(minX, x[i]);
+            n++;
+        }
+
+        double k = drift;
+        if (n >= 2 && x0 - minX >= MIN_DRIFT_SPAN_NS) {
+            double den = n * sxx - sx * sx;
+            if (den > 0) {
+                k = Math.max(-MAX_DRIFT, Math.min((n * sxy - sx * sy) / den, MAX_DRIFT));
+            }
+        }
+        drift = k;
+        reference = x0;
+        offset = y0 + Math.round((sy - k * sx) / n);
+        delay = threshold;
+        valid = count >= MIN_EXCHANGES;
+    }
+
+    public final boolean isValid() {
+        return valid;
+    }
+
+    // requester time = responderTime + getOffset(responderTime)
+    public final long getOffset(long responderTime) {
+        return offset + Math.round(drift * (responderTime - reference));
+    }
+
+    // requester clock rate relative to responder minus 1
+    public final double getDrift() {
+        return drift;
+    }
+
+    // round trip of exchanges used, half of it bounds offset error from path asymmetry
+    public final long getDelay() {
+        return delay;
+    }
+
+    public final int getCount() {
+        return count;
+    }
+}
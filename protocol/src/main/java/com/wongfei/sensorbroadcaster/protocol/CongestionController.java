@@ -0,0 +1,148 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+// Per stream back-off driven by local send buffer drops and loss reported by receiver, single thread.
+// Level 0 is stream as configured, level 1 forces compact batches (fewer and smaller packets),
+// each further level halves output rate of every sensor. Pressure raises level one step per interval,
+// recovery lowers it after hold clean intervals; hold doubles when pressure returns soon after a step down.
+public class CongestionController {
+
+    public final static int MAX_LEVEL = 4;
+    public final static long INTERVAL_MS = 250;
+    public final static double DROP_THRESHOLD = 0.01;
+    public final static int MIN_DROPS = 3; // per interval, single drops of sparse batch streams don't count
+    public final static double LOSS_THRESHOLD = 0.05; // below that loss is mostly random, lower rate wouldn't help
+    public final static double LOSS_SMOOTHING = 0.25; // reported loss is averaged over intervals, random loss is bursty
+    public final static int MIN_HOLD = 4; // intervals
+    public final static int MAX_HOLD = 32;
+
+    private int level = 0;
+    private int hold = MIN_HOLD;
+    private int clean = 0;
+    private boolean settling = false;
+    private long intervalStart = Long.MIN_VALUE;
+    private long lastStepDown = Long.MIN_VALUE;
+
+    private long sent = 0;
+    private long dropped = 0;
+    private long received = 0;
+    private long lost = 0;
+    private long reportedReceived = -1;
+    private long reportedLost = -1;
+    private double lossAverage = 0;
+
+    public final void reset() {
+        level = 0;
+        hold = MIN_HOLD;
+        clean = 0;
+        settling = false;
+        intervalStart = Long.MIN_VALUE;
+        lastStepDown = Long.MIN_VALUE;
+        sent = 0;
+        dropped = 0;
+        received = 0;
+        lost = 0;
+        reportedReceived = -1;
+        reportedLost = -1;
+        lossAverage = 0;
+    }
+
+    // every send attempt, dropped when socket buffer was full
+    public final void onSend(boolean drop) {
+        sent++;
+        if (drop) {
+            dropped++;
+        }
+    }
+
+    // sends done elsewhere, counted in bulk
+    public final void onSends(long count, long drops) {
+        sent += count;
+        dropped += drops;
+    }
+
+    // receiver's cumulative counters, restart of receiver is taken as new baseline
+    public final void onLossReport(long totalReceived, long totalLost) {
+        if (reportedReceived >= 0 && totalReceived >= reportedReceived && totalLost >= reportedLost) {
+            received += totalReceived - reportedReceived;
+            lost += totalLost - reportedLost;
+        }
+        reportedReceived = totalReceived;
+        reportedLost = totalLost;
+    }
+
+    // returns true when level changed
+    public final boolean update(long now) {
+        if (intervalStart == Long.MIN_VALUE) {
+            intervalStart = now;
+            return false;
+        }
+        if (now - intervalStart < INTERVAL_MS) {
+            return false;
+        }
+
+        double dropRate = sent > 0 ? (double) dropped / sent : 0;
+        long total = received + lost;
+        if (total > 0) {
+            lossAverage += ((double) lost / total - lossAverage) * LOSS_SMOOTHING;
+        }
+        boolean congested = (dropped >= MIN_DROPS && dropRate > DROP_THRESHOLD) || lossAverage > LOSS_THRESHOLD;
+        intervalStart = now;
+        sent = 0;
+        dropped = 0;
+        received = 0;
+        lost = 0;
+
+        // reports of first interval after a step still describe old level
+        if (settling) {
+            settling = false;
+            return false;
+        }
+
+        if (congested) {
+            clean = 0;
+            if (level < MAX_LEVEL) {
+                if (lastStepDown != Long.MIN_VALUE && now - lastStepDown < hold * INTERVAL_MS) {
+                    hold = Math.min(hold * 2, MAX_HOLD);
+                }
+                level++;
+                settling = true;
+                // new level has to show its own loss before next step
+                lossAverage = 0;
+                return true;
+            }
+            return false;
+        }
+
+        clean++;
+        if (level > 0 && clean >= hold) {
+            level--;
+            clean = 0;
+            lastStepDown = now;
+            settling = true;
+            return true;
+        }
+        if (level == 0 && clean >= MAX_HOLD) {
+            // long clean run forgets earlier trouble
+            hold = Math.max(MIN_HOLD, hold / 2);
+            clean = 0;
+        }
+        return false;
+    }
+
+    public final int getLevel() {
+        return level;
+    }
+
+    public final boolean isCompactForced() {
+        return level >= 1;
+    }
+
+    // keep one of divisor samples per sensor
+    public final int getRateDivisor() {
+        return level <= 1 ? 1 : 1 << (level - 1);
+    }
+
+    public final int getHold() {
+        return hold;
+    }
+}
@@ -0,0 +1,82 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.nio.ByteBuffer;
+
+// Next batch packet of one stream, records encoded into body of an EventFrame so sequence and clock headers
+// go in front of it at send. Plain records are copied from an encoded event, compact ones are encoded here
+// against the batch base timestamp. Owner thread only. Caller flushes when a record no longer fits.
+public class EventBatch {
+
+    private final static int MAX_BODY = Protocol.MAX_PACKET_SIZE;
+
+    private EventFrame frame = null; // null while stream doesn't batch
+    private ByteBuffer body = null;
+    private int limit = MAX_BODY;
+    private int count = 0;
+    private long started = 0; // caller's clock
+    private long base = 0;
+
+    public final void setFrame(EventFrame frame) {
+        this.frame = frame;
+        this.body = frame != null ? frame.body : null;
+        count = 0;
+    }
+
+    public final EventFrame getFrame() {
+        return frame;
+    }
+
+    // body bytes available, mtu minus headers put in front
+    public final void setLimit(int limit) {
+        this.limit = Math.min(limit, MAX_BODY);
+        count = 0;
+        if (body != null) {
+            body.clear();
+        }
+    }
+
+    // false when record of size needs a fresh batch
+    public final boolean fits(int size) {
+        return count == 0 || (count < 0xFF && body.position() + size <= limit);
+    }
+
+    // event is encoded event packet, its record is everything after id byte
+    public final void appendEvent(ByteBuffer event, long now) {
+        if (count == 0) {
+            Packets.writeSensorEventBatch(body);
+            started = now;
+        }
+        event.position(1);
+        body.put(event);
+        count++;
+    }
+
+    public final void appendCompact(int uid, long timestamp, float[] values, int n, float scale, long now) {
+        if (count == 0) {
+            Packets.writeCompactBatch(body, timestamp);
+            base = timestamp;
+            started = now;
+        }
+        Packets.writeCompactRecord(body, uid, timestamp - base, values, n, scale);
+        count++;
+    }
+
+    // patches record count and flips body for frame, false when nothing was appended
+    public final boolean finish() {
+        if (count == 0) {
+            return false;
+        }
+        Packets.finishSensorEventBatch(body, count);
+        body.flip();
+        count = 0;
+        return true;
+    }
+
+    public final int getCount() {
+        return count;
+    }
+
+    public final long getStarted() {
+        return started;
+    }
+}
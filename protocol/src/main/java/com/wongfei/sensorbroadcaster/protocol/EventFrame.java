@@ -0,0 +1,50 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.nio.ByteBuffer;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// Event encode buffer with room for sequence and clock headers in front of it.
+// Packet is encoded once into body, headers are filled per subscriber right before send.
+public class EventFrame {
+
+    public final static int HEADER_SIZE = SEQUENCE_HEADER_SIZE + CLOCK_HEADER_SIZE;
+
+    public final ByteBuffer frame = ByteBuffer.allocateDirect(HEADER_SIZE + MAX_PACKET_SIZE);
+    public final ByteBuffer body;
+    private int start = HEADER_SIZE; // first byte of next send
+
+    public EventFrame() {
+        frame.position(HEADER_SIZE);
+        body = frame.slice();
+        frame.clear();
+    }
+
+    // body must be flipped, wraps it for next send only
+    public final void clock(long offset) {
+        start = HEADER_SIZE - CLOCK_HEADER_SIZE;
+        frame.limit(HEADER_SIZE + body.limit());
+        frame.position(start);
+        Packets.putClockHeader(frame, offset);
+    }
+
+    // body must be flipped
+    public final ByteBuffer sequenced(int sequence) {
+        frame.limit(HEADER_SIZE + body.limit());
+        frame.position(start - SEQUENCE_HEADER_SIZE);
+        Packets.putSequenceHeader(frame, sequence);
+        start = HEADER_SIZE;
+        return frame;
+    }
+
+    public final ByteBuffer plain() {
+        if (start == HEADER_SIZE) {
+            body.position(0);
+            return body;
+        }
+        frame.limit(HEADER_SIZE + body.limit());
+        frame.position(start);
+        start = HEADER_SIZE;
+        return frame;
+    }
+}
@@ -0,0 +1,91 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear (HDR style) histogram of non negative values, 16 sub buckets per power of two (~6% error).
+// Single writer, any thread may read.
+public class Histogram {
+
+    private final static int SUB_BITS = 4;
+    private final static int SUB_COUNT = 1 << SUB_BITS;
+    private final static int LINEAR_COUNT = SUB_COUNT * 2;
+    private final static int BUCKET_COUNT = LINEAR_COUNT + (63 - (SUB_BITS + 1)) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong total = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    public final void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int i = bucketIndex(value);
+        counts.lazySet(i, counts.get(i) + 1);
+        total.lazySet(total.get() + 1);
+        sum.lazySet(sum.get() + value);
+        if (value > max.get()) {
+            max.lazySet(value);
+        }
+    }
+
+    public final void reset() {
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            counts.lazySet(i, 0);
+        }
+        total.lazySet(0);
+        sum.lazySet(0);
+        max.lazySet(0);
+    }
+
+    public final long getCount() {
+        return total.get();
+    }
+
+    public final long getMax() {
+        return max.get();
+    }
+
+    public final long getMean() {
+        long n = total.get();
+        return n > 0 ? sum.get() / n : 0;
+    }
+
+    // returns upper bound of bucket holding given percentile (0..100)
+    public final long getValueAtPercentile(double percentile) {
+        long n = total.get();
+        if (n == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+        long acc = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            acc += counts.get(i);
+            if (acc >= target) {
+                return Math.min(bucketUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private final static int bucketIndex(long value) {
+        if (value < LINEAR_COUNT) {
+            return (int) value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        int sub = (int) (value >>> shift) & (SUB_COUNT - 1);
+        return LINEAR_COUNT + (msb - (SUB_BITS + 1)) * SUB_COUNT + sub;
+    }
+
+    private final static long bucketUpperBound(int index) {
+        if (index < LINEAR_COUNT) {
+            return index;
+        }
+        int msb = (index - LINEAR_COUNT) / SUB_COUNT + SUB_BITS + 1;
+        int sub = (index - LINEAR_COUNT) % SUB_COUNT;
+        int shift = msb - SUB_BITS;
+        return ((long) (SUB_COUNT + sub) << shift) + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,170 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+// Madgwick gradient descent orientation filter (S. Madgwick, 2010), float math, no allocations.
+// gyro in rad/s, accel and mag in any unit (normalized), quaternion q0 (w), q1..q3 (x, y, z).
+public class OrientationFilter {
+
+    public float beta;
+    public float q0 = 1;
+    public float q1 = 0;
+    public float q2 = 0;
+    public float q3 = 0;
+
+    public OrientationFilter(float beta) {
+        this.beta = beta;
+    }
+
+    public final void reset() {
+        q0 = 1;
+        q1 = 0;
+        q2 = 0;
+        q3 = 0;
+    }
+
+    // gyro + accel
+    public final void updateImu(float gx, float gy, float gz, float ax, float ay, float az, float dt) {
+        float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        float an = ax * ax + ay * ay + az * az;
+        if (an > 0) {
+            float recipNorm = invSqrt(an);
+            ax *= recipNorm;
+            ay *= recipNorm;
+            az *= recipNorm;
+
+            float _2q0 = 2.0f * q0;
+            float _2q1 = 2.0f * q1;
+            float _2q2 = 2.0f * q2;
+            float _2q3 = 2.0f * q3;
+            float _4q0 = 4.0f * q0;
+            float _4q1 = 4.0f * q1;
+            float _4q2 = 4.0f * q2;
+            float _8q1 = 8.0f * q1;
+            float _8q2 = 8.0f * q2;
+            float q0q0 = q0 * q0;
+            float q1q1 = q1 * q1;
+            float q2q2 = q2 * q2;
+            float q3q3 = q3 * q3;
+
+            float s0 = _4q0 * q2q2 + _2q2 * ax + _4q0 * q1q1 - _2q1 * ay;
+            float s1 = _4q1 * q3q3 - _2q3 * ax + 4.0f * q0q0 * q1 - _2q0 * ay - _4q1 + _8q1 * q1q1 + _8q1 * q2q2 + _4q1 * az;
+            float s2 = 4.0f * q0q0 * q2 + _2q0 * ax + _4q2 * q3q3 - _2q3 * ay - _4q2 + _8q2 * q1q1 + _8q2 * q2q2 + _4q2 * az;
+            float s3 = 4.0f * q1q1 * q3 - _2q1 * ax + 4.0f * q2q2 * q3 - _2q2 * ay;
+
+            float sn = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+            if (sn > 0) {
+                recipNorm = beta * invSqrt(sn);
+                qDot1 -= s0 * recipNorm;
+                qDot2 -= s1 * recipNorm;
+                qDot3 -= s2 * recipNorm;
+                qDot4 -= s3 * recipNorm;
+            }
+        }
+
+        integrate(qDot1, qDot2, qDot3, qDot4, dt);
+    }
+
+    // gyro + accel + mag, falls back to imu update without usable mag
+    public final void updateMarg(float gx, float gy, float gz, float ax, float ay, float az, float mx, float my, float mz, float dt) {
+        float mn = mx * mx + my * my + mz * mz;
+        float an = ax * ax + ay * ay + az * az;
+        if (mn == 0 || an == 0) {
+            updateImu(gx, gy, gz, ax, ay, az, dt);
+            return;
+        }
+
+        float qDot1 = 0.5f * (-q1 * gx - q2 * gy - q3 * gz);
+        float qDot2 = 0.5f * (q0 * gx + q2 * gz - q3 * gy);
+        float qDot3 = 0.5f * (q0 * gy - q1 * gz + q3 * gx);
+        float qDot4 = 0.5f * (q0 * gz + q1 * gy - q2 * gx);
+
+        float recipNorm = invSqrt(an);
+        ax *= recipNorm;
+        ay *= recipNorm;
+        az *= recipNorm;
+        recipNorm = invSqrt(mn);
+        mx *= recipNorm;
+        my *= recipNorm;
+        mz *= recipNorm;
+
+        float _2q0mx = 2.0f * q0 * mx;
+        float _2q0my = 2.0f * q0 * my;
+        float _2q0mz = 2.0f * q0 * mz;
+        float _2q1mx = 2.0f * q1 * mx;
+        float _2q0 = 2.0f * q0;
+        float _2q1 = 2.0f * q1;
+        float _2q2 = 2.0f * q2;
+        float _2q3 = 2.0f * q3;
+        float _2q0q2 = 2.0f * q0 * q2;
+        float _2q2q3 = 2.0f * q2 * q3;
+        float q0q0 = q0 * q0;
+        float q0q1 = q0 * q1;
+        float q0q2 = q0 * q2;
+        float q0q3 = q0 * q3;
+        float q1q1 = q1 * q1;
+        float q1q2 = q1 * q2;
+        float q1q3 = q1 * q3;
+        float q2q2 = q2 * q2;
+        float q2q3 = q2 * q3;
+        float q3q3 = q3 * q3;
+
+        // reference direction of earth's magnetic field
+        float hx = mx * q0q0 - _2q0my * q3 + _2q0mz * q2 + mx * q1q1 + _2q1 * my * q2 + _2q1 * mz * q3 - mx * q2q2 - mx * q3q3;
+        float hy = _2q0mx * q3 + my * q0q0 - _2q0mz * q1 + _2q1mx * q2 - my * q1q1 + my * q2q2 + _2q2 * mz * q3 - my * q3q3;
+        float _2bx = (float) Math.sqrt(hx * hx + hy * hy);
+        float _2bz = -_2q0mx * q2 + _2q0my * q1 + mz * q0q0 + _2q1mx * q3 - mz * q1q1 + _2q2 * my * q3 - mz * q2q2 + mz * q3q3;
+        float _4bx = 2.0f * _2bx;
+        float _4bz = 2.0f * _2bz;
+
+        float fa0 = 2.0f * q1q3 - _2q0q2 - ax;
+        float fa1 = 2.0f * q0q1 + _2q2q3 - ay;
+        float fa2 = 1 - 2.0f * q1q1 - 2.0f * q2q2 - az;
+        float fm0 = _2bx * (0.5f - q2q2 - q3q3) + _2bz * (q1q3 - q0q2) - mx;
+        float fm1 = _2bx * (q1q2 - q0q3) + _2bz * (q0q1 + q2q3) - my;
+        float fm2 = _2bx * (q0q2 + q1q3) + _2bz * (0.5f - q1q1 - q2q2) - mz;
+
+        float s0 = -_2q2 * fa0 + _2q1 * fa1 - _2bz * q2 * fm0 + (-_2bx * q3 + _2bz * q1) * fm1 + _2bx * q2 * fm2;
+        float s1 = _2q3 * fa0 + _2q0 * fa1 - 4.0f * q1 * fa2 + _2bz * q3 * fm0 + (_2bx * q2 + _2bz * q0) * fm1 + (_2bx * q3 - _4bz * q1) * fm2;
+        float s2 = -_2q0 * fa0 + _2q3 * fa1 - 4.0f * q2 * fa2 + (-_4bx * q2 - _2bz * q0) * fm0 + (_2bx * q1 + _2bz * q3) * fm1 + (_2bx * q0 - _4bz * q2) * fm2;
+        float s3 = _2q1 * fa0 + _2q2 * fa1 + (-_4bx * q3 + _2bz * q1) * fm0 + (-_2bx * q0 + _2bz * q2) * fm1 + _2bx * q1 * fm2;
+
+        float sn = s0 * s0 + s1 * s1 + s2 * s2 + s3 * s3;
+        if (sn > 0) {
+            recipNorm = beta * invSqrt(sn);
+            qDot1 -= s0 * recipNorm;
+            qDot2 -= s1 * recipNorm;
+            qDot3 -= s2 * recipNorm;
+            qDot4 -= s3 * recipNorm;
+        }
+
+        integrate(qDot1, qDot2, qDot3, qDot4, dt);
+    }
+
+    // w, x, y, z
+    public final void getQuaternion(float[] out) {
+        out[0] = q0;
+        out[1] = q1;
+        out[2] = q2;
+        out[3] = q3;
+    }
+
+    private final void integrate(float qDot1, float qDot2, float qDot3, float qDot4, float dt) {
+        q0 += qDot1 * dt;
+        q1 += qDot2 * dt;
+        q2 += qDot3 * dt;
+        q3 += qDot4 * dt;
+
+        float recipNorm = invSqrt(q0 * q0 + q1 * q1 + q2 * q2 + q3 * q3);
+        q0 *= recipNorm;
+        q1 *= recipNorm;
+        q2 *= recipNorm;
+        q3 *= recipNorm;
+    }
+
+    private final static float invSqrt(float x) {
+        return (float) (1.0 / Math.sqrt(x));
+    }
+}
@@ -0,0 +1,103 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded single producer / single consumer queue of datagrams with preallocated slots.
+// Producer copies packet into free slot, consumer uses it in place and releases it. No locks, no allocations.
+public class PacketRing {
+
+    private final int capacity;
+    private final int mask;
+    private final ByteBuffer[] slots;
+    private final Object[] targets;
+    private final long[] stamps;
+
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+
+    public PacketRing(int capacity, int slotSize) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.slots = new ByteBuffer[capacity];
+        this.targets = new Object[capacity];
+        this.stamps = new long[capacity];
+        for (int i = 0; i < capacity; ++i) {
+            slots[i] = ByteBuffer.allocateDirect(slotSize);
+        }
+    }
+
+    //==============================================================================
+    // Producer
+    //==============================================================================
+
+    // copies src remaining bytes, src position is kept. Returns false when full or packet doesn't fit slot.
+    public final boolean offer(Object target, long stamp, ByteBuffer src) {
+        long t = tail.get();
+        if (t - head.get() >= capacity) {
+            return false;
+        }
+        int slot = (int) (t & mask);
+        ByteBuffer b = slots[slot];
+        if (src.remaining() > b.capacity()) {
+            return false;
+        }
+        b.clear();
+        int p = src.position();
+        b.put(src);
+        src.position(p);
+        b.flip();
+        targets[slot] = target;
+        stamps[slot] = stamp;
+
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    //==============================================================================
+    // Consumer
+    //==============================================================================
+
+    // null when empty, slot stays with consumer until release()
+    public final ByteBuffer peek() {
+        long h = head.get();
+        if (h >= tail.get()) {
+            return null;
+        }
+        return slots[(int) (h & mask)];
+    }
+
+    public final Object peekTarget() {
+        return targets[(int) (head.get() & mask)];
+    }
+
+    public final long peekStamp() {
+        return stamps[(int) (head.get() & mask)];
+    }
+
+    public final void release() {
+        long h = head.get();
+        targets[(int) (h & mask)] = null;
+        head.lazySet(h + 1);
+    }
+
+    //==============================================================================
+    // Getters
+    //==============================================================================
+
+    public final int getCapacity() {
+        return capacity;
+    }
+
+    public final int size() {
+        long n = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(n, capacity));
+    }
+
+    public final boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+}
@@ -0,0 +1,82 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+// Send thread fed by one producer through PacketRing: producer encodes and queues datagrams with their target,
+// this thread does the send syscalls on another core. Targets pinned to one stage keep their order.
+// Subclass sends one packet, ring slot is released right after.
+public abstract class PacketStage implements Runnable {
+
+    private final PacketRing ring;
+    private final AtomicBoolean waiting = new AtomicBoolean(false);
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    public PacketStage(int queueSize, int packetSize) {
+        ring = new PacketRing(queueSize, packetSize);
+    }
+
+    public final void start(String name) {
+        running = true;
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public final void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                // IGNORE
+            }
+            thread = null;
+        }
+    }
+
+    // producer thread, false when queue is full (caller counts it like full socket buffer)
+    public final boolean offer(Object target, ByteBuffer packet) {
+        if (!ring.offer(target, 0, packet)) {
+            return false;
+        }
+        // unparked only while flag is raised, so one wakeup per sleep
+        if (waiting.get() && waiting.compareAndSet(true, false)) {
+            LockSupport.unpark(thread);
+        }
+        return true;
+    }
+
+    @Override
+    public void run() {
+        onStart();
+        while (running) {
+            ByteBuffer packet;
+            while ((packet = ring.peek()) != null) {
+                send(ring.peekTarget(), packet);
+                ring.release();
+            }
+            waiting.set(true);
+            if (ring.isEmpty() && running) {
+                LockSupport.park(this);
+            }
+            waiting.set(false);
+        }
+    }
+
+    // stage thread before first packet, e.g. thread priority
+    protected void onStart() {
+    }
+
+    protected abstract void send(Object target, ByteBuffer packet);
+
+    public final int getQueued() {
+        return ring.size();
+    }
+
+    public final Thread getThread() {
+        return thread;
+    }
+}
@@ -0,0 +1,855 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+import static com.wongfei.sensorbroadcaster.protocol.Wire.*;
+
+// Encoders start new packet (buffer cleared, id written) and leave buffer ready for flip().
+// Decoders expect packet id already consumed with readPacketId().
+public final class Packets {
+
+    public static class SensorInfo {
+        public int uid;
+        public int type;
+        public String name;
+    }
+
+    public static class SensorDetails {
+        public int uid;
+        public int type;
+        public String name;
+        public String vendor;
+        public int version;
+        public float resolution;
+        public float maxRange;
+        public float power; // mA
+        public int minDelay; // us, 0 for on change sensors
+        public int maxDelay; // us
+        public int fifoReserved; // events
+        public int fifoMax;
+        public int reportingMode;
+        public int flags;
+    }
+
+    public static class EnumeratePage {
+        public int page;
+        public int pageCount;
+        public int count;
+    }
+
+    public static class SensorSample {
+        public int uid;
+        public long timestamp;
+        public int count;
+        public final float[] values = new float[MAX_VALUES];
+    }
+
+    public static class EnableSensorRequest {
+        public String password;
+        public int uid;
+        public boolean enabled;
+        public int rate;
+    }
+
+    public static class EnableSensorResponse {
+        public boolean success;
+        public int uid;
+    }
+
+    public static class Decimation {
+        public boolean success;
+        public String password;
+        public int uid;
+        public int mode;
+        public int rate;
+    }
+
+    public static class SensorEncoding {
+        public boolean success;
+        public String password;
+        public int uid;
+        public int encoding;
+        public float scale;
+    }
+
+    public static class StreamOptions {
+        public boolean success;
+        public String password;
+        public int flags;
+        public int mtu;
+        public int flushDeadline;
+    }
+
+    public static class Replay {
+        public boolean success;
+        public String password;
+        public long from;
+        public long to;
+        public int flags;
+    }
+
+    // requester stamps t1, t4 and responder stamps t2, t3, see ClockSync.
+    // request carries previous exchange so responder can estimate requester's clock too
+    public static class TimeSync {
+        public boolean present; // plain ping without stamps
+        public long t1;
+        public long t2;
+        public long t3;
+        public long previousT1; // 0 when there was no answered exchange
+        public long previousT4;
+    }
+
+    public static class LossReport {
+        public long received;
+        public long lost;
+    }
+
+    public static class Subscription {
+        public int uid;
+        public boolean enabled;
+        public int rate; // SENSOR_DELAY_* or period in us
+        public int latency; // max report latency in us, 0 delivers right away
+        public boolean success;
+    }
+
+    public static class Subscribe {
+        public boolean success;
+        public boolean passwordMatch; // request decoded against expected password, no string built
+        public int token; // 0 authenticates with password
+        public int flags;
+        public int count;
+        public final Subscription[] entries = new Subscription[MAX_SUBSCRIPTIONS];
+
+        public Subscribe() {
+            for (int i = 0; i < entries.length; ++i) {
+                entries[i] = new Subscription();
+            }
+        }
+    }
+
+    public static class Stats {
+        public long uptime; // ms
+        public long packetsSent;
+        public long bytesSent;
+        public long sendErrors;
+        public long sendDrops;
+        public long sampleDrops;
+        public int queueHighWater;
+        public int queueCapacity;
+        public int subscribers;
+        public int enabledSensors;
+        public long wakeups;
+        public long bursts;
+        public long latencyP50; // us
+        public long latencyP99;
+        public long latencyP999;
+        public long latencyMax;
+        public long loopP50; // us
+        public long loopP99;
+        public long loopMax;
+        public long callbackP50; // us
+        public long callbackP99;
+        public long callbackMax;
+        public boolean sensorThread; // callbacks on dedicated thread, otherwise main looper
+        public int threadPriority; // nice value of sensor and worker threads
+        public long requestsThrottled; // over per source request rate, not answered
+        public long requestDrops; // request queue to worker full
+        public long requestErrors; // malformed or failed requests, dropped
+        public int streamConnections; // TCP and WebSocket consumers
+        public long streamsStalled; // slow consumers closed
+        public int sensorCount;
+        public final int[] uids = new int[0xFF];
+        public final long[] eventsIn = new long[0xFF];
+        public final long[] eventsOut = new long[0xFF];
+    }
+
+    private Packets() {
+    }
+
+    public final static int readPacketId(ByteBuffer buf) {
+        return readU8(buf);
+    }
+
+    //==============================================================================
+    // Discovery
+    //==============================================================================
+
+    public final static void writeDetectDeviceRequest(ByteBuffer buf) {
+        initPacket(buf, PK_REQ_DETECT_DEVICE);
+    }
+
+    public final static void writeDetectDeviceResponse(ByteBuffer buf) {
+        initPacket(buf, PK_RESP_DETECT_DEVICE);
+    }
+
+    public final static void writePingDeviceRequest(ByteBuffer buf) {
+        initPacket(buf, PK_REQ_PING_DEVICE);
+    }
+
+    public final static void writePingDeviceResponse(ByteBuffer buf) {
+        initPacket(buf, PK_RESP_PING_DEVICE);
+    }
+
+    public final static void writeTimeSyncRequest(ByteBuffer buf, long t1, long previousT1, long previousT4) {
+        initPacket(buf, PK_REQ_PING_DEVICE);
+        buf.putLong(t1);
+        buf.putLong(previousT1);
+        buf.putLong(previousT4);
+    }
+
+    public final static void readTimeSyncRequest(ByteBuffer buf, TimeSync out) {
+        out.present = buf.remaining() >= 24;
+        if (out.present) {
+            out.t1 = buf.getLong();
+            out.previousT1 = buf.getLong();
+            out.previousT4 = buf.getLong();
+        }
+    }
+
+    public final static void writeTimeSyncResponse(ByteBuffer buf, long t1, long t2, long t3) {
+        initPacket(buf, PK_RESP_PING_DEVICE);
+        buf.putLong(t1);
+        buf.putLong(t2);
+        buf.putLong(t3);
+    }
+
+    // t4 is taken by caller on receive
+    public final static void readTimeSyncResponse(ByteBuffer buf, TimeSync out) {
+        out.present = buf.remaining() >= 24;
+        if (out.present) {
+            out.t1 = buf.getLong();
+            out.t2 = buf.getLong();
+            out.t3 = buf.getLong();
+        }
+    }
+
+    //==============================================================================
+    // Enumerate
+    //==============================================================================
+
+    public final static void writeEnumerateSensorsRequest(ByteBuffer buf) {
+        initPacket(buf, PK_REQ_ENUMERATE_SENSORS);
+    }
+
+    // returns number of entries caller must follow with writeSensorInfo
+    public final static int writeEnumerateSensorsResponse(ByteBuffer buf, int count) {
+        initPacket(buf, PK_RESP_ENUMERATE_SENSORS);
+        return writeU8(buf, count);
+    }
+
+    public final static void writeSensorInfo(ByteBuffer buf, int uid, int type, String name) throws UnsupportedEncodingException {
+        writeU8(buf, uid);
+        writeU8(buf, type);
+        writeStringU8(buf, name);
+    }
+
+    public final static void finishEnumerateSensorsResponse(ByteBuffer buf, int count) {
+        buf.put(1, (byte) Math.min(count, 0xFF));
+    }
+
+    public final static int sensorInfoSize(String name) throws UnsupportedEncodingException {
+        return 2 + 1 + Math.min(name.getBytes("UTF-8").length, 0xFF);
+    }
+
+    public final static int readEnumerateSensorsResponse(ByteBuffer buf, List<SensorInfo> out) throws UnsupportedEncodingException {
+        int n = readU8(buf);
+        for (int i = 0; i < n; ++i) {
+            SensorInfo info = new SensorInfo();
+            info.uid = readU8(buf);
+            info.type = readU8(buf);
+            info.name = readStringU8(buf);
+            out.add(info);
+        }
+        return n;
+    }
+
+    public final static void writeEnumeratePageRequest(ByteBuffer buf, int page) {
+        initPacket(buf, PK_REQ_ENUMERATE_PAGE);
+        writeU8(buf, page);
+    }
+
+    public final static int readEnumeratePageRequest(ByteBuffer buf) {
+        return readU8(buf);
+    }
+
+    // entries follow with writeSensorDetails, count patched with finishEnumeratePage
+    public final static void writeEnumeratePage(ByteBuffer buf, int page) {
+        initPacket(buf, PK_RESP_ENUMERATE_PAGE);
+        writeU8(buf, 0);
+        writeU8(buf, page);
+        writeU8(buf, 0);
+    }
+
+    public final static void finishEnumeratePage(ByteBuffer buf, int count) {
+        buf.put(1, (byte) Math.min(count, 0xFF));
+    }
+
+    // known once all pages are encoded
+    public final static void setEnumeratePageCount(ByteBuffer buf, int pageCount) {
+        buf.put(3, (byte) Math.min(pageCount, 0xFF));
+    }
+
+    // entries are read with readSensorDetails
+    public final static void readEnumeratePage(ByteBuffer buf, EnumeratePage out) {
+        out.count = readU8(buf);
+        out.page = readU8(buf);
+        out.pageCount = readU8(buf);
+    }
+
+    public final static void writeSensorDetails(ByteBuffer buf, SensorDetails d) throws UnsupportedEncodingException {
+        writeU8(buf, d.uid);
+        writeVarLong(buf, d.type);
+        writeStringU8(buf, d.name);
+        writeStringU8(buf, d.vendor);
+        writeVarLong(buf, d.version);
+        buf.putFloat(d.resolution);
+        buf.putFloat(d.maxRange);
+        buf.putFloat(d.power);
+        writeVarLong(buf, d.minDelay);
+        writeVarLong(buf, d.maxDelay);
+        writeVarLong(buf, d.fifoReserved);
+        writeVarLong(buf, d.fifoMax);
+        writeU8(buf, d.reportingMode);
+        writeU8(buf, d.flags);
+    }
+
+    public final static void readSensorDetails(ByteBuffer buf, SensorDetails out) throws UnsupportedEncodingException {
+        out.uid = readU8(buf);
+        out.type = (int) readVarLong(buf);
+        out.name = readStringU8(buf);
+        out.vendor = readStringU8(buf);
+        out.version = (int) readVarLong(buf);
+        out.resolution = buf.getFloat();
+        out.maxRange = buf.getFloat();
+        out.power = buf.getFloat();
+        out.minDelay = (int) readVarLong(buf);
+        out.maxDelay = (int) readVarLong(buf);
+        out.fifoReserved = (int) readVarLong(buf);
+        out.fifoMax = (int) readVarLong(buf);
+        out.reportingMode = readU8(buf);
+        out.flags = readU8(buf);
+    }
+
+    //==============================================================================
+    // Enable
+    //==============================================================================
+
+    public final static void writeEnableSensorRequest(ByteBuffer buf, String password, int uid, boolean enabled, int rate) throws UnsupportedEncodingException {
+        initPacket(buf, PK_REQ_ENABLE_SENSOR);
+        writeStringU8(buf, password);
+        writeU8(buf, uid);
+        writeBool(buf, enabled);
+        writeU8(buf, rate);
+    }
+
+    public final static void readEnableSensorRequest(ByteBuffer buf, EnableSensorRequest out) throws UnsupportedEncodingException {
+        out.password = readStringU8(buf);
+        out.uid = readU8(buf);
+        out.enabled = readBool(buf);
+        out.rate = readU8(buf);
+    }
+
+    public final static void writeEnableSensorResponse(ByteBuffer buf, boolean success, int uid) {
+        initPacket(buf, PK_RESP_ENABLE_SENSOR);
+        writeBool(buf, success);
+        writeU8(buf, uid);
+    }
+
+    public final static void readEnableSensorResponse(ByteBuffer buf, EnableSensorResponse out) {
+        out.success = readBool(buf);
+        out.uid = readU8(buf);
+    }
+
+    public final static void writeDisableAllSensorsRequest(ByteBuffer buf, String password) throws UnsupportedEncodingException {
+        initPacket(buf, PK_REQ_DISABLE_ALL_SENSORS);
+        writeStringU8(buf, password);
+    }
+
+    public final static String readDisableAllSensorsRequest(ByteBuffer buf) throws UnsupportedEncodingException {
+        return readStringU8(buf);
+    }
+
+    public final static void writeDisableAllSensorsResponse(ByteBuffer buf, boolean success) {
+        initPacket(buf, PK_RESP_DISABLE_ALL_SENSORS);
+        writeBool(buf, success);
+    }
+
+    public final static boolean readDisableAllSensorsResponse(ByteBuffer buf) {
+        return readBool(buf);
+    }
+
+    //==============================================================================
+    // Stream options
+    //==============================================================================
+
+    public final static void writeSetStreamOptionsRequest(ByteBuffer buf, String password, int flags, int mtu, int flushDeadline) throws UnsupportedEncodingException {
+        initPacket(buf, PK_REQ_SET_STREAM_OPTIONS);
+        writeStringU8(buf, password);
+        writeU8(buf, flags);
+        writeU16(buf, mtu);
+        writeU16(buf, flushDeadline);
+    }
+
+    public final static void readSetStreamOptionsRequest(ByteBuffer buf, StreamOptions out) throws UnsupportedEncodingException {
+        out.password = readStringU8(buf);
+        out.flags = readU8(buf);
+        out.mtu = readU16(buf);
+        out.flushDeadline = readU16(buf);
+    }
+
+    public final static void writeSetStreamOptionsResponse(ByteBuffer buf, boolean success, int flags, int mtu, int flushDeadline) {
+        initPacket(buf, PK_RESP_SET_STREAM_OPTIONS);
+        writeBool(buf, success);
+        writeU8(buf, flags);
+        writeU16(buf, mtu);
+        writeU16(buf, flushDeadline);
+    }
+
+    public final static void readSetStreamOptionsResponse(ByteBuffer buf, StreamOptions out) {
+        out.success = readBool(buf);
+        out.flags = readU8(buf);
+        out.mtu = readU16(buf);
+        out.flushDeadline = readU16(buf);
+    }
+
+    //==============================================================================
+    // Decimation
+    //==============================================================================
+
+    public final static void writeSetDecimationRequest(ByteBuffer buf, String password, int uid, int mode, int rate) throws UnsupportedEncodingException {
+        initPacket(buf, PK_REQ_SET_DECIMATION);
+        writeStringU8(buf, password);
+        writeU8(buf, uid);
+        writeU8(buf, mode);
+        writeU16(buf, rate);
+    }
+
+    public final static void readSetDecimationRequest(ByteBuffer buf, Decimation out) throws UnsupportedEncodingException {
+        out.password = readStringU8(buf);
+        out.uid = readU8(buf);
+        out.mode = readU8(buf);
+        out.rate = readU16(buf);
+    }
+
+    public final static void writeSetDecimationResponse(ByteBuffer buf, boolean success, int uid, int mode, int rate) {
+        initPacket(buf, PK_RESP_SET_DECIMATION);
+        writeBool(buf, success);
+        writeU8(buf, uid);
+        writeU8(buf, mode);
+        writeU16(buf, rate);
+    }
+
+    public final static void readSetDecimationResponse(ByteBuffer buf, Decimation out) {
+        out.success = readBool(buf);
+        out.uid = readU8(buf);
+        out.mode = readU8(buf);
+        out.rate = readU16(buf);
+    }
+
+    //==============================================================================
+    // Sensor encoding
+    //==============================================================================
+
+    public final static void writeSetSensorEncodingRequest(ByteBuffer buf, String password, int uid, int encoding, float scale) throws UnsupportedEncodingException {
+        initPacket(buf, PK_REQ_SET_SENSOR_ENCODING);
+        writeStringU8(buf, password);
+        writeU8(buf, uid);
+        writeU8(buf, encoding);
+        buf.putFloat(scale);
+    }
+
+    public final static void readSetSensorEncodingRequest(ByteBuffer buf, SensorEncoding out) throws UnsupportedEncodingException {
+        out.password = readStringU8(buf);
+        out.uid = readU8(buf);
+        out.encoding = readU8(buf);
+        out.scale = buf.getFloat();
+    }
+
+    public final static void writeSetSensorEncodingResponse(ByteBuffer buf, boolean success, int uid, int encoding, float scale) {
+        initPacket(buf, PK_RESP_SET_SENSOR_ENCODING);
+        writeBool(buf, success);
+        writeU8(buf, uid);
+        writeU8(buf, encoding);
+        buf.putFloat(scale);
+    }
+
+    public final static void readSetSensorEncodingResponse(ByteBuffer buf, SensorEncoding out) {
+        out.success = readBool(buf);
+        out.uid = readU8(buf);
+        out.encoding = readU8(buf);
+        out.scale = buf.getFloat();
+    }
+
+    //==============================================================================
+    // Stats
+    //==============================================================================
+
+    public final static void writeStatsRequest(ByteBuffer buf) {
+        initPacket(buf, PK_REQ_STATS);
+    }
+
+    // counters are unsigned varints, thread priority signed, per sensor entries which don't fit packet are left out
+    public final static void writeStatsResponse(ByteBuffer buf, Stats in) {
+        initPacket(buf, PK_RESP_STATS);
+        writeVarLong(buf, in.uptime);
+        writeVarLong(buf, in.packetsSent);
+        writeVarLong(buf, in.bytesSent);
+        writeVarLong(buf, in.sendErrors);
+        writeVarLong(buf, in.sendDrops);
+        writeVarLong(buf, in.sampleDrops);
+        writeU16(buf, in.queueHighWater);
+        writeU16(buf, in.queueCapacity);
+        writeU8(buf, in.subscribers);
+        writeU8(buf, in.enabledSensors);
+        writeVarLong(buf, in.wakeups);
+        writeVarLong(buf, in.bursts);
+        writeVarLong(buf, in.latencyP50);
+        writeVarLong(buf, in.latencyP99);
+        writeVarLong(buf, in.latencyP999);
+        writeVarLong(buf, in.latencyMax);
+        writeVarLong(buf, in.loopP50);
+        writeVarLong(buf, in.loopP99);
+        writeVarLong(buf, in.loopMax);
+        writeVarLong(buf, in.callbackP50);
+        writeVarLong(buf, in.callbackP99);
+        writeVarLong(buf, in.callbackMax);
+        writeBool(buf, in.sensorThread);
+        writeSignedVarLong(buf, in.threadPriority);
+        writeVarLong(buf, in.requestsThrottled);
+        writeVarLong(buf, in.requestDrops);
+        writeVarLong(buf, in.requestErrors);
+        writeU8(buf, in.streamConnections);
+        writeVarLong(buf, in.streamsStalled);
+
+        int countPos = buf.position();
+        writeU8(buf, 0);
+        int n = 0;
+        int total = Math.min(in.sensorCount, 0xFF);
+        while (n < total && buf.position() + 1 + 10 + 10 <= MAX_PACKET_SIZE) {
+            writeU8(buf, in.uids[n]);
+            writeVarLong(buf, in.eventsIn[n]);
+            writeVarLong(buf, in.eventsOut[n]);
+            n++;
+        }
+        buf.put(countPos, (byte) n);
+    }
+
+    public final static void readStatsResponse(ByteBuffer buf, Stats out) {
+        out.uptime = readVarLong(buf);
+        out.packetsSent = readVarLong(buf);
+        out.bytesSent = readVarLong(buf);
+        out.sendErrors = readVarLong(buf);
+        out.sendDrops = readVarLong(buf);
+        out.sampleDrops = readVarLong(buf);
+        out.queueHighWater = readU16(buf);
+        out.queueCapacity = readU16(buf);
+        out.subscribers = readU8(buf);
+        out.enabledSensors = readU8(buf);
+        out.wakeups = readVarLong(buf);
+        out.bursts = readVarLong(buf);
+        out.latencyP50 = readVarLong(buf);
+        out.latencyP99 = readVarLong(buf);
+        out.latencyP999 = readVarLong(buf);
+        out.latencyMax = readVarLong(buf);
+        out.loopP50 = readVarLong(buf);
+        out.loopP99 = readVarLong(buf);
+        out.loopMax = readVarLong(buf);
+        out.callbackP50 = readVarLong(buf);
+        out.callbackP99 = readVarLong(buf);
+        out.callbackMax = readVarLong(buf);
+        out.sensorThread = readBool(buf);
+        out.threadPriority = (int) readSignedVarLong(buf);
+        out.requestsThrottled = readVarLong(buf);
+        out.requestDrops = readVarLong(buf);
+        out.requestErrors = readVarLong(buf);
+        out.streamConnections = readU8(buf);
+        out.streamsStalled = readVarLong(buf);
+
+        int n = readU8(buf);
+        for (int i = 0; i < n; ++i) {
+            out.uids[i] = readU8(buf);
+            out.eventsIn[i] = readVarLong(buf);
+            out.eventsOut[i] = readVarLong(buf);
+        }
+        out.sensorCount = n;
+    }
+
+    //==============================================================================
+    // Sensor events
+    //==============================================================================
+
+    public final static int sensorRecordSize(int count) {
+        return 1 + 8 + 1 + Math.min(count, 0xFF) * 4;
+    }
+
+    public final static void writeSensorEvent(ByteBuffer buf, int uid, long timestamp, float[] values, int count) {
+        initPacket(buf, PK_CB_SENSOR_EVENT);
+        writeSensorRecord(buf, uid, timestamp, values, count);
+    }
+
+    public final static void readSensorEvent(ByteBuffer buf, SensorSample out) {
+        readSensorRecord(buf, out);
+    }
+
+    public final static void writeSensorEventBatch(ByteBuffer buf) {
+        initPacket(buf, PK_CB_SENSOR_EVENT_BATCH);
+        writeU8(buf, 0);
+    }
+
+    // patches record count in batch header
+    public final static void finishSensorEventBatch(ByteBuffer buf, int count) {
+        buf.put(1, (byte) Math.min(count, 0xFF));
+    }
+
+    public final static int readSensorEventBatch(ByteBuffer buf) {
+        return readU8(buf);
+    }
+
+    public final static void writeSensorRecord(ByteBuffer buf, int uid, long timestamp, float[] values, int count) {
+        writeU8(buf, uid);
+        buf.putLong(timestamp);
+        int n = writeU8(buf, count);
+        for (int i = 0; i < n; ++i) {
+            buf.putFloat(values[i]);
+        }
+    }
+
+    public final static void readSensorRecord(ByteBuffer buf, SensorSample out) {
+        out.uid = readU8(buf);
+        out.timestamp = buf.getLong();
+        int n = readU8(buf);
+        int stored = Math.min(n, MAX_VALUES);
+        for (int i = 0; i < stored; ++i) {
+            out.values[i] = buf.getFloat();
+        }
+        // skip values which don't fit sample
+        buf.position(buf.position() + (n - stored) * 4);
+        out.count = stored;
+    }
+
+    //==============================================================================
+    // Compact sensor events
+    //==============================================================================
+
+    // header: id, count, base timestamp; record: uid, zigzag varint timestamp delta from base, count, values.
+    // values are int16 for sensors with negotiated scale, float otherwise (scale <= 0).
+    public final static void writeCompactBatch(ByteBuffer buf, long baseTimestamp) {
+        initPacket(buf, PK_CB_SENSOR_EVENT_COMPACT_BATCH);
+        writeU8(buf, 0);
+        buf.putLong(baseTimestamp);
+    }
+
+    public final static int compactRecordMaxSize(int count, float scale) {
+        return 1 + 10 + 1 + Math.min(count, 0xFF) * (scale > 0 ? 2 : 4);
+    }
+
+    public final static void writeCompactRecord(ByteBuffer buf, int uid, long delta, float[] values, int count, float scale) {
+        writeU8(buf, uid);
+        writeSignedVarLong(buf, delta);
+        int n = writeU8(buf, count);
+        if (scale > 0) {
+            float k = 1.0f / scale;
+            for (int i = 0; i < n; ++i) {
+                // clamp in float domain, cheaper than Math.round
+                float x = Math.max(Short.MIN_VALUE, Math.min(values[i] * k, Short.MAX_VALUE));
+                buf.putShort((short) (x < 0 ? x - 0.5f : x + 0.5f));
+            }
+        } else {
+            for (int i = 0; i < n; ++i) {
+                buf.putFloat(values[i]);
+            }
+        }
+    }
+
+    // returns record count, base timestamp is read with buf.getLong() right after
+    public final static int readCompactBatch(ByteBuffer buf) {
+        return readU8(buf);
+    }
+
+    public final static void readCompactRecord(ByteBuffer buf, long baseTimestamp, float[] scales, SensorSample out) {
+        out.uid = readU8(buf);
+        out.timestamp = baseTimestamp + readSignedVarLong(buf);
+        int n = readU8(buf);
+        float scale = out.uid < scales.length ? scales[out.uid] : 0;
+        int stored = Math.min(n, MAX_VALUES);
+        if (scale > 0) {
+            for (int i = 0; i < stored; ++i) {
+                out.values[i] = buf.getShort() * scale;
+            }
+            buf.position(buf.position() + (n - stored) * 2);
+        } else {
+            for (int i = 0; i < stored; ++i) {
+                out.values[i] = buf.getFloat();
+            }
+            buf.position(buf.position() + (n - stored) * 4);
+        }
+        out.count = stored;
+    }
+
+    //==============================================================================
+    // Sequencing
+    //==============================================================================
+
+    // written in place in front of already encoded event packet, frame position stays unchanged
+    public final static void putSequenceHeader(ByteBuffer frame, int sequence) {
+        int p = frame.position();
+        frame.put(p, (byte) PK_CB_SEQUENCED);
+        frame.putInt(p + 1, sequence);
+    }
+
+    // returns sequence, wrapped packet follows starting with its own id
+    public final static int readSequenceHeader(ByteBuffer buf) {
+        return buf.getInt();
+    }
+
+    // written in place in front of already encoded batch packet, frame position stays unchanged.
+    // receiver's clock time of a sample = sample timestamp + offset
+    public final static void putClockHeader(ByteBuffer frame, long offset) {
+        int p = frame.position();
+        frame.put(p, (byte) PK_CB_CLOCK_OFFSET);
+        frame.putLong(p + 1, offset);
+    }
+
+    // returns offset, wrapped batch follows starting with its own id
+    public final static long readClockHeader(ByteBuffer buf) {
+        return buf.getLong();
+    }
+
+    //==============================================================================
+    // Reliable events
+    //==============================================================================
+
+    // u16 sequence followed by sensor record, client acks every copy it receives (including duplicates)
+    public final static void writeReliableEvent(ByteBuffer buf, int seq, int uid, long timestamp, float[] values, int count) {
+        initPacket(buf, PK_CB_RELIABLE_EVENT);
+        writeU16(buf, seq);
+        writeSensorRecord(buf, uid, timestamp, values, count);
+    }
+
+    // returns sequence to ack
+    public final static int readReliableEvent(ByteBuffer buf, SensorSample out) {
+        int seq = readU16(buf);
+        readSensorRecord(buf, out);
+        return seq;
+    }
+
+    public final static void writeAckEventRequest(ByteBuffer buf, int seq) {
+        initPacket(buf, PK_REQ_ACK_EVENT);
+        writeU16(buf, seq);
+    }
+
+    public final static int readAckEventRequest(ByteBuffer buf) {
+        return readU16(buf);
+    }
+
+    // receiver's cumulative sequence counters, e.g. SequenceTracker getReceived/getLost
+    public final static void writeLossReport(ByteBuffer buf, long received, long lost) {
+        initPacket(buf, PK_REQ_LOSS_REPORT);
+        writeVarLong(buf, received);
+        writeVarLong(buf, lost);
+    }
+
+    public final static void readLossReport(ByteBuffer buf, LossReport out) {
+        out.received = readVarLong(buf);
+        out.lost = readVarLong(buf);
+    }
+
+    //==============================================================================
+    // Replay
+    //==============================================================================
+
+    // time range in sensor timestamp base, inclusive
+    public final static void writeReplayRequest(ByteBuffer buf, String password, long from, long to, int flags) throws UnsupportedEncodingException {
+        initPacket(buf, PK_REQ_REPLAY);
+        writeStringU8(buf, password);
+        buf.putLong(from);
+        buf.putLong(to);
+        writeU8(buf, flags);
+    }
+
+    public final static void readReplayRequest(ByteBuffer buf, Replay out) throws UnsupportedEncodingException {
+        out.password = readStringU8(buf);
+        out.from = buf.getLong();
+        out.to = buf.getLong();
+        out.flags = readU8(buf);
+    }
+
+    public final static void writeReplayResponse(ByteBuffer buf, boolean success) {
+        initPacket(buf, PK_RESP_REPLAY);
+        writeBool(buf, success);
+    }
+
+    public final static boolean readReplayResponse(ByteBuffer buf) {
+        return readBool(buf);
+    }
+
+    // records follow with writeSensorRecord, count patched with finishSensorEventBatch
+    public final static void writeReplayBatch(ByteBuffer buf) {
+        initPacket(buf, PK_CB_REPLAY_BATCH);
+        writeU8(buf, 0);
+    }
+
+    public final static int readReplayBatch(ByteBuffer buf) {
+        return readU8(buf);
+    }
+
+    //==============================================================================
+    // Subscribe
+    //==============================================================================
+
+    // password is sent (and compared) only while token is 0
+    public final static void writeSubscribeRequest(ByteBuffer buf, int token, String password, int flags, Subscription[] entries, int count) throws UnsupportedEncodingException {
+        initPacket(buf, PK_REQ_SUBSCRIBE);
+        buf.putInt(token);
+        writeStringU8(buf, token != 0 ? "" : password);
+        writeU8(buf, flags);
+        int n = writeU8(buf, count);
+        for (int i = 0; i < n; ++i) {
+            Subscription e = entries[i];
+            writeU8(buf, e.uid);
+            writeBool(buf, e.enabled);
+            writeSignedVarLong(buf, e.rate);
+            writeSignedVarLong(buf, e.latency);
+        }
+    }
+
+    public final static void readSubscribeRequest(ByteBuffer buf, byte[] password, Subscribe out) {
+        out.token = buf.getInt();
+        out.passwordMatch = matchStringU8(buf, password);
+        out.flags = readU8(buf);
+        out.count = readU8(buf);
+        for (int i = 0; i < out.count; ++i) {
+            Subscription e = out.entries[i];
+            e.uid = readU8(buf);
+            e.enabled = readBool(buf);
+            e.rate = (int) readSignedVarLong(buf);
+            e.latency = (int) readSignedVarLong(buf);
+            e.success = false;
+        }
+    }
+
+    // token 0 when authentication failed or session ended with this request
+    public final static void writeSubscribeResponse(ByteBuffer buf, boolean success, int token, Subscription[] entries, int count) {
+        initPacket(buf, PK_RESP_SUBSCRIBE);
+        writeBool(buf, success);
+        buf.putInt(token);
+        int n = writeU8(buf, count);
+        for (int i = 0; i < n; ++i) {
+            writeU8(buf, entries[i].uid);
+            writeBool(buf, entries[i].success);
+        }
+    }
+
+    public final static void readSubscribeResponse(ByteBuffer buf, Subscribe out) {
+        out.success = readBool(buf);
+        out.token = buf.getInt();
+        out.count = readU8(buf);
+        for (int i = 0; i < out.count; ++i) {
+            out.entries[i].uid = readU8(buf);
+            out.entries[i].success = readBool(buf);
+        }
+    }
+}
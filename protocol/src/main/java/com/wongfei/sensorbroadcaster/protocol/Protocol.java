@@ -0,0 +1,77 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+public final class Protocol {
+
+    public final static int PK_REQ_DETECT_DEVICE = 0xA0;
+    public final static int PK_RESP_DETECT_DEVICE = 0xA1;
+    public final static int PK_REQ_PING_DEVICE = 0xA2; // optional time sync stamps, see Packets.TimeSync
+    public final static int PK_RESP_PING_DEVICE = 0xA3;
+    public final static int PK_REQ_ENUMERATE_SENSORS = 0xB0;
+    public final static int PK_RESP_ENUMERATE_SENSORS = 0xB1;
+    public final static int PK_REQ_ENABLE_SENSOR = 0xB2;
+    public final static int PK_RESP_ENABLE_SENSOR = 0xB3;
+    public final static int PK_REQ_DISABLE_ALL_SENSORS = 0xB4;
+    public final static int PK_RESP_DISABLE_ALL_SENSORS = 0xB5;
+    public final static int PK_REQ_SET_STREAM_OPTIONS = 0xB6;
+    public final static int PK_RESP_SET_STREAM_OPTIONS = 0xB7;
+    public final static int PK_REQ_SET_DECIMATION = 0xB8;
+    public final static int PK_RESP_SET_DECIMATION = 0xB9;
+    public final static int PK_REQ_SET_SENSOR_ENCODING = 0xBA;
+    public final static int PK_RESP_SET_SENSOR_ENCODING = 0xBB;
+    public final static int PK_REQ_STATS = 0xBC;
+    public final static int PK_RESP_STATS = 0xBD;
+    public final static int PK_REQ_ACK_EVENT = 0xBE; // no response
+    public final static int PK_REQ_LOSS_REPORT = 0xBF; // no response, feeds sender's congestion control
+    public final static int PK_REQ_REPLAY = 0xD0;
+    public final static int PK_RESP_REPLAY = 0xD1;
+    public final static int PK_REQ_SUBSCRIBE = 0xD2; // many sensors in one request, session token instead of password
+    public final static int PK_RESP_SUBSCRIBE = 0xD3;
+    public final static int PK_REQ_ENUMERATE_PAGE = 0xD4; // u8 page, sensor details split into datagram sized pages
+    public final static int PK_RESP_ENUMERATE_PAGE = 0xD5;
+    public final static int PK_CB_SENSOR_EVENT = 0xC0;
+    public final static int PK_CB_SENSOR_EVENT_BATCH = 0xC1;
+    public final static int PK_CB_SENSOR_EVENT_COMPACT_BATCH = 0xC2;
+    public final static int PK_CB_SEQUENCED = 0xC3; // u32 sequence followed by one complete event packet
+    public final static int PK_CB_RELIABLE_EVENT = 0xC4; // resent until acked with PK_REQ_ACK_EVENT
+    public final static int PK_CB_REPLAY_BATCH = 0xC5; // batch layout, empty batch ends replay
+    public final static int PK_CB_CLOCK_OFFSET = 0xC6; // i64 offset to receiver's clock followed by one complete batch packet
+
+    public final static int STREAM_FLAG_BATCH = 0x01;
+    public final static int STREAM_FLAG_COMPACT = 0x02; // implies batching
+    public final static int STREAM_FLAG_SEQUENCE = 0x04; // event packets wrapped in PK_CB_SEQUENCED
+    public final static int STREAM_FLAG_RELIABLE_TRIGGERS = 0x08; // one shot events sent as PK_CB_RELIABLE_EVENT
+    public final static int STREAM_FLAG_MULTICAST = 0x10; // request configures device's multicast group stream, not sender's
+    public final static int STREAM_FLAG_CLOCK = 0x20; // implies batching, batches wrapped in PK_CB_CLOCK_OFFSET once clock is synced
+
+    public final static int ENCODING_FLOAT = 0;
+    public final static int ENCODING_INT16 = 1; // value = raw * scale
+
+    public final static int REPLAY_FLAG_REAL_TIME = 0x01; // otherwise as fast as possible
+
+    public final static int SUBSCRIBE_FLAG_REPLACE = 0x01; // enabled sensors missing from request are disabled
+    public final static int SUBSCRIBE_FLAG_MULTICAST = 0x02; // entries apply to multicast group stream
+    public final static int MAX_SUBSCRIPTIONS = 0xFF;
+
+    public final static int SENSOR_FLAG_WAKE_UP = 0x01;
+    public final static int SENSOR_FLAG_VIRTUAL = 0x02; // computed on device, no hardware sensor behind uid
+
+    public final static int ENUMERATE_PAGE_SIZE = 1400; // stays below typical mtu, no ip fragmentation
+
+    public final static int DECIMATION_NONE = 0;
+    public final static int DECIMATION_KEEP_LATEST = 1;
+    public final static int DECIMATION_BOXCAR = 2;
+    public final static int DECIMATION_MIN_MAX = 3; // event carries all minimums followed by all maximums
+
+    // virtual sensor listed after hardware ones, values are orientation quaternion w, x, y, z
+    public final static int SENSOR_TYPE_ORIENTATION_FUSION = 0xF0;
+    public final static float QUATERNION_SCALE = 1.0f / 32767; // int16 encoding scale for unit quaternion components
+
+    public final static int MAX_PACKET_SIZE = 2048;
+    public final static int MAX_VALUES = 16;
+    public final static int SEQUENCE_HEADER_SIZE = 5;
+    public final static int CLOCK_HEADER_SIZE = 9;
+    public final static int STREAM_FRAME_HEADER_SIZE = 2; // TCP stream: u16 packet length before every packet
+
+    private Protocol() {
+    }
+}
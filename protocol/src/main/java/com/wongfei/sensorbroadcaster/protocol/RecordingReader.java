@@ -0,0 +1,132 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.wongfei.sensorbroadcaster.protocol.RecordingWriter.*;
+
+// Reads records of log written by RecordingWriter within a timestamp range, oldest segment first.
+// Records aren't in timestamp order, so every record is checked against range up to end of log,
+// segments whose min/max timestamps lie outside range are skipped whole.
+// Segment being written may grow while read, its end is taken from header on every call.
+public class RecordingReader {
+
+    private final File dir;
+    private final Packets.SensorSample scratch = new Packets.SensorSample();
+
+    private RandomAccessFile file = null;
+    private MappedByteBuffer map = null;
+    private int segment = -1;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+
+    public RecordingReader(File dir) {
+        this.dir = dir;
+    }
+
+    // positions reader at first record with timestamp in [from, to], returns false when log has none
+    public final boolean seek(long from, long to) throws IOException {
+        this.from = from;
+        this.to = to;
+        for (File f : listSegments(dir)) {
+            open(f);
+            if (!overlaps()) {
+                continue;
+            }
+            map.position(indexPosition());
+
+            int end = map.getInt(H_DATA_END);
+            while (map.position() < end) {
+                int p = map.position();
+                Packets.readSensorRecord(map, scratch);
+                if (inRange(scratch.timestamp)) {
+                    map.position(p);
+                    return true;
+                }
+            }
+        }
+        close();
+        return false;
+    }
+
+    // next record in range, false at end of log
+    public final boolean next(Packets.SensorSample out) throws IOException {
+        while (map != null) {
+            int end = map.getInt(H_DATA_END);
+            while (map.position() < end) {
+                Packets.readSensorRecord(map, out);
+                if (inRange(out.timestamp)) {
+                    return true;
+                }
+            }
+            // writer still appending to this one, more may come later
+            if (map.getInt(H_SEALED) == 0 || !openNext()) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    public final void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                // IGNORE
+            }
+            file = null;
+        }
+        map = null;
+    }
+
+    private final boolean inRange(long timestamp) {
+        return timestamp >= from && timestamp <= to;
+    }
+
+    private final boolean overlaps() {
+        return map.getLong(H_RECORDS) > 0 && map.getLong(H_MAX_TIMESTAMP) >= from && map.getLong(H_MIN_TIMESTAMP) <= to;
+    }
+
+    // last index entry whose records up to it are all before from
+    private final int indexPosition() {
+        int pos = DATA_START;
+        int n = map.getInt(H_INDEX_COUNT);
+        for (int i = 0; i < n; ++i) {
+            int entry = HEADER_SIZE + i * INDEX_ENTRY_SIZE;
+            if (map.getLong(entry) >= from) {
+                break;
+            }
+            pos = (int) map.getLong(entry + 8);
+        }
+        return pos;
+    }
+
+    // sealed segments outside range are skipped, one being written is read anyway
+    private final boolean openNext() throws IOException {
+        for (File f : listSegments(dir)) {
+            if (parseSegment(f) > segment) {
+                open(f);
+                if (overlaps() || map.getInt(H_SEALED) == 0) {
+                    map.position(indexPosition());
+                    return true;
+                }
+                map.position(map.getInt(H_DATA_END));
+            }
+        }
+        return false;
+    }
+
+    private final void open(File f) throws IOException {
+        close();
+        file = new RandomAccessFile(f, "r");
+        map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        segment = parseSegment(f);
+        if (map.getLong(H_MAGIC) != MAGIC) {
+            close();
+            throw new IOException("not a recording segment: " + f);
+        }
+    }
+}
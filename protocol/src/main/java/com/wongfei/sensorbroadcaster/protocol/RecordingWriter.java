@@ -0,0 +1,179 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// Appends sensor records to segmented log of memory mapped files, single thread.
+// Segment: fixed header, fixed index region (timestamp, offset) every indexInterval data bytes, then records
+// encoded same as batch records. Header is updated after every record so crashed segment stays readable.
+// Records are kept in arrival order, which isn't timestamp order across sensors (FIFO batches, sensor latency),
+// so header holds min/max timestamp and index entries the largest timestamp up to and including their record.
+public class RecordingWriter {
+
+    public final static long MAGIC = 0x53424C4F47000001L; // "SBLOG", version 1
+    public final static String SUFFIX = ".sbl";
+
+    public final static int HEADER_SIZE = 64;
+    public final static int H_MAGIC = 0;
+    public final static int H_SEGMENT = 8;
+    public final static int H_DATA_END = 12;
+    public final static int H_CREATED = 16; // wall clock ms
+    public final static int H_MIN_TIMESTAMP = 24;
+    public final static int H_MAX_TIMESTAMP = 32;
+    public final static int H_RECORDS = 40;
+    public final static int H_INDEX_COUNT = 48;
+    public final static int H_INDEX_INTERVAL = 52;
+    public final static int H_SEALED = 56; // set once writer moved on, nothing more will be appended
+
+    public final static int INDEX_ENTRIES = 256;
+    public final static int INDEX_ENTRY_SIZE = 16;
+    public final static int DATA_START = HEADER_SIZE + INDEX_ENTRIES * INDEX_ENTRY_SIZE;
+
+    public final static int MIN_SEGMENT_SIZE = DATA_START + 64 * 1024;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final int indexInterval;
+
+    private RandomAccessFile file = null;
+    private MappedByteBuffer map = null;
+    private int segment = 0;
+    private long records = 0;
+    private int indexCount = 0;
+    private long minTimestamp = 0;
+    private long maxTimestamp = 0;
+
+    public RecordingWriter(File dir, int segmentSize, int maxSegments) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        this.dir = dir;
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, segmentSize);
+        this.maxSegments = Math.max(1, maxSegments);
+        this.indexInterval = (this.segmentSize - DATA_START) / INDEX_ENTRIES + 1;
+
+        // continue numbering after segments of previous sessions
+        File[] existing = listSegments(dir);
+        segment = existing.length > 0 ? parseSegment(existing[existing.length - 1]) + 1 : 0;
+    }
+
+    public final void append(int uid, long timestamp, float[] values, int count) throws IOException {
+        int size = Packets.sensorRecordSize(count);
+        if (map == null || map.position() + size > map.capacity()) {
+            rotate();
+        }
+
+        int pos = map.position();
+        Packets.writeSensorRecord(map, uid, timestamp, values, count);
+        if (records == 0) {
+            minTimestamp = timestamp;
+            maxTimestamp = timestamp;
+        } else {
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+        }
+        records++;
+
+        if (indexCount < INDEX_ENTRIES && pos - DATA_START >= indexCount * indexInterval) {
+            int entry = HEADER_SIZE + indexCount * INDEX_ENTRY_SIZE;
+            map.putLong(entry, maxTimestamp);
+            map.putLong(entry + 8, pos);
+            indexCount++;
+            map.putInt(H_INDEX_COUNT, indexCount);
+        }
+
+        map.putLong(H_MIN_TIMESTAMP, minTimestamp);
+        map.putLong(H_MAX_TIMESTAMP, maxTimestamp);
+        map.putLong(H_RECORDS, records);
+        map.putInt(H_DATA_END, map.position());
+    }
+
+    public final void close() {
+        if (map != null) {
+            map.putInt(H_SEALED, 1);
+            segment++;
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ex) {
+                // IGNORE
+            }
+            file = null;
+        }
+        map = null;
+    }
+
+    public final File getDir() {
+        return dir;
+    }
+
+    // number of segment being written or next one to be created
+    public final int getSegment() {
+        return segment;
+    }
+
+    // segment creation and cleanup touch filesystem, once per segmentSize bytes
+    private final void rotate() throws IOException {
+        close();
+
+        File f = new File(dir, segmentName(segment));
+        file = new RandomAccessFile(f, "rw");
+        file.setLength(segmentSize);
+        map = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        records = 0;
+        indexCount = 0;
+
+        map.putLong(H_MAGIC, MAGIC);
+        map.putInt(H_SEGMENT, segment);
+        map.putInt(H_DATA_END, DATA_START);
+        map.putLong(H_CREATED, System.currentTimeMillis());
+        map.putLong(H_MIN_TIMESTAMP, 0);
+        map.putLong(H_MAX_TIMESTAMP, 0);
+        map.putLong(H_RECORDS, 0);
+        map.putInt(H_INDEX_COUNT, 0);
+        map.putInt(H_INDEX_INTERVAL, indexInterval);
+        map.putInt(H_SEALED, 0);
+        map.position(DATA_START);
+
+        File[] segments = listSegments(dir);
+        for (int i = 0; i < segments.length - maxSegments; ++i) {
+            segments[i].delete();
+        }
+    }
+
+    //==============================================================================
+    // Utils
+    //==============================================================================
+
+    public final static String segmentName(int segment) {
+        return String.format("%08d", segment) + SUFFIX;
+    }
+
+    public final static int parseSegment(File f) {
+        String name = f.getName();
+        return Integer.parseInt(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    // sorted oldest first
+    public final static File[] listSegments(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int n = 0;
+        for (File f : files) {
+            if (f.getName().matches("\\d{8}\\" + SUFFIX)) {
+                files[n++] = f;
+            }
+        }
+        File[] segments = Arrays.copyOf(files, n);
+        Arrays.sort(segments);
+        return segments;
+    }
+}
@@ -0,0 +1,71 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+// Per source token bucket for incoming requests, single thread. Each source keeps only the time its bucket
+// runs empty (GCRA): request passes when that time is at most burst - 1 intervals ahead of now.
+// Fixed open addressing table, no allocations. Source whose bucket refilled is as good as a free slot,
+// when probed slots all hold busy sources the one closest to refilled is replaced.
+public class RequestLimiter {
+
+    private final static int PROBES = 8;
+
+    private final int mask;
+    private final int[] keys;
+    private final long[] empty; // ns when bucket has no tokens left, <= now means full
+    private final boolean[] used;
+    private final long interval;
+    private final long tolerance;
+
+    // rate per second, 0 disables limiting
+    public RequestLimiter(int sources, int rate, int burst) {
+        int n = Integer.highestOneBit(Math.max(sources, PROBES) - 1) << 1;
+        this.mask = n - 1;
+        this.keys = new int[n];
+        this.empty = new long[n];
+        this.used = new boolean[n];
+        this.interval = rate > 0 ? 1000000000L / rate : 0;
+        this.tolerance = interval * (Math.max(burst, 1) - 1);
+    }
+
+    // source is any stable hash of sender, e.g. its IP address
+    public final boolean tryAcquire(int source, long now) {
+        if (interval == 0) {
+            return true;
+        }
+
+        // source may sit behind a slot freed later, so all probes are checked
+        int slot = -1;
+        int victim = -1;
+        long victimLeft = 0;
+        int h = mix(source);
+        for (int i = 0; i < PROBES; ++i) {
+            int s = (h + i) & mask;
+            if (used[s] && keys[s] == source) {
+                slot = s;
+                break;
+            }
+            long left = used[s] ? empty[s] - now : Long.MIN_VALUE;
+            if (victim < 0 || left < victimLeft) {
+                victim = s;
+                victimLeft = left;
+            }
+        }
+        if (slot < 0) {
+            slot = victim;
+            used[slot] = true;
+            keys[slot] = source;
+            empty[slot] = now;
+        }
+
+        long t = empty[slot] - now > 0 ? empty[slot] : now;
+        if (t - now > tolerance) {
+            return false;
+        }
+        empty[slot] = t + interval;
+        return true;
+    }
+
+    private final static int mix(int x) {
+        x *= 0x9E3779B9;
+        return x ^ (x >>> 16);
+    }
+}
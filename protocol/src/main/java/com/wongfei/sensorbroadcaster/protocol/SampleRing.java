@@ -0,0 +1,149 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Preallocated single producer / single consumer ring of sensor samples.
+// Values are copied on arrival, framework event objects are never retained.
+public class SampleRing {
+
+    public final static int OVERFLOW_DROP_OLDEST = 0;
+    public final static int OVERFLOW_DROP_NEWEST = 1;
+
+    public final static int MAX_VALUES = Protocol.MAX_VALUES;
+
+    public static class Sample {
+        public int uid;
+        public long timestamp;
+        public int count;
+        public long arrival; // System.nanoTime() in sensor callback
+        public final float[] values = new float[MAX_VALUES];
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final int overflowPolicy;
+
+    private final int[] uids;
+    private final long[] timestamps;
+    private final long[] arrivals;
+    private final int[] counts;
+    private final float[] values;
+
+    // head is advanced by consumer (and by producer when dropping oldest), tail only by producer
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong overflowCount = new AtomicLong(0);
+    private final AtomicLong highWaterMark = new AtomicLong(0); // producer only
+
+    public SampleRing(int capacity, int overflowPolicy) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be power of two: " + capacity);
+        }
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.uids = new int[capacity];
+        this.timestamps = new long[capacity];
+        this.arrivals = new long[capacity];
+        this.counts = new int[capacity];
+        this.values = new float[capacity * MAX_VALUES];
+    }
+
+    //==============================================================================
+    // Producer
+    //==============================================================================
+
+    public final boolean offer(int uid, long timestamp, float[] src) {
+        long t = tail.get();
+        long h = head.get();
+
+        if (t - h >= capacity) {
+            if (overflowPolicy == OVERFLOW_DROP_NEWEST) {
+                overflowCount.incrementAndGet();
+                return false;
+            }
+            // if CAS fails consumer just freed the slot itself
+            if (head.compareAndSet(h, h + 1)) {
+                overflowCount.incrementAndGet();
+            }
+        } else if (t - h + 1 > highWaterMark.get()) {
+            highWaterMark.lazySet(t - h + 1);
+        }
+
+        int slot = (int) (t & mask);
+        int n = Math.min(src.length, MAX_VALUES);
+        uids[slot] = uid;
+        timestamps[slot] = timestamp;
+        arrivals[slot] = System.nanoTime();
+        counts[slot] = n;
+        System.arraycopy(src, 0, values, slot * MAX_VALUES, n);
+
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    //==============================================================================
+    // Consumer
+    //==============================================================================
+
+    public final boolean poll(Sample dst) {
+        for (; ; ) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return false;
+            }
+
+            int slot = (int) (h & mask);
+            int n = counts[slot];
+            dst.uid = uids[slot];
+            dst.timestamp = timestamps[slot];
+            dst.arrival = arrivals[slot];
+            dst.count = n;
+            System.arraycopy(values, slot * MAX_VALUES, dst.values, 0, n);
+
+            // failed CAS means producer dropped this slot while we were copying it
+            if (head.compareAndSet(h, h + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public final void clear() {
+        for (; ; ) {
+            long h = head.get();
+            long t = tail.get();
+            if (h >= t || head.compareAndSet(h, t)) {
+                return;
+            }
+        }
+    }
+
+    //==============================================================================
+    // Getters
+    //==============================================================================
+
+    public final int getCapacity() {
+        return capacity;
+    }
+
+    public final int getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public final int size() {
+        long n = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(n, capacity));
+    }
+
+    public final boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public final long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    public final int getHighWaterMark() {
+        return (int) highWaterMark.get();
+    }
+}
@@ -0,0 +1,104 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+// Receiver side accounting of one sequenced stream (u32 sequence, wraps).
+// Sequence missing when it slides out of 64 packet window counts as lost, late arrivals inside window as reordered.
+public class SequenceTracker {
+
+    private final static int WINDOW = 64;
+
+    private boolean started = false;
+    private int highest = 0;
+    private long window = 0; // bit i set: highest - i received
+    private int span = 0; // valid window bits, stream may be younger than window
+
+    private long received = 0;
+    private long lost = 0;
+    private long reordered = 0;
+    private long duplicates = 0;
+
+    public final void reset() {
+        started = false;
+        highest = 0;
+        window = 0;
+        span = 0;
+        received = 0;
+        lost = 0;
+        reordered = 0;
+        duplicates = 0;
+    }
+
+    public final void update(int sequence) {
+        if (!started) {
+            started = true;
+            highest = sequence;
+            window = 1;
+            span = 1;
+            received++;
+            return;
+        }
+
+        int d = sequence - highest;
+        if (d > 0) {
+            if (d >= WINDOW) {
+                lost += missing(window, 0, span) + (d - WINDOW);
+                window = 1;
+                span = WINDOW;
+            } else {
+                lost += missing(window, WINDOW - d, span);
+                window = (window << d) | 1;
+                span = Math.min(WINDOW, span + d);
+            }
+            highest = sequence;
+            received++;
+        } else if (d == 0) {
+            duplicates++;
+        } else {
+            int pos = -d;
+            if (pos >= span) {
+                // older than window, was already counted lost
+                if (pos >= WINDOW && lost > 0) {
+                    lost--;
+                }
+                reordered++;
+                received++;
+            } else if ((window & (1L << pos)) != 0) {
+                duplicates++;
+            } else {
+                window |= 1L << pos;
+                reordered++;
+                received++;
+            }
+        }
+    }
+
+    public final long getReceived() {
+        return received;
+    }
+
+    // includes gaps still inside window which may yet arrive late
+    public final long getLost() {
+        return lost + missing(window, 0, span);
+    }
+
+    public final long getReordered() {
+        return reordered;
+    }
+
+    public final long getDuplicates() {
+        return duplicates;
+    }
+
+    public final int getHighest() {
+        return highest;
+    }
+
+    // zero bits in [from, to)
+    private final static int missing(long bits, int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        int n = to - from;
+        long mask = n == 64 ? -1L : ((1L << n) - 1) << from;
+        return n - Long.bitCount(bits & mask);
+    }
+}
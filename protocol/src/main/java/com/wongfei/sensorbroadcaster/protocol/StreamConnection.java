@@ -0,0 +1,365 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// One TCP consumer of StreamServer, owner thread only. Carries the same packets as UDP, each one framed:
+// raw TCP with u16 length prefix, WebSocket (client opens with HTTP upgrade) as one binary message.
+// Writes never block: packets queue in outgoing buffer, consumer which lets it grow above high watermark
+// is closed rather than fed a stream with holes.
+public class StreamConnection {
+
+    public final static int MODE_PENDING = 0; // nothing received yet
+    public final static int MODE_RAW = 1;
+    public final static int MODE_HANDSHAKE = 2; // HTTP upgrade request being received
+    public final static int MODE_WEBSOCKET = 3;
+
+    private final static int IN_SIZE = 4096; // also max HTTP upgrade request
+    private final static int WS_MAX_HEADER = 14;
+    private final static String WS_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    // subscriber key of connection, identity equality
+    public final static class Address extends SocketAddress {
+        private static final long serialVersionUID = 1L;
+
+        public final StreamConnection connection;
+
+        private Address(StreamConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public String toString() {
+            return (connection.mode == MODE_WEBSOCKET ? "ws:" : "tcp:") + connection.remote;
+        }
+    }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final InetSocketAddress remote;
+    private final Address address = new Address(this);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(IN_SIZE);
+    private final ByteBuffer out; // write mode, pending bytes from 0 to position
+    private final ByteBuffer frame = ByteBuffer.allocateDirect(MAX_PACKET_SIZE); // request handed to listener
+    private final int highWater;
+
+    private int mode = MODE_PENDING;
+    private boolean closing = false; // close once outgoing buffer is written
+    private boolean failed = false;
+    private boolean stalled = false; // crossed high watermark, closed on next poll
+    private long sent = 0;
+    private long dropped = 0;
+
+    StreamConnection(SocketChannel channel, SelectionKey key, int highWater) {
+        this.channel = channel;
+        this.key = key;
+        this.remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+        this.highWater = highWater;
+        // packet accepted below high watermark always fits
+        this.out = ByteBuffer.allocateDirect(highWater + WS_MAX_HEADER + MAX_PACKET_SIZE);
+    }
+
+    //==============================================================================
+    // Sending
+    //==============================================================================
+
+    // false when dropped: peer hasn't spoken yet, stalled or connection failed. Consumes packet.
+    public final boolean send(ByteBuffer packet) {
+        int n = packet.remaining();
+        if (failed || closing || stalled || n > MAX_PACKET_SIZE || (mode != MODE_RAW && mode != MODE_WEBSOCKET)) {
+            packet.position(packet.limit());
+            dropped++;
+            return false;
+        }
+
+        if (mode == MODE_RAW) {
+            out.putShort((short) n);
+        } else {
+            putWebSocketHeader(0x82, n);
+        }
+        out.put(packet);
+        sent++;
+        flush();
+
+        if (out.position() > highWater) {
+            stalled = true;
+        }
+        return true;
+    }
+
+    private final void putWebSocketHeader(int opcode, int n) {
+        out.put((byte) opcode);
+        if (n < 126) {
+            out.put((byte) n);
+        } else {
+            out.put((byte) 126);
+            out.putShort((short) n);
+        }
+    }
+
+    private final void flush() {
+        if (out.position() == 0 || failed) {
+            return;
+        }
+        try {
+            out.flip();
+            channel.write(out);
+            out.compact();
+        } catch (IOException ex) {
+            failed = true;
+            return;
+        }
+
+        // write interest only while kernel buffer is full, otherwise selector would spin
+        int ops = out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.isValid() && key.interestOps() != ops) {
+            key.interestOps(ops);
+        }
+    }
+
+    //==============================================================================
+    // Receiving
+    //==============================================================================
+
+    // owner thread each iteration, false when connection is done and should be closed
+    final boolean poll(int budget, StreamServer.Listener listener) throws Exception {
+        flush();
+        if (stalled || failed) {
+            return false;
+        }
+        if (closing) {
+            return out.position() > 0;
+        }
+
+        int n;
+        try {
+            n = channel.read(in);
+        } catch (IOException ex) {
+            return false;
+        }
+        in.flip();
+        try {
+            while (budget > 0 && !closing && !failed && in.hasRemaining()) {
+                int before = in.remaining();
+                int modeBefore = mode;
+                if (mode == MODE_PENDING) {
+                    // raw frame starts with length high byte, at most MAX_PACKET_SIZE >> 8, never 'G' of GET
+                    mode = in.get(in.position()) == 'G' ? MODE_HANDSHAKE : MODE_RAW;
+                } else if (mode == MODE_HANDSHAKE) {
+                    readHandshake();
+                } else if (mode == MODE_RAW) {
+                    if (readRawFrame()) {
+                        budget--;
+                        listener.onRequest(this, frame);
+                    }
+                } else if (readWebSocketFrame()) {
+                    budget--;
+                    listener.onRequest(this, frame);
+                }
+                if (in.remaining() == before && mode == modeBefore) {
+                    break; // incomplete frame
+                }
+            }
+            // full buffer without complete request never completes
+            if (in.remaining() == in.capacity() && mode == MODE_HANDSHAKE) {
+                failed = true;
+            }
+        } finally {
+            in.compact();
+        }
+        flush();
+        return n >= 0 && !failed;
+    }
+
+    private final boolean readRawFrame() {
+        if (in.remaining() < STREAM_FRAME_HEADER_SIZE) {
+            return false;
+        }
+        int n = in.getShort(in.position()) & 0xFFFF;
+        if (n == 0 || n > MAX_PACKET_SIZE) {
+            failed = true;
+            return false;
+        }
+        if (in.remaining() < STREAM_FRAME_HEADER_SIZE + n) {
+            return false;
+        }
+        in.position(in.position() + STREAM_FRAME_HEADER_SIZE);
+        frame.clear();
+        int limit = in.limit();
+        in.limit(in.position() + n);
+        frame.put(in);
+        in.limit(limit);
+        frame.flip();
+        return true;
+    }
+
+    // client frames are masked, fragmented and oversized messages are refused
+    private final boolean readWebSocketFrame() throws IOException {
+        int p = in.position();
+        if (in.remaining() < 2) {
+            return false;
+        }
+        int b0 = in.get(p) & 0xFF;
+        int b1 = in.get(p + 1) & 0xFF;
+        int opcode = b0 & 0x0F;
+        boolean fin = (b0 & 0x80) != 0;
+        int n = b1 & 0x7F;
+        int header = 2;
+        if ((b1 & 0x80) == 0 || n == 127) {
+            failed = true;
+            return false;
+        }
+        if (n == 126) {
+            if (in.remaining() < 4) {
+                return false;
+            }
+            n = in.getShort(p + 2) & 0xFFFF;
+            header = 4;
+        }
+        if (n > MAX_PACKET_SIZE || !fin) {
+            failed = true;
+            return false;
+        }
+        if (in.remaining() < header + 4 + n) {
+            return false;
+        }
+
+        int mask = p + header;
+        int payload = mask + 4;
+        frame.clear();
+        for (int i = 0; i < n; ++i) {
+            frame.put((byte) (in.get(payload + i) ^ in.get(mask + (i & 3))));
+        }
+        frame.flip();
+        in.position(payload + n);
+
+        switch (opcode) {
+            case 0x2:
+                return frame.hasRemaining();
+            case 0x8:
+                if (out.remaining() >= WS_MAX_HEADER) {
+                    putWebSocketHeader(0x88, 0);
+                }
+                closing = true;
+                return false;
+            case 0x9:
+                // consumer which can't keep up gets no pong either
+                if (out.remaining() >= WS_MAX_HEADER + n) {
+                    putWebSocketHeader(0x8A, n);
+                    out.put(frame);
+                }
+                return false;
+            case 0x1:
+            case 0xA:
+                return false;
+            default:
+                failed = true;
+                return false;
+        }
+    }
+
+    private final void readHandshake() throws Exception {
+        int end = -1;
+        for (int i = in.position(); i + 3 < in.limit(); ++i) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' && in.get(i + 3) == '\n') {
+                end = i + 4;
+                break;
+            }
+        }
+        if (end < 0) {
+            return;
+        }
+        byte[] request = new byte[end - in.position()];
+        in.get(request);
+
+        String key = null;
+        for (String line : new String(request, "US-ASCII").split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        String response;
+        if (key == null) {
+            response = "HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n";
+            closing = true;
+        } else {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            String accept = base64(sha1.digest((key + WS_GUID).getBytes("US-ASCII")));
+            response = "HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n";
+            mode = MODE_WEBSOCKET;
+        }
+        out.put(response.getBytes("US-ASCII"));
+    }
+
+    // android.util.Base64 and java.util.Base64 aren't both available
+    private final static String base64(byte[] data) {
+        String table = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            b |= i + 1 < data.length ? (data[i + 1] & 0xFF) << 8 : 0;
+            b |= i + 2 < data.length ? data[i + 2] & 0xFF : 0;
+            sb.append(table.charAt((b >> 18) & 0x3F));
+            sb.append(table.charAt((b >> 12) & 0x3F));
+            sb.append(i + 1 < data.length ? table.charAt((b >> 6) & 0x3F) : '=');
+            sb.append(i + 2 < data.length ? table.charAt(b & 0x3F) : '=');
+        }
+        return sb.toString();
+    }
+
+    final void close() {
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // IGNORE
+        }
+        failed = true;
+    }
+
+    //==============================================================================
+    // Getters
+    //==============================================================================
+
+    public final Address getAddress() {
+        return address;
+    }
+
+    public final InetSocketAddress getRemoteAddress() {
+        return remote;
+    }
+
+    public final int getMode() {
+        return mode;
+    }
+
+    public final boolean isStreaming() {
+        return (mode == MODE_RAW || mode == MODE_WEBSOCKET) && !failed && !closing;
+    }
+
+    // closed for letting outgoing buffer grow above high watermark
+    public final boolean isStalled() {
+        return stalled;
+    }
+
+    public final int getPending() {
+        return out.position();
+    }
+
+    public final long getSent() {
+        return sent;
+    }
+
+    public final long getDropped() {
+        return dropped;
+    }
+}
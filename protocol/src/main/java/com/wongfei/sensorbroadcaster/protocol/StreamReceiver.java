@@ -0,0 +1,246 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+
+// Reference client side decoder of the event stream.
+// Feed it every received datagram, it unwraps sequenced packets, decodes plain, batch and compact events
+// and keeps stream loss/reorder counters plus per sensor gaps and interarrival jitter.
+public class StreamReceiver {
+
+    public interface Listener {
+        void onSample(Packets.SensorSample sample, long arrivalNs);
+    }
+
+    public static class SensorStats {
+        public long samples;
+        public long reordered; // timestamp went backwards
+        public long gaps; // timestamp step longer than GAP_FACTOR periods
+        public long missingEstimate; // samples missing in those gaps
+        public double periodNs; // smoothed sample period
+        public double jitterNs; // RFC 3550 interarrival jitter
+        private long lastTimestamp;
+        private long lastTransit;
+        private long lastArrival;
+    }
+
+    private final static double GAP_FACTOR = 1.8;
+
+    private final Listener listener;
+    private final SequenceTracker sequence = new SequenceTracker();
+    private final SensorStats[] sensors = new SensorStats[0x100];
+    private final float[] scales = new float[0x100];
+    private final Packets.SensorSample sample = new Packets.SensorSample();
+
+    private long packets = 0;
+    private long sequencedPackets = 0;
+    private long malformed = 0;
+
+    // offset of last batch wrapped in PK_CB_CLOCK_OFFSET
+    private boolean clockSynced = false;
+    private long clockOffset = 0;
+
+    // reliable events, dedup window of 64 u16 sequences
+    private int ackSequence = -1;
+    private boolean reliableStarted = false;
+    private int reliableHighest = 0;
+    private long reliableWindow = 0;
+    private long reliableDuplicates = 0;
+
+    public StreamReceiver(Listener listener) {
+        this.listener = listener;
+    }
+
+    // int16 scale negotiated with PK_REQ_SET_SENSOR_ENCODING, 0 means float
+    public final void setScale(int uid, float scale) {
+        scales[uid & 0xFF] = scale;
+    }
+
+    // returns false when datagram is not an event packet
+    public final boolean receive(ByteBuffer buf, long arrivalNs) {
+        ackSequence = -1;
+        try {
+            int id = Packets.readPacketId(buf);
+            boolean sequenced = id == PK_CB_SEQUENCED;
+            int seq = 0;
+            if (sequenced) {
+                seq = Packets.readSequenceHeader(buf);
+                id = Packets.readPacketId(buf);
+            }
+            if (id == PK_CB_CLOCK_OFFSET) {
+                // set before samples are decoded, listener may map them right away
+                clockOffset = Packets.readClockHeader(buf);
+                clockSynced = true;
+                id = Packets.readPacketId(buf);
+            }
+
+            switch (id) {
+                case PK_CB_SENSOR_EVENT:
+                    Packets.readSensorEvent(buf, sample);
+                    onSample(arrivalNs);
+                    break;
+
+                case PK_CB_SENSOR_EVENT_BATCH: {
+                    int n = Packets.readSensorEventBatch(buf);
+                    for (int i = 0; i < n; ++i) {
+                        Packets.readSensorRecord(buf, sample);
+                        onSample(arrivalNs);
+                    }
+                    break;
+                }
+
+                case PK_CB_SENSOR_EVENT_COMPACT_BATCH: {
+                    int n = Packets.readCompactBatch(buf);
+                    long base = buf.getLong();
+                    for (int i = 0; i < n; ++i) {
+                        Packets.readCompactRecord(buf, base, scales, sample);
+                        onSample(arrivalNs);
+                    }
+                    break;
+                }
+
+                case PK_CB_RELIABLE_EVENT: {
+                    int rseq = Packets.readReliableEvent(buf, sample);
+                    // duplicates are acked too, previous ack may have been lost
+                    ackSequence = rseq;
+                    if (acceptReliable(rseq)) {
+                        onSample(arrivalNs);
+                    } else {
+                        reliableDuplicates++;
+                    }
+                    break;
+                }
+
+                default:
+                    return false;
+            }
+
+            packets++;
+            if (sequenced) {
+                sequencedPackets++;
+                sequence.update(seq);
+            }
+            return true;
+        } catch (BufferUnderflowException ex) {
+            malformed++;
+            return false;
+        }
+    }
+
+    private final boolean acceptReliable(int seq) {
+        if (!reliableStarted) {
+            reliableStarted = true;
+            reliableHighest = seq;
+            reliableWindow = 1;
+            return true;
+        }
+        int d = (short) (seq - reliableHighest);
+        if (d > 0) {
+            reliableWindow = d >= 64 ? 1 : (reliableWindow << d) | 1;
+            reliableHighest = seq;
+            return true;
+        }
+        if (-d >= 64) {
+            return false;
+        }
+        long bit = 1L << -d;
+        if ((reliableWindow & bit) != 0) {
+            return false;
+        }
+        reliableWindow |= bit;
+        return true;
+    }
+
+    private final void onSample(long arrivalNs) {
+        SensorStats st = sensors[sample.uid];
+        if (st == null) {
+            st = new SensorStats();
+            sensors[sample.uid] = st;
+        }
+
+        long ts = sample.timestamp;
+        long transit = arrivalNs - ts;
+        boolean packetStart = st.samples == 0 || arrivalNs != st.lastArrival;
+        if (st.samples > 0) {
+            long dt = ts - st.lastTimestamp;
+            if (dt < 0) {
+                st.reordered++;
+            } else if (dt > 0) {
+                if (st.periodNs > 0 && dt > GAP_FACTOR * st.periodNs) {
+                    st.gaps++;
+                    st.missingEstimate += Math.max(1, Math.round(dt / st.periodNs) - 1);
+                } else {
+                    st.periodNs = st.periodNs > 0 ? st.periodNs + (dt - st.periodNs) / 16 : dt;
+                }
+                st.lastTimestamp = ts;
+            }
+            // once per packet from its first sample of uid, so batching itself doesn't show up as jitter.
+            // clock offset between sensor and receiver cancels out in transit difference
+            if (packetStart) {
+                double d = Math.abs(transit - st.lastTransit);
+                st.jitterNs += (d - st.jitterNs) / 16;
+            }
+        } else {
+            st.lastTimestamp = ts;
+        }
+        if (packetStart) {
+            st.lastTransit = transit;
+            st.lastArrival = arrivalNs;
+        }
+        st.samples++;
+
+        if (listener != null) {
+            listener.onSample(sample, arrivalNs);
+        }
+    }
+
+    //==============================================================================
+    // Getters
+    //==============================================================================
+
+    public final SequenceTracker getSequence() {
+        return sequence;
+    }
+
+    // null until first sample of uid arrived
+    public final SensorStats getSensorStats(int uid) {
+        return sensors[uid & 0xFF];
+    }
+
+    public final long getPackets() {
+        return packets;
+    }
+
+    public final long getSequencedPackets() {
+        return sequencedPackets;
+    }
+
+    public final long getMalformed() {
+        return malformed;
+    }
+
+    // sequence caller must ack with PK_REQ_ACK_EVENT for last received datagram, -1 if none
+    public final int getAckSequence() {
+        return ackSequence;
+    }
+
+    public final long getReliableDuplicates() {
+        return reliableDuplicates;
+    }
+
+    // sender's estimate of receiver clock, requires STREAM_FLAG_CLOCK and time sync pings
+    public final boolean isClockSynced() {
+        return clockSynced;
+    }
+
+    public final long getClockOffset() {
+        return clockOffset;
+    }
+
+    // sample timestamp in receiver's clock (the one its time sync pings were stamped with)
+    public final long toReceiverTime(long timestamp) {
+        return timestamp + clockOffset;
+    }
+}
@@ -0,0 +1,123 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+
+// TCP / WebSocket listener on owner's selector, so the thread which sends UDP wakes for it too.
+// Owner polls every iteration: accepts, reads requests into listener, flushes outgoing buffers
+// and closes dead or stalled connections. Nothing here blocks.
+public class StreamServer {
+
+    public interface Listener {
+        // packet starts at packet id and is valid during call only
+        void onRequest(StreamConnection connection, ByteBuffer packet) throws Exception;
+
+        void onClose(StreamConnection connection);
+    }
+
+    public final static int MAX_CONNECTIONS = 16;
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Listener listener;
+    private final int highWater;
+    private final ArrayList<StreamConnection> connections = new ArrayList<>();
+    private long accepted = 0;
+    private long refused = 0;
+    private long stalled = 0;
+
+    // port 0 picks free one. High watermark is outgoing bytes per connection.
+    public StreamServer(Selector selector, InetSocketAddress bind, int highWater, Listener listener) throws IOException {
+        this.selector = selector;
+        this.listener = listener;
+        this.highWater = highWater;
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().setReuseAddress(true);
+        server.socket().bind(bind);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    // budget is requests handled per connection
+    public final void poll(int budget) throws Exception {
+        SocketChannel chan;
+        while ((chan = server.accept()) != null) {
+            if (connections.size() >= MAX_CONNECTIONS) {
+                refused++;
+                chan.close();
+                continue;
+            }
+            try {
+                chan.configureBlocking(false);
+                chan.socket().setTcpNoDelay(true);
+                SelectionKey key = chan.register(selector, SelectionKey.OP_READ);
+                connections.add(new StreamConnection(chan, key, highWater));
+                accepted++;
+            } catch (IOException ex) {
+                chan.close();
+            }
+        }
+
+        for (int i = connections.size() - 1; i >= 0; --i) {
+            StreamConnection connection = connections.get(i);
+            if (!connection.poll(budget, listener)) {
+                remove(i);
+            }
+        }
+    }
+
+    private final void remove(int i) {
+        StreamConnection connection = connections.remove(i);
+        if (connection.isStalled()) {
+            stalled++;
+        }
+        connection.close();
+        listener.onClose(connection);
+    }
+
+    public final void close() {
+        for (int i = connections.size() - 1; i >= 0; --i) {
+            remove(i);
+        }
+        try {
+            server.close();
+        } catch (IOException ex) {
+            // IGNORE
+        }
+    }
+
+    //==============================================================================
+    // Getters
+    //==============================================================================
+
+    public final int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    public final int getConnectionCount() {
+        return connections.size();
+    }
+
+    public final StreamConnection getConnection(int i) {
+        return connections.get(i);
+    }
+
+    public final long getAccepted() {
+        return accepted;
+    }
+
+    public final long getRefused() {
+        return refused;
+    }
+
+    // slow consumers closed at high watermark
+    public final long getStalled() {
+        return stalled;
+    }
+}
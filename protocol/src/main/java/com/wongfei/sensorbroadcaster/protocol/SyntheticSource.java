@@ -0,0 +1,118 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Generated sensors for benchmarks without hardware: count sensors of three phase shifted sines,
+// each at its own period, all on one generator thread. Timestamps are scheduled times, so a late
+// generator shows up downstream as latency, like a late sensor hub would. No allocations per sample.
+public class SyntheticSource implements Runnable {
+
+    public interface Sink {
+        void onSample(int uid, long timestamp, float[] values);
+    }
+
+    public final static int VALUES = 3;
+    public final static long MIN_PERIOD_NS = 100000L; // 10 kHz
+    private final static long IDLE_PARK_NS = 10000000L;
+    private final static long MAX_BACKLOG_NS = 100000000L; // generator stalled longer skips ahead instead of bursting
+
+    private final int count;
+    private final Sink sink;
+    private final AtomicLongArray periods; // ns, 0 disabled
+    private final long[] next; // generator thread only
+    private final float[] values = new float[VALUES];
+    private final AtomicLong generated = new AtomicLong(0);
+
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    public SyntheticSource(int count, Sink sink) {
+        this.count = count;
+        this.sink = sink;
+        this.periods = new AtomicLongArray(count);
+        this.next = new long[count];
+    }
+
+    // time base of timestamps, System.nanoTime() unless overridden
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    public final void start() {
+        running = true;
+        thread = new Thread(this, "SyntheticSource");
+        thread.start();
+    }
+
+    public final void stop() {
+        running = false;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                // IGNORE
+            }
+            thread = null;
+        }
+    }
+
+    // any thread, 0 disables sensor
+    public final void setPeriod(int uid, long periodNs) {
+        periods.set(uid, periodNs > 0 ? Math.max(periodNs, MIN_PERIOD_NS) : 0);
+        Thread t = thread;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    public final void disableAll() {
+        for (int i = 0; i < count; ++i) {
+            setPeriod(i, 0);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long now = now();
+            long wake = now + IDLE_PARK_NS;
+            for (int uid = 0; uid < count; ++uid) {
+                long period = periods.get(uid);
+                if (period == 0) {
+                    next[uid] = 0;
+                    continue;
+                }
+                if (next[uid] == 0 || now - next[uid] > MAX_BACKLOG_NS) {
+                    next[uid] = now;
+                }
+                while (next[uid] <= now) {
+                    emit(uid, next[uid]);
+                    next[uid] += period;
+                }
+                wake = Math.min(wake, next[uid]);
+            }
+            // parkNanos oversleeps by tens of us, due samples of fast sensors go out together next round
+            LockSupport.parkNanos(wake - now);
+        }
+    }
+
+    private final void emit(int uid, long timestamp) {
+        double phase = (timestamp % 1000000000L) * 1e-9 * 2 * Math.PI + uid;
+        for (int i = 0; i < VALUES; ++i) {
+            values[i] = (float) Math.sin(phase + i * (2 * Math.PI / VALUES));
+        }
+        sink.onSample(uid, timestamp, values);
+        generated.lazySet(generated.get() + 1);
+    }
+
+    public final int getCount() {
+        return count;
+    }
+
+    public final long getGenerated() {
+        return generated.get();
+    }
+}
@@ -0,0 +1,114 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+// Primitive field codec, all multi byte values use ByteBuffer default (big endian) order
+public final class Wire {
+
+    private Wire() {
+    }
+
+    public final static int castU8(byte x) {
+        return ((int) x) & 0xff;
+    }
+
+    public final static void writeBool(ByteBuffer buf, boolean x) {
+        buf.put((byte) (x ? 1 : 0));
+    }
+
+    public final static int writeU8(ByteBuffer buf, int x) {
+        x = Math.min(x, 0xFF);
+        buf.put((byte) x);
+        return x;
+    }
+
+    public final static void writeU16(ByteBuffer buf, int x) {
+        x = Math.max(0, Math.min(x, 0xFFFF));
+        buf.putShort((short) x);
+    }
+
+    // unsigned varint for counters and sizes, 1..10 bytes, negative values take all 10
+    public final static void writeVarLong(ByteBuffer buf, long x) {
+        long v = x;
+        while ((v & ~0x7FL) != 0) {
+            buf.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        buf.put((byte) v);
+    }
+
+    // zigzag varint for fields which may be negative, small magnitudes of either sign take 1 byte
+    public final static void writeSignedVarLong(ByteBuffer buf, long x) {
+        writeVarLong(buf, (x << 1) ^ (x >> 63));
+    }
+
+    public final static void writeArrayU8(ByteBuffer buf, byte[] data) {
+        int n = writeU8(buf, data.length);
+        buf.put(data, 0, n);
+    }
+
+    public final static void writeStringU8(ByteBuffer buf, String str) throws UnsupportedEncodingException {
+        byte[] data = str.getBytes("UTF-8");
+        writeArrayU8(buf, data);
+    }
+
+    public final static boolean readBool(ByteBuffer buf) {
+        return buf.get() != 0;
+    }
+
+    public final static int readU8(ByteBuffer buf) {
+        return castU8(buf.get());
+    }
+
+    public final static int readU16(ByteBuffer buf) {
+        return ((int) buf.getShort()) & 0xffff;
+    }
+
+    public final static long readVarLong(ByteBuffer buf) {
+        long v = 0;
+        int shift = 0;
+        for (; ; ) {
+            int b = buf.get();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            shift += 7;
+        }
+        return v;
+    }
+
+    public final static long readSignedVarLong(ByteBuffer buf) {
+        long v = readVarLong(buf);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    public final static String readStringU8(ByteBuffer buf) throws UnsupportedEncodingException {
+        int len = readU8(buf);
+        if (len > 0) {
+            byte[] data = new byte[len];
+            buf.get(data, 0, len);
+            return new String(data, 0, len, "UTF-8");
+        }
+        return "";
+    }
+
+    // compares string field with expected bytes without decoding it, field is consumed either way
+    public final static boolean matchStringU8(ByteBuffer buf, byte[] expected) {
+        int len = readU8(buf);
+        boolean match = len == expected.length;
+        for (int i = 0; i < len; ++i) {
+            byte b = buf.get();
+            if (match && b != expected[i]) {
+                match = false;
+            }
+        }
+        return match;
+    }
+
+    public final static void initPacket(ByteBuffer buf, int packetId) {
+        buf.clear();
+        writeU8(buf, packetId);
+    }
+}
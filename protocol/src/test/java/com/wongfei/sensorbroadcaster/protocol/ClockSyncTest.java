@@ -0,0 +1,105 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClockSyncTest {
+
+    private final static long OFFSET = 1234567890123L; // requester minus responder
+    private final static long PATH = 1000; // one way ns
+    private final static long PROCESSING = 500;
+
+    private final ClockSync sync = new ClockSync();
+
+    // exchange answered at responder time, requester clock runs drift faster
+    private final boolean exchange(long responder, long pathOut, long pathBack, double drift) {
+        long t2 = responder;
+        long t3 = responder + PROCESSING;
+        long t1 = t2 + OFFSET + Math.round(drift * t2) - pathOut;
+        long t4 = t3 + OFFSET + Math.round(drift * t3) + pathBack;
+        return sync.add(t1, t2, t3, t4);
+    }
+
+    @Test
+    public void fixedOffset() {
+        for (int i = 0; i < ClockSync.MIN_EXCHANGES - 1; ++i) {
+            assertTrue(exchange(i * 100000000L, PATH, PATH, 0));
+            assertFalse(sync.isValid());
+        }
+        assertTrue(exchange(1000000000L, PATH, PATH, 0));
+        assertTrue(sync.isValid());
+        assertEquals(ClockSync.MIN_EXCHANGES, sync.getCount());
+        assertEquals(OFFSET, sync.getOffset(2000000000L));
+        assertEquals(2 * PATH, sync.getDelay());
+        assertEquals(0, sync.getDrift(), 0);
+    }
+
+    @Test
+    public void slowExchangesIgnored() {
+        for (int i = 0; i < 40; ++i) {
+            // every other exchange queued on the way back
+            long back = i % 2 == 0 ? PATH : PATH + 5000000;
+            exchange(i * 100000000L, PATH, back, 0);
+        }
+        assertTrue(sync.isValid());
+        assertEquals(OFFSET, sync.getOffset(4000000000L));
+        assertEquals(2 * PATH, sync.getDelay());
+    }
+
+    @Test
+    public void drift() {
+        double drift = 100e-6;
+        long last = 0;
+        for (int i = 0; i < ClockSync.WINDOW; ++i) {
+            last = i * 100000000L;
+            exchange(last, PATH, PATH, drift);
+        }
+        assertEquals(drift, sync.getDrift(), 1e-6);
+        // one second ahead of newest exchange
+        long t = last + 1000000000L;
+        long expected = OFFSET + Math.round(drift * t);
+        assertEquals(expected, sync.getOffset(t), 1000);
+    }
+
+    @Test
+    public void driftNeedsSpan() {
+        for (int i = 0; i < 10; ++i) {
+            exchange(i * 100000000L, PATH, PATH, 100e-6);
+        }
+        // one second of history is below MIN_DRIFT_SPAN_NS, offset only
+        assertEquals(0, sync.getDrift(), 0);
+        assertTrue(sync.isValid());
+    }
+
+    @Test
+    public void driftClamped() {
+        for (int i = 0; i < 30; ++i) {
+            exchange(i * 100000000L, PATH, PATH, 0.01);
+        }
+        assertEquals(ClockSync.MAX_DRIFT, sync.getDrift(), 0);
+    }
+
+    @Test
+    public void inconsistentStamps() {
+        // responder answered before it received
+        assertFalse(sync.add(0, 100, 50, 1000));
+        // round trip shorter than responder processing
+        assertFalse(sync.add(0, 100, 1100, 500));
+        assertEquals(0, sync.getCount());
+        assertFalse(sync.isValid());
+    }
+
+    @Test
+    public void reset() {
+        for (int i = 0; i < ClockSync.MIN_EXCHANGES; ++i) {
+            exchange(i * 100000000L, PATH, PATH, 0);
+        }
+        sync.reset();
+        assertFalse(sync.isValid());
+        assertEquals(0, sync.getCount());
+        assertEquals(0, sync.getOffset(0));
+    }
+}
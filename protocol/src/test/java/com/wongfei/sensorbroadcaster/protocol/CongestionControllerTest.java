@@ -0,0 +1,151 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CongestionControllerTest {
+
+    private final CongestionController controller = new CongestionController();
+    private long now = 0;
+
+    @Before
+    public void start() {
+        controller.update(now);
+    }
+
+    // one interval of sends, returns true when level changed at its end
+    private final boolean interval(long sent, long drops) {
+        controller.onSends(sent, drops);
+        now += CongestionController.INTERVAL_MS;
+        return controller.update(now);
+    }
+
+    @Test
+    public void clean() {
+        for (int i = 0; i < 100; ++i) {
+            assertFalse(interval(100, 0));
+        }
+        assertEquals(0, controller.getLevel());
+        assertFalse(controller.isCompactForced());
+        assertEquals(1, controller.getRateDivisor());
+    }
+
+    @Test
+    public void dropsRaiseLevel() {
+        assertTrue(interval(100, 10));
+        assertEquals(1, controller.getLevel());
+        assertTrue(controller.isCompactForced());
+        assertEquals(1, controller.getRateDivisor());
+
+        // interval right after a step still describes old level
+        assertFalse(interval(100, 10));
+        assertEquals(1, controller.getLevel());
+
+        assertTrue(interval(100, 10));
+        assertEquals(2, controller.getLevel());
+        assertEquals(2, controller.getRateDivisor());
+
+        for (int i = 0; i < 20; ++i) {
+            interval(100, 10);
+        }
+        assertEquals(CongestionController.MAX_LEVEL, controller.getLevel());
+        assertEquals(1 << (CongestionController.MAX_LEVEL - 1), controller.getRateDivisor());
+    }
+
+    @Test
+    public void partialIntervalIgnored() {
+        controller.onSends(100, 50);
+        assertFalse(controller.update(now + CongestionController.INTERVAL_MS - 1));
+        assertEquals(0, controller.getLevel());
+    }
+
+    @Test
+    public void sparseDropsIgnored() {
+        for (int i = 0; i < 20; ++i) {
+            // high rate, but below MIN_DROPS
+            assertFalse(interval(10, CongestionController.MIN_DROPS - 1));
+        }
+        // many sends, drop rate below threshold
+        assertFalse(interval(10000, 50));
+        assertEquals(0, controller.getLevel());
+    }
+
+    @Test
+    public void cleanIntervalsLowerLevel() {
+        assertTrue(interval(100, 10));
+        assertFalse(interval(100, 0)); // settling
+        for (int i = 0; i < CongestionController.MIN_HOLD - 1; ++i) {
+            assertFalse(interval(100, 0));
+        }
+        assertTrue(interval(100, 0));
+        assertEquals(0, controller.getLevel());
+        assertFalse(controller.isCompactForced());
+    }
+
+    @Test
+    public void holdDoublesOnRelapse() {
+        assertTrue(interval(100, 10));
+        interval(100, 0);
+        for (int i = 0; i < CongestionController.MIN_HOLD; ++i) {
+            interval(100, 0);
+        }
+        assertEquals(0, controller.getLevel());
+        interval(100, 0); // settling
+        assertTrue(interval(100, 10));
+        assertEquals(2 * CongestionController.MIN_HOLD, controller.getHold());
+
+        // long clean run halves hold again
+        for (int i = 0; i < 200; ++i) {
+            interval(100, 0);
+        }
+        assertEquals(0, controller.getLevel());
+        assertEquals(CongestionController.MIN_HOLD, controller.getHold());
+    }
+
+    @Test
+    public void reportedLoss() {
+        controller.onLossReport(1000, 0);
+        // 40% loss, smoothed average crosses threshold in first interval
+        controller.onLossReport(1600, 400);
+        assertTrue(interval(0, 0));
+        assertEquals(1, controller.getLevel());
+    }
+
+    @Test
+    public void randomLossIgnored() {
+        long received = 0;
+        long lost = 0;
+        for (int i = 0; i < 50; ++i) {
+            received += 980;
+            lost += 20;
+            controller.onLossReport(received, lost);
+            assertFalse(interval(0, 0));
+        }
+        assertEquals(0, controller.getLevel());
+    }
+
+    @Test
+    public void receiverRestartIsBaseline() {
+        controller.onLossReport(100000, 50000);
+        // counters went back, not loss
+        controller.onLossReport(10, 0);
+        controller.onLossReport(1010, 0);
+        assertFalse(interval(0, 0));
+        assertEquals(0, controller.getLevel());
+    }
+
+    @Test
+    public void reset() {
+        interval(100, 10);
+        controller.reset();
+        assertEquals(0, controller.getLevel());
+        assertEquals(CongestionController.MIN_HOLD, controller.getHold());
+        // first update after reset only starts interval
+        controller.onSends(100, 50);
+        assertFalse(controller.update(now));
+    }
+}
@@ -0,0 +1,133 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EventBatchTest {
+
+    private final EventBatch batch = new EventBatch();
+    private final EventFrame frame = new EventFrame();
+    private final ByteBuffer event = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    private final Packets.SensorSample sample = new Packets.SensorSample();
+    private final float[] values = {1, 2, 3};
+
+    @Before
+    public void open() {
+        batch.setFrame(frame);
+        batch.setLimit(1400);
+    }
+
+    private final void appendEvent(int uid, long timestamp, long now) {
+        Packets.writeSensorEvent(event, uid, timestamp, values, 3);
+        event.flip();
+        batch.appendEvent(event, now);
+    }
+
+    @Test
+    public void empty() {
+        assertFalse(batch.finish());
+        assertEquals(0, batch.getCount());
+    }
+
+    @Test
+    public void events() {
+        appendEvent(1, 100, 7);
+        appendEvent(2, 200, 8);
+        assertEquals(2, batch.getCount());
+        assertEquals(7, batch.getStarted());
+        assertTrue(batch.finish());
+        assertEquals(0, batch.getCount());
+
+        ByteBuffer p = frame.plain();
+        assertEquals(PK_CB_SENSOR_EVENT_BATCH, Packets.readPacketId(p));
+        assertEquals(2, Packets.readSensorEventBatch(p));
+        Packets.readSensorRecord(p, sample);
+        assertEquals(1, sample.uid);
+        assertEquals(100, sample.timestamp);
+        assertEquals(3, sample.count);
+        Packets.readSensorRecord(p, sample);
+        assertEquals(2, sample.uid);
+        assertEquals(200, sample.timestamp);
+        assertFalse(p.hasRemaining());
+    }
+
+    @Test
+    public void compact() {
+        float[] scales = new float[256];
+        scales[2] = 0.5f;
+        batch.appendCompact(1, 1000, values, 3, 0, 5);
+        // older than batch base
+        batch.appendCompact(2, 900, values, 2, scales[2], 6);
+        assertEquals(5, batch.getStarted());
+        assertTrue(batch.finish());
+
+        ByteBuffer p = frame.plain();
+        assertEquals(PK_CB_SENSOR_EVENT_COMPACT_BATCH, Packets.readPacketId(p));
+        assertEquals(2, Packets.readCompactBatch(p));
+        long base = p.getLong();
+        assertEquals(1000, base);
+        Packets.readCompactRecord(p, base, scales, sample);
+        assertEquals(1, sample.uid);
+        assertEquals(1000, sample.timestamp);
+        assertEquals(3, sample.values[2], 0);
+        Packets.readCompactRecord(p, base, scales, sample);
+        assertEquals(2, sample.uid);
+        assertEquals(900, sample.timestamp);
+        assertEquals(2, sample.count);
+        assertEquals(2, sample.values[1], 0);
+        assertFalse(p.hasRemaining());
+    }
+
+    @Test
+    public void limit() {
+        int size = Packets.sensorRecordSize(3);
+        batch.setLimit(2 + size * 3);
+        // first record always fits
+        assertTrue(batch.fits(10000));
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(batch.fits(size));
+            appendEvent(i, i, 0);
+        }
+        assertFalse(batch.fits(size));
+        assertTrue(batch.finish());
+        assertEquals(2 + size * 3, frame.plain().remaining());
+
+        // new limit drops what was appended
+        appendEvent(9, 9, 0);
+        batch.setLimit(1400);
+        assertEquals(0, batch.getCount());
+        assertFalse(batch.finish());
+    }
+
+    @Test
+    public void recordCountLimit() {
+        batch.setLimit(MAX_PACKET_SIZE);
+        int n = 0;
+        while (batch.fits(Packets.compactRecordMaxSize(0, 0))) {
+            batch.appendCompact(1, n, values, 0, 0, 0);
+            n++;
+        }
+        assertEquals(0xFF, n);
+    }
+
+    @Test
+    public void headers() {
+        appendEvent(1, 100, 0);
+        batch.finish();
+        frame.clock(-5000);
+        ByteBuffer p = frame.sequenced(77);
+        assertEquals(PK_CB_SEQUENCED, Packets.readPacketId(p));
+        assertEquals(77, Packets.readSequenceHeader(p));
+        assertEquals(PK_CB_CLOCK_OFFSET, Packets.readPacketId(p));
+        assertEquals(-5000, Packets.readClockHeader(p));
+        assertEquals(PK_CB_SENSOR_EVENT_BATCH, Packets.readPacketId(p));
+        assertEquals(1, Packets.readSensorEventBatch(p));
+    }
+}
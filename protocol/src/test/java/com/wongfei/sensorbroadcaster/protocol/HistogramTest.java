@@ -0,0 +1,69 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    private final Histogram histogram = new Histogram();
+
+    private final void assertWithin(long expected, long actual, double error) {
+        assertTrue("expected ~" + expected + " got " + actual, Math.abs(actual - expected) <= expected * error);
+    }
+
+    @Test
+    public void empty() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean());
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void smallValuesExact() {
+        for (int i = 0; i < 32; ++i) {
+            histogram.record(i);
+        }
+        assertEquals(32, histogram.getCount());
+        assertEquals(31, histogram.getMax());
+        assertEquals(15, histogram.getValueAtPercentile(50));
+        assertEquals(31, histogram.getValueAtPercentile(100));
+        assertEquals(0, histogram.getValueAtPercentile(0));
+    }
+
+    @Test
+    public void percentiles() {
+        for (int i = 1; i <= 10000; ++i) {
+            histogram.record(i * 100L);
+        }
+        assertEquals(10000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500050, histogram.getMean());
+        // bucket upper bound, 16 sub buckets per power of two
+        assertWithin(500000, histogram.getValueAtPercentile(50), 0.0625);
+        assertWithin(990000, histogram.getValueAtPercentile(99), 0.0625);
+        assertTrue(histogram.getValueAtPercentile(50) >= 500000);
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void largeAndNegativeValues() {
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, histogram.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE / 2, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void reset() {
+        histogram.record(1000);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        histogram.record(7);
+        assertEquals(7, histogram.getValueAtPercentile(99));
+    }
+}
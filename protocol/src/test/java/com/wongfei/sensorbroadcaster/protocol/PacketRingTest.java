@@ -0,0 +1,111 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PacketRingTest {
+
+    private final static ByteBuffer packet(int... bytes) {
+        ByteBuffer b = ByteBuffer.allocate(bytes.length);
+        for (int x : bytes) {
+            b.put((byte) x);
+        }
+        b.flip();
+        return b;
+    }
+
+    @Test
+    public void order() {
+        PacketRing ring = new PacketRing(4, 16);
+        Object a = new Object();
+        Object b = new Object();
+        ByteBuffer src = packet(1, 2, 3);
+        assertTrue(ring.offer(a, 10, src));
+        // source kept for next subscriber
+        assertEquals(0, src.position());
+        assertTrue(ring.offer(b, 20, packet(4)));
+        assertEquals(2, ring.size());
+
+        ByteBuffer p = ring.peek();
+        assertEquals(3, p.remaining());
+        assertEquals(1, p.get(0));
+        assertSame(a, ring.peekTarget());
+        assertEquals(10, ring.peekStamp());
+        ring.release();
+
+        p = ring.peek();
+        assertEquals(1, p.remaining());
+        assertEquals(4, p.get(0));
+        assertSame(b, ring.peekTarget());
+        ring.release();
+        assertNull(ring.peek());
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void full() {
+        PacketRing ring = new PacketRing(2, 16);
+        assertTrue(ring.offer(null, 0, packet(1)));
+        assertTrue(ring.offer(null, 0, packet(2)));
+        assertFalse(ring.offer(null, 0, packet(3)));
+        ring.peek();
+        ring.release();
+        assertTrue(ring.offer(null, 0, packet(3)));
+    }
+
+    @Test
+    public void oversized() {
+        PacketRing ring = new PacketRing(2, 4);
+        assertFalse(ring.offer(null, 0, packet(1, 2, 3, 4, 5)));
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityPowerOfTwo() {
+        new PacketRing(3, 16);
+    }
+
+    // stage thread sends every packet once, in order
+    @Test
+    public void stage() throws Exception {
+        final List<Integer> sent = Collections.synchronizedList(new ArrayList<Integer>());
+        PacketStage stage = new PacketStage(16, 16) {
+            @Override
+            protected void send(Object target, ByteBuffer packet) {
+                sent.add(packet.getInt(0));
+            }
+        };
+        stage.start("test-stage");
+        ByteBuffer b = ByteBuffer.allocate(4);
+        int count = 100000;
+        for (int i = 0; i < count; ) {
+            b.clear();
+            b.putInt(i).flip();
+            if (stage.offer(this, b)) {
+                i++;
+            } else {
+                Thread.yield();
+            }
+        }
+        long end = System.currentTimeMillis() + 10000;
+        while (sent.size() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(1);
+        }
+        stage.stop();
+        assertEquals(count, sent.size());
+        for (int i = 0; i < count; ++i) {
+            assertEquals(i, (int) sent.get(i));
+        }
+        assertEquals(0, stage.getQueued());
+    }
+}
@@ -0,0 +1,327 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import static com.wongfei.sensorbroadcaster.protocol.Protocol.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketsTest {
+
+    private final ByteBuffer buf = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    private final Packets.SensorSample sample = new Packets.SensorSample();
+
+    private final void expectPacket(int id) {
+        buf.flip();
+        assertEquals(id, Packets.readPacketId(buf));
+    }
+
+    @Test
+    public void sensorEvent() {
+        float[] values = {1.5f, -2.25f, 9.81f};
+        Packets.writeSensorEvent(buf, 7, 123456789012L, values, 3);
+        assertEquals(Packets.sensorRecordSize(3), buf.position() - 1);
+
+        expectPacket(PK_CB_SENSOR_EVENT);
+        Packets.readSensorEvent(buf, sample);
+        assertEquals(7, sample.uid);
+        assertEquals(123456789012L, sample.timestamp);
+        assertEquals(3, sample.count);
+        for (int i = 0; i < 3; ++i) {
+            assertEquals(values[i], sample.values[i], 0);
+        }
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void sensorRecordSkipsExtraValues() {
+        float[] values = new float[MAX_VALUES + 2];
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = i;
+        }
+        Packets.writeSensorEvent(buf, 1, 0, values, values.length);
+        expectPacket(PK_CB_SENSOR_EVENT);
+        Packets.readSensorEvent(buf, sample);
+        assertEquals(MAX_VALUES, sample.count);
+        assertEquals(MAX_VALUES - 1, sample.values[MAX_VALUES - 1], 0);
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void sensorEventBatch() {
+        float[] values = {1, 2, 3};
+        Packets.writeSensorEventBatch(buf);
+        Packets.writeSensorRecord(buf, 1, 100, values, 3);
+        Packets.writeSensorRecord(buf, 2, 200, values, 1);
+        Packets.finishSensorEventBatch(buf, 2);
+
+        expectPacket(PK_CB_SENSOR_EVENT_BATCH);
+        assertEquals(2, Packets.readSensorEventBatch(buf));
+        Packets.readSensorRecord(buf, sample);
+        assertEquals(1, sample.uid);
+        assertEquals(100, sample.timestamp);
+        assertEquals(3, sample.count);
+        Packets.readSensorRecord(buf, sample);
+        assertEquals(2, sample.uid);
+        assertEquals(200, sample.timestamp);
+        assertEquals(1, sample.count);
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void compactBatch() {
+        float[] a = {1.0f, -1.0f, 0.004f};
+        float[] b = {1000.0f, 0.5f};
+        float[] scales = new float[256];
+        scales[3] = 0.01f; // int16 values
+        long base = 5000000000L;
+
+        Packets.writeCompactBatch(buf, base);
+        int start = buf.position();
+        Packets.writeCompactRecord(buf, 3, 0, a, 3, scales[3]);
+        assertTrue(buf.position() - start <= Packets.compactRecordMaxSize(3, scales[3]));
+        // record older than batch base
+        Packets.writeCompactRecord(buf, 4, -2500000L, b, 2, scales[4]);
+        Packets.finishSensorEventBatch(buf, 2);
+
+        expectPacket(PK_CB_SENSOR_EVENT_COMPACT_BATCH);
+        assertEquals(2, Packets.readCompactBatch(buf));
+        long readBase = buf.getLong();
+        assertEquals(base, readBase);
+
+        Packets.readCompactRecord(buf, readBase, scales, sample);
+        assertEquals(3, sample.uid);
+        assertEquals(base, sample.timestamp);
+        assertEquals(3, sample.count);
+        assertEquals(1.0f, sample.values[0], 0.005f);
+        assertEquals(-1.0f, sample.values[1], 0.005f);
+        assertEquals(0.0f, sample.values[2], 0.005f);
+
+        Packets.readCompactRecord(buf, readBase, scales, sample);
+        assertEquals(4, sample.uid);
+        assertEquals(base - 2500000L, sample.timestamp);
+        assertEquals(2, sample.count);
+        assertEquals(1000.0f, sample.values[0], 0);
+        assertEquals(0.5f, sample.values[1], 0);
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void compactValuesClampToInt16() {
+        float[] values = {1e6f, -1e6f};
+        float[] scales = new float[256];
+        scales[1] = 1.0f;
+        Packets.writeCompactBatch(buf, 0);
+        Packets.writeCompactRecord(buf, 1, 0, values, 2, scales[1]);
+        Packets.finishSensorEventBatch(buf, 1);
+
+        expectPacket(PK_CB_SENSOR_EVENT_COMPACT_BATCH);
+        Packets.readCompactBatch(buf);
+        Packets.readCompactRecord(buf, buf.getLong(), scales, sample);
+        assertEquals(Short.MAX_VALUE, sample.values[0], 0);
+        assertEquals(Short.MIN_VALUE, sample.values[1], 0);
+    }
+
+    @Test
+    public void stats() {
+        Packets.Stats in = new Packets.Stats();
+        in.uptime = 3600000;
+        in.packetsSent = 1L << 40;
+        in.bytesSent = 12345;
+        in.sendDrops = 3;
+        in.queueHighWater = 100;
+        in.queueCapacity = 4096;
+        in.subscribers = 2;
+        in.enabledSensors = 5;
+        in.latencyP999 = 777;
+        in.sensorThread = true;
+        in.threadPriority = -19;
+        in.requestsThrottled = 4;
+        in.requestDrops = 5;
+        in.requestErrors = 6;
+        in.streamConnections = 1;
+        in.streamsStalled = 7;
+        in.sensorCount = 2;
+        in.uids[0] = 10;
+        in.eventsIn[0] = 1000;
+        in.eventsOut[0] = 900;
+        in.uids[1] = 11;
+        in.eventsIn[1] = 5;
+        in.eventsOut[1] = 0;
+        Packets.writeStatsResponse(buf, in);
+
+        expectPacket(PK_RESP_STATS);
+        Packets.Stats out = new Packets.Stats();
+        Packets.readStatsResponse(buf, out);
+        assertEquals(in.uptime, out.uptime);
+        assertEquals(in.packetsSent, out.packetsSent);
+        assertEquals(in.bytesSent, out.bytesSent);
+        assertEquals(in.sendDrops, out.sendDrops);
+        assertEquals(in.queueHighWater, out.queueHighWater);
+        assertEquals(in.queueCapacity, out.queueCapacity);
+        assertEquals(in.subscribers, out.subscribers);
+        assertEquals(in.enabledSensors, out.enabledSensors);
+        assertEquals(in.latencyP999, out.latencyP999);
+        assertTrue(out.sensorThread);
+        assertEquals(-19, out.threadPriority);
+        assertEquals(4, out.requestsThrottled);
+        assertEquals(5, out.requestDrops);
+        assertEquals(6, out.requestErrors);
+        assertEquals(1, out.streamConnections);
+        assertEquals(7, out.streamsStalled);
+        assertEquals(2, out.sensorCount);
+        assertEquals(11, out.uids[1]);
+        assertEquals(1000, out.eventsIn[0]);
+        assertEquals(900, out.eventsOut[0]);
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void sensorDetails() throws Exception {
+        Packets.SensorDetails in = new Packets.SensorDetails();
+        in.uid = 9;
+        in.type = 65536;
+        in.name = "Accelerometer";
+        in.vendor = "Vendor";
+        in.version = 2;
+        in.resolution = 0.001f;
+        in.maxRange = 78.4f;
+        in.power = 0.15f;
+        in.minDelay = 5000;
+        in.maxDelay = 1000000;
+        in.fifoReserved = 300;
+        in.fifoMax = 3000;
+        in.reportingMode = 1;
+        in.flags = 3;
+        buf.clear();
+        Packets.writeSensorDetails(buf, in);
+        buf.flip();
+
+        Packets.SensorDetails out = new Packets.SensorDetails();
+        Packets.readSensorDetails(buf, out);
+        assertEquals(in.uid, out.uid);
+        assertEquals(in.type, out.type);
+        assertEquals(in.name, out.name);
+        assertEquals(in.vendor, out.vendor);
+        assertEquals(in.version, out.version);
+        assertEquals(in.resolution, out.resolution, 0);
+        assertEquals(in.maxRange, out.maxRange, 0);
+        assertEquals(in.power, out.power, 0);
+        assertEquals(in.minDelay, out.minDelay);
+        assertEquals(in.maxDelay, out.maxDelay);
+        assertEquals(in.fifoReserved, out.fifoReserved);
+        assertEquals(in.fifoMax, out.fifoMax);
+        assertEquals(in.reportingMode, out.reportingMode);
+        assertEquals(in.flags, out.flags);
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void subscribe() throws Exception {
+        Packets.Subscribe in = new Packets.Subscribe();
+        in.entries[0].uid = 1;
+        in.entries[0].enabled = true;
+        in.entries[0].rate = 3; // SENSOR_DELAY_NORMAL
+        in.entries[0].latency = 0;
+        in.entries[1].uid = 2;
+        in.entries[1].enabled = false;
+        in.entries[1].rate = -1;
+        in.entries[1].latency = 200000;
+        Packets.writeSubscribeRequest(buf, 0, "secret", STREAM_FLAG_SEQUENCE, in.entries, 2);
+
+        expectPacket(PK_REQ_SUBSCRIBE);
+        Packets.Subscribe out = new Packets.Subscribe();
+        Packets.readSubscribeRequest(buf, "secret".getBytes("UTF-8"), out);
+        assertEquals(0, out.token);
+        assertTrue(out.passwordMatch);
+        assertEquals(STREAM_FLAG_SEQUENCE, out.flags);
+        assertEquals(2, out.count);
+        assertEquals(1, out.entries[0].uid);
+        assertTrue(out.entries[0].enabled);
+        assertEquals(3, out.entries[0].rate);
+        assertEquals(2, out.entries[1].uid);
+        assertFalse(out.entries[1].enabled);
+        assertEquals(-1, out.entries[1].rate);
+        assertEquals(200000, out.entries[1].latency);
+        assertFalse(buf.hasRemaining());
+
+        // token replaces password
+        Packets.writeSubscribeRequest(buf, 0x1234, "secret", 0, in.entries, 0);
+        expectPacket(PK_REQ_SUBSCRIBE);
+        Packets.readSubscribeRequest(buf, "secret".getBytes("UTF-8"), out);
+        assertEquals(0x1234, out.token);
+        assertFalse(out.passwordMatch);
+
+        out.entries[0].success = true;
+        Packets.writeSubscribeResponse(buf, true, 0x1234, out.entries, 2);
+        expectPacket(PK_RESP_SUBSCRIBE);
+        Packets.Subscribe response = new Packets.Subscribe();
+        Packets.readSubscribeResponse(buf, response);
+        assertTrue(response.success);
+        assertEquals(0x1234, response.token);
+        assertEquals(2, response.count);
+        assertTrue(response.entries[0].success);
+        assertFalse(response.entries[1].success);
+    }
+
+    @Test
+    public void lossReport() {
+        Packets.writeLossReport(buf, 1L << 33, 17);
+        expectPacket(PK_REQ_LOSS_REPORT);
+        Packets.LossReport out = new Packets.LossReport();
+        Packets.readLossReport(buf, out);
+        assertEquals(1L << 33, out.received);
+        assertEquals(17, out.lost);
+        assertFalse(buf.hasRemaining());
+    }
+
+    @Test
+    public void sequenceAndClockHeaders() {
+        float[] values = {1};
+        // event encoded behind room for headers, headers put in front in place
+        int header = SEQUENCE_HEADER_SIZE + CLOCK_HEADER_SIZE;
+        ByteBuffer frame = ByteBuffer.allocate(MAX_PACKET_SIZE + header);
+        frame.position(header);
+        ByteBuffer body = frame.slice();
+        Packets.writeSensorEvent(body, 5, 42, values, 1);
+        frame.limit(header + body.position());
+
+        frame.position(SEQUENCE_HEADER_SIZE);
+        Packets.putClockHeader(frame, -123456789L);
+        frame.position(0);
+        Packets.putSequenceHeader(frame, -2);
+        assertEquals(0, frame.position());
+
+        assertEquals(PK_CB_SEQUENCED, Packets.readPacketId(frame));
+        assertEquals(-2, Packets.readSequenceHeader(frame));
+        assertEquals(PK_CB_CLOCK_OFFSET, Packets.readPacketId(frame));
+        assertEquals(-123456789L, Packets.readClockHeader(frame));
+        assertEquals(PK_CB_SENSOR_EVENT, Packets.readPacketId(frame));
+        Packets.readSensorEvent(frame, sample);
+        assertEquals(5, sample.uid);
+        assertEquals(42, sample.timestamp);
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void truncatedEvent() {
+        float[] values = {1, 2, 3};
+        Packets.writeSensorEvent(buf, 1, 100, values, 3);
+        buf.flip();
+        buf.limit(buf.limit() - 2);
+        Packets.readPacketId(buf);
+        Packets.readSensorEvent(buf, sample);
+    }
+
+    @Test(expected = BufferUnderflowException.class)
+    public void truncatedStats() {
+        Packets.writeStatsResponse(buf, new Packets.Stats());
+        buf.flip();
+        buf.limit(buf.limit() / 2);
+        Packets.readPacketId(buf);
+        Packets.readStatsResponse(buf, new Packets.Stats());
+    }
+}
@@ -0,0 +1,195 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// RecordingWriter and RecordingReader on a temporary directory
+public class RecordingTest {
+
+    private final static int RECORD_SIZE = Packets.sensorRecordSize(3);
+    private final static int PER_SEGMENT = (RecordingWriter.MIN_SEGMENT_SIZE - RecordingWriter.DATA_START) / RECORD_SIZE;
+
+    private final float[] values = new float[3];
+    private final Packets.SensorSample sample = new Packets.SensorSample();
+    private File dir;
+
+    @Before
+    public void open() throws Exception {
+        dir = Files.createTempDirectory("recording").toFile();
+    }
+
+    @After
+    public void delete() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private final void append(RecordingWriter writer, int uid, long timestamp) throws Exception {
+        values[0] = timestamp;
+        values[1] = uid;
+        values[2] = -1;
+        writer.append(uid, timestamp, values, 3);
+    }
+
+    // uid 0 every ms in order, timestamp i * 1000000
+    private final void appendInOrder(RecordingWriter writer, int from, int count) throws Exception {
+        for (int i = from; i < from + count; ++i) {
+            append(writer, 0, i * 1000000L);
+        }
+    }
+
+    private final int readAll(RecordingReader reader, long from, long to) throws Exception {
+        int n = 0;
+        if (!reader.seek(from, to)) {
+            return 0;
+        }
+        while (reader.next(sample)) {
+            assertTrue(sample.timestamp >= from && sample.timestamp <= to);
+            assertEquals(3, sample.count);
+            assertEquals(sample.timestamp, sample.values[0], 0);
+            assertEquals(sample.uid, sample.values[1], 0);
+            n++;
+        }
+        return n;
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        RecordingWriter writer = new RecordingWriter(dir, 0, 4);
+        appendInOrder(writer, 0, 100);
+        writer.close();
+
+        RecordingReader reader = new RecordingReader(dir);
+        assertTrue(reader.seek(Long.MIN_VALUE, Long.MAX_VALUE));
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(reader.next(sample));
+            assertEquals(0, sample.uid);
+            assertEquals(i * 1000000L, sample.timestamp);
+            assertEquals(-1, sample.values[2], 0);
+        }
+        assertFalse(reader.next(sample));
+        reader.close();
+    }
+
+    @Test
+    public void range() throws Exception {
+        RecordingWriter writer = new RecordingWriter(dir, 0, 4);
+        appendInOrder(writer, 0, 1000);
+        writer.close();
+
+        RecordingReader reader = new RecordingReader(dir);
+        assertEquals(101, readAll(reader, 500 * 1000000L, 600 * 1000000L));
+        assertEquals(0, readAll(reader, 2000 * 1000000L, 3000 * 1000000L));
+        reader.close();
+    }
+
+    @Test
+    public void segmentRollOver() throws Exception {
+        RecordingWriter writer = new RecordingWriter(dir, 0, 100);
+        int count = PER_SEGMENT * 3 + 10;
+        appendInOrder(writer, 0, count);
+        assertEquals(3, writer.getSegment());
+        writer.close();
+        assertEquals(4, RecordingWriter.listSegments(dir).length);
+
+        RecordingReader reader = new RecordingReader(dir);
+        assertTrue(reader.seek(Long.MIN_VALUE, Long.MAX_VALUE));
+        long expected = 0;
+        while (reader.next(sample)) {
+            assertEquals(expected, sample.timestamp);
+            expected += 1000000L;
+        }
+        assertEquals(count * 1000000L, expected);
+
+        // range inside third segment found through index
+        long from = (PER_SEGMENT * 2 + 100) * 1000000L;
+        assertEquals(50, readAll(reader, from, from + 49 * 1000000L));
+        reader.close();
+    }
+
+    @Test
+    public void oldSegmentsDeleted() throws Exception {
+        RecordingWriter writer = new RecordingWriter(dir, 0, 2);
+        appendInOrder(writer, 0, PER_SEGMENT * 4);
+        writer.close();
+        assertEquals(2, RecordingWriter.listSegments(dir).length);
+
+        RecordingReader reader = new RecordingReader(dir);
+        assertTrue(reader.seek(Long.MIN_VALUE, Long.MAX_VALUE));
+        assertTrue(reader.next(sample));
+        assertEquals(PER_SEGMENT * 2 * 1000000L, sample.timestamp);
+        reader.close();
+
+        // next session continues numbering
+        writer = new RecordingWriter(dir, 0, 2);
+        appendInOrder(writer, PER_SEGMENT * 4, 1);
+        assertEquals(4, writer.getSegment());
+        writer.close();
+    }
+
+    @Test
+    public void outOfOrderSensors() throws Exception {
+        // uid 1 is delivered half a second late, e.g. out of a sensor FIFO
+        RecordingWriter writer = new RecordingWriter(dir, 0, 100);
+        int count = PER_SEGMENT * 3;
+        for (int i = 0; i < count; i += 2) {
+            append(writer, 0, i * 1000000L);
+            append(writer, 1, (i - 500) * 1000000L);
+        }
+        writer.close();
+        assertTrue(RecordingWriter.listSegments(dir).length > 2);
+
+        // range ends before late records logged after it
+        RecordingReader reader = new RecordingReader(dir);
+        long from = 1000 * 1000000L;
+        long to = 1999 * 1000000L;
+        int n = 0;
+        int late = 0;
+        assertTrue(reader.seek(from, to));
+        while (reader.next(sample)) {
+            assertTrue(sample.timestamp >= from && sample.timestamp <= to);
+            if (sample.uid == 1) {
+                late++;
+            }
+            n++;
+        }
+        assertEquals(1000, n);
+        assertEquals(500, late);
+
+        // range at end of second segment, most of its late records sit in third
+        from = (PER_SEGMENT * 2 - 700) * 1000000L;
+        to = from + 999 * 1000000L;
+        assertEquals(1000, readAll(reader, from, to));
+        reader.close();
+    }
+
+    @Test
+    public void readWhileWriting() throws Exception {
+        RecordingWriter writer = new RecordingWriter(dir, 0, 100);
+        appendInOrder(writer, 0, 10);
+
+        RecordingReader reader = new RecordingReader(dir);
+        assertEquals(10, readAll(reader, Long.MIN_VALUE, Long.MAX_VALUE));
+
+        // segment being written grows, then writer moves on to next one
+        appendInOrder(writer, 10, PER_SEGMENT);
+        int n = 0;
+        while (reader.next(sample)) {
+            assertEquals((10 + n) * 1000000L, sample.timestamp);
+            n++;
+        }
+        assertEquals(PER_SEGMENT, n);
+        writer.close();
+        reader.close();
+    }
+}
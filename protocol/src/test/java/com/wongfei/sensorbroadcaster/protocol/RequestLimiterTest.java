@@ -0,0 +1,79 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestLimiterTest {
+
+    private final static long SECOND = 1000000000L;
+
+    private final static int acquired(RequestLimiter limiter, int source, long now, int attempts) {
+        int n = 0;
+        for (int i = 0; i < attempts; ++i) {
+            if (limiter.tryAcquire(source, now)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void burstThenThrottle() {
+        RequestLimiter limiter = new RequestLimiter(16, 10, 3);
+        assertEquals(3, acquired(limiter, 1, 0, 10));
+        assertFalse(limiter.tryAcquire(1, SECOND / 20));
+    }
+
+    @Test
+    public void refill() {
+        RequestLimiter limiter = new RequestLimiter(16, 10, 3);
+        long now = 5 * SECOND;
+        assertEquals(3, acquired(limiter, 1, now, 3));
+        // one token per interval
+        assertTrue(limiter.tryAcquire(1, now + SECOND / 10));
+        assertFalse(limiter.tryAcquire(1, now + SECOND / 10));
+        // idle source gets whole burst back, not more
+        assertEquals(3, acquired(limiter, 1, now + 10 * SECOND, 10));
+    }
+
+    @Test
+    public void steadyRate() {
+        RequestLimiter limiter = new RequestLimiter(16, 100, 1);
+        int n = 0;
+        for (long t = 0; t < SECOND; t += SECOND / 1000) {
+            if (limiter.tryAcquire(1, t)) {
+                n++;
+            }
+        }
+        assertEquals(100, n);
+    }
+
+    @Test
+    public void unlimited() {
+        RequestLimiter limiter = new RequestLimiter(16, 0, 1);
+        assertEquals(1000, acquired(limiter, 1, 0, 1000));
+    }
+
+    @Test
+    public void independentSources() {
+        RequestLimiter limiter = new RequestLimiter(16, 10, 2);
+        assertEquals(2, acquired(limiter, 0x0A000001, 0, 5));
+        assertEquals(2, acquired(limiter, 0x0A000002, 0, 5));
+        assertFalse(limiter.tryAcquire(0x0A000001, 0));
+    }
+
+    @Test
+    public void busySourceKeptWhenTableFull() {
+        RequestLimiter limiter = new RequestLimiter(8, 1, 1);
+        assertTrue(limiter.tryAcquire(1, 0));
+        // many one shot sources, all refilled before the busy one
+        for (int i = 2; i < 1000; ++i) {
+            limiter.tryAcquire(i, -SECOND);
+        }
+        assertFalse(limiter.tryAcquire(1, SECOND / 2));
+        assertTrue(limiter.tryAcquire(1, SECOND));
+    }
+}
@@ -0,0 +1,135 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SampleRingTest {
+
+    private final float[] values = {1, 2, 3};
+    private final SampleRing.Sample sample = new SampleRing.Sample();
+
+    @Test
+    public void order() {
+        SampleRing ring = new SampleRing(8, SampleRing.OVERFLOW_DROP_OLDEST);
+        assertTrue(ring.isEmpty());
+        for (int i = 0; i < 5; ++i) {
+            values[0] = i;
+            assertTrue(ring.offer(i, i * 10L, values));
+        }
+        assertEquals(5, ring.size());
+        for (int i = 0; i < 5; ++i) {
+            assertTrue(ring.poll(sample));
+            assertEquals(i, sample.uid);
+            assertEquals(i * 10L, sample.timestamp);
+            assertEquals(3, sample.count);
+            assertEquals(i, sample.values[0], 0);
+            assertEquals(3, sample.values[2], 0);
+        }
+        assertFalse(ring.poll(sample));
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test
+    public void valuesCopied() {
+        SampleRing ring = new SampleRing(4, SampleRing.OVERFLOW_DROP_OLDEST);
+        ring.offer(1, 0, values);
+        values[0] = 100;
+        ring.poll(sample);
+        assertEquals(1, sample.values[0], 0);
+    }
+
+    @Test
+    public void tooManyValuesTruncated() {
+        SampleRing ring = new SampleRing(4, SampleRing.OVERFLOW_DROP_OLDEST);
+        ring.offer(1, 0, new float[SampleRing.MAX_VALUES + 4]);
+        ring.poll(sample);
+        assertEquals(SampleRing.MAX_VALUES, sample.count);
+    }
+
+    @Test
+    public void dropOldest() {
+        SampleRing ring = new SampleRing(4, SampleRing.OVERFLOW_DROP_OLDEST);
+        for (int i = 0; i < 6; ++i) {
+            assertTrue(ring.offer(i, i, values));
+        }
+        assertEquals(4, ring.size());
+        assertEquals(2, ring.getOverflowCount());
+        assertEquals(4, ring.getHighWaterMark());
+        ring.poll(sample);
+        assertEquals(2, sample.uid);
+    }
+
+    @Test
+    public void dropNewest() {
+        SampleRing ring = new SampleRing(4, SampleRing.OVERFLOW_DROP_NEWEST);
+        for (int i = 0; i < 6; ++i) {
+            assertEquals(i < 4, ring.offer(i, i, values));
+        }
+        assertEquals(2, ring.getOverflowCount());
+        ring.poll(sample);
+        assertEquals(0, sample.uid);
+    }
+
+    @Test
+    public void clear() {
+        SampleRing ring = new SampleRing(4, SampleRing.OVERFLOW_DROP_OLDEST);
+        ring.offer(1, 0, values);
+        ring.offer(2, 0, values);
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertFalse(ring.poll(sample));
+        ring.offer(3, 0, values);
+        assertTrue(ring.poll(sample));
+        assertEquals(3, sample.uid);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityPowerOfTwo() {
+        new SampleRing(6, SampleRing.OVERFLOW_DROP_OLDEST);
+    }
+
+    // consumer on another thread sees every sample once, in order
+    @Test
+    public void producerConsumer() throws Exception {
+        final SampleRing ring = new SampleRing(64, SampleRing.OVERFLOW_DROP_NEWEST);
+        final int count = 200000;
+        final long[] received = new long[1];
+        final boolean[] ordered = {true};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SampleRing.Sample s = new SampleRing.Sample();
+                long expected = 0;
+                while (expected < count) {
+                    if (!ring.poll(s)) {
+                        Thread.yield();
+                        continue;
+                    }
+                    if (s.timestamp != expected || s.values[0] != (float) (expected & 0xFFFF)) {
+                        ordered[0] = false;
+                    }
+                    expected++;
+                }
+                received[0] = expected;
+            }
+        });
+        consumer.start();
+
+        float[] v = new float[3];
+        for (int i = 0; i < count; ) {
+            v[0] = i & 0xFFFF;
+            if (ring.offer(1, i, v)) {
+                i++;
+            } else {
+                Thread.yield();
+            }
+        }
+        consumer.join(10000);
+        assertFalse(consumer.isAlive());
+        assertEquals(count, received[0]);
+        assertTrue(ordered[0]);
+    }
+}
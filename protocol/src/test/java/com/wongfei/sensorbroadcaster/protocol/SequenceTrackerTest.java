@@ -0,0 +1,104 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SequenceTrackerTest {
+
+    private final SequenceTracker tracker = new SequenceTracker();
+
+    private final void feed(int from, int to) {
+        // long counter, to may be Integer.MAX_VALUE
+        for (long i = from; i <= to; ++i) {
+            tracker.update((int) i);
+        }
+    }
+
+    @Test
+    public void inOrder() {
+        feed(100, 199);
+        assertEquals(100, tracker.getReceived());
+        assertEquals(0, tracker.getLost());
+        assertEquals(0, tracker.getReordered());
+        assertEquals(0, tracker.getDuplicates());
+        assertEquals(199, tracker.getHighest());
+    }
+
+    @Test
+    public void gap() {
+        feed(0, 9);
+        feed(15, 19);
+        assertEquals(15, tracker.getReceived());
+        assertEquals(5, tracker.getLost());
+    }
+
+    @Test
+    public void gapBeyondWindow() {
+        tracker.update(0);
+        tracker.update(1000);
+        assertEquals(999, tracker.getLost());
+        feed(1001, 1100);
+        assertEquals(999, tracker.getLost());
+    }
+
+    @Test
+    public void lateArrivalInsideWindow() {
+        feed(0, 4);
+        feed(6, 10);
+        assertEquals(1, tracker.getLost());
+        tracker.update(5);
+        assertEquals(0, tracker.getLost());
+        assertEquals(1, tracker.getReordered());
+        assertEquals(11, tracker.getReceived());
+        assertEquals(10, tracker.getHighest());
+    }
+
+    @Test
+    public void lateArrivalOutsideWindow() {
+        feed(0, 4);
+        feed(6, 200);
+        assertEquals(1, tracker.getLost());
+        tracker.update(5);
+        assertEquals(0, tracker.getLost());
+        assertEquals(1, tracker.getReordered());
+    }
+
+    @Test
+    public void duplicates() {
+        feed(0, 9);
+        tracker.update(9);
+        tracker.update(5);
+        assertEquals(2, tracker.getDuplicates());
+        assertEquals(10, tracker.getReceived());
+        assertEquals(0, tracker.getLost());
+    }
+
+    @Test
+    public void wraparound() {
+        feed(Integer.MAX_VALUE - 4, Integer.MAX_VALUE);
+        feed(Integer.MIN_VALUE, Integer.MIN_VALUE + 4);
+        assertEquals(10, tracker.getReceived());
+        assertEquals(0, tracker.getLost());
+        assertEquals(Integer.MIN_VALUE + 4, tracker.getHighest());
+
+        // u32 sequence wrapping from 0xFFFFFFFF to 0, with a gap across it
+        tracker.reset();
+        feed(-3, -2);
+        feed(1, 3);
+        assertEquals(5, tracker.getReceived());
+        assertEquals(2, tracker.getLost());
+        assertEquals(3, tracker.getHighest());
+    }
+
+    @Test
+    public void reset() {
+        feed(0, 9);
+        tracker.update(20);
+        tracker.reset();
+        tracker.update(500);
+        assertEquals(1, tracker.getReceived());
+        assertEquals(0, tracker.getLost());
+        assertEquals(500, tracker.getHighest());
+    }
+}
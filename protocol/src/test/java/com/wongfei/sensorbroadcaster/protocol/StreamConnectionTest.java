@@ -0,0 +1,332 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// Loopback StreamServer polled by test thread, client is plain blocking socket
+public class StreamConnectionTest {
+
+    private final static int HIGH_WATER = 16 * 1024;
+    private final static long TIMEOUT_MS = 5000;
+
+    private final List<byte[]> requests = new ArrayList<>();
+    private int closed = 0;
+
+    private final StreamServer.Listener listener = new StreamServer.Listener() {
+        @Override
+        public void onRequest(StreamConnection connection, ByteBuffer packet) {
+            byte[] data = new byte[packet.remaining()];
+            packet.get(data);
+            requests.add(data);
+        }
+
+        @Override
+        public void onClose(StreamConnection connection) {
+            closed++;
+        }
+    };
+
+    private Selector selector;
+    private StreamServer server;
+    private Socket client;
+
+    @Before
+    public void open() throws Exception {
+        selector = Selector.open();
+        server = new StreamServer(selector, new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), HIGH_WATER, listener);
+        client = new Socket();
+        client.setReceiveBufferSize(4096);
+        client.setSoTimeout((int) TIMEOUT_MS);
+        client.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+    }
+
+    @After
+    public void close() throws Exception {
+        client.close();
+        server.close();
+        selector.close();
+    }
+
+    private interface Condition {
+        boolean done() throws Exception;
+    }
+
+    private final void pollUntil(Condition condition) throws Exception {
+        long end = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.done()) {
+            assertTrue("timeout", System.currentTimeMillis() < end);
+            server.poll(16);
+            Thread.sleep(1);
+        }
+    }
+
+    private final void pollRequests(final int count) throws Exception {
+        pollUntil(new Condition() {
+            @Override
+            public boolean done() {
+                return requests.size() >= count;
+            }
+        });
+    }
+
+    private final void pollClosed() throws Exception {
+        pollUntil(new Condition() {
+            @Override
+            public boolean done() {
+                return closed > 0;
+            }
+        });
+    }
+
+    // server answers from poll, data may not have arrived on first one
+    private final void pollReadable(final InputStream in) throws Exception {
+        pollUntil(new Condition() {
+            @Override
+            public boolean done() throws Exception {
+                return in.available() > 0;
+            }
+        });
+    }
+
+    private final static ByteBuffer packet(byte[] data) {
+        return ByteBuffer.wrap(data);
+    }
+
+    //==============================================================================
+    // Raw
+    //==============================================================================
+
+    private final void writeRaw(byte[] data) throws IOException {
+        OutputStream out = client.getOutputStream();
+        out.write(data.length >> 8);
+        out.write(data.length);
+        out.write(data);
+        out.flush();
+    }
+
+    @Test
+    public void rawRequests() throws Exception {
+        byte[] a = {(byte) Protocol.PK_REQ_STATS};
+        byte[] b = new byte[300];
+        Arrays.fill(b, (byte) 7);
+        writeRaw(a);
+        writeRaw(b);
+        pollRequests(2);
+        assertArrayEquals(a, requests.get(0));
+        assertArrayEquals(b, requests.get(1));
+
+        StreamConnection connection = server.getConnection(0);
+        assertEquals(StreamConnection.MODE_RAW, connection.getMode());
+        assertTrue(connection.isStreaming());
+    }
+
+    @Test
+    public void rawRequestSplitAcrossReads() throws Exception {
+        OutputStream out = client.getOutputStream();
+        out.write(new byte[]{0, 3, 1});
+        out.flush();
+        server.poll(16);
+        Thread.sleep(20);
+        server.poll(16);
+        assertEquals(0, requests.size());
+        out.write(new byte[]{2, 3});
+        out.flush();
+        pollRequests(1);
+        assertArrayEquals(new byte[]{1, 2, 3}, requests.get(0));
+    }
+
+    @Test
+    public void rawSend() throws Exception {
+        writeRaw(new byte[]{(byte) Protocol.PK_REQ_STATS});
+        pollRequests(1);
+        StreamConnection connection = server.getConnection(0);
+
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) i;
+        }
+        assertTrue(connection.send(packet(data)));
+        assertTrue(connection.send(packet(new byte[]{42})));
+
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        assertEquals(1000, in.readUnsignedShort());
+        byte[] received = new byte[1000];
+        in.readFully(received);
+        assertArrayEquals(data, received);
+        assertEquals(1, in.readUnsignedShort());
+        assertEquals(42, in.readByte());
+        assertEquals(2, connection.getSent());
+    }
+
+    @Test
+    public void sendBeforePeerSpoke() throws Exception {
+        pollUntil(new Condition() {
+            @Override
+            public boolean done() {
+                return server.getConnectionCount() > 0;
+            }
+        });
+        StreamConnection connection = server.getConnection(0);
+        assertFalse(connection.send(packet(new byte[]{1})));
+        assertEquals(1, connection.getDropped());
+    }
+
+    @Test
+    public void oversizedRawFrameCloses() throws Exception {
+        OutputStream out = client.getOutputStream();
+        int n = Protocol.MAX_PACKET_SIZE + 1;
+        out.write(new byte[]{(byte) (n >> 8), (byte) n, 0});
+        out.flush();
+        pollClosed();
+        assertEquals(0, requests.size());
+        assertEquals(0, server.getConnectionCount());
+    }
+
+    @Test
+    public void closeAtHighWater() throws Exception {
+        writeRaw(new byte[]{(byte) Protocol.PK_REQ_STATS});
+        pollRequests(1);
+        StreamConnection connection = server.getConnection(0);
+
+        // client never reads, kernel buffers fill first
+        byte[] data = new byte[1000];
+        for (int i = 0; i < 100000 && !connection.isStalled(); ++i) {
+            connection.send(packet(data));
+        }
+        assertTrue(connection.isStalled());
+        assertFalse(connection.send(packet(data)));
+
+        pollClosed();
+        assertEquals(0, server.getConnectionCount());
+        assertEquals(1, server.getStalled());
+    }
+
+    //==============================================================================
+    // WebSocket
+    //==============================================================================
+
+    private final DataInputStream handshake() throws Exception {
+        OutputStream out = client.getOutputStream();
+        out.write(("GET /sensors HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        pollReadable(in);
+
+        StringBuilder response = new StringBuilder();
+        while (!response.toString().endsWith("\r\n\r\n")) {
+            response.append((char) in.readByte());
+        }
+        assertTrue(response.toString(), response.toString().startsWith("HTTP/1.1 101"));
+        // RFC 6455 sample key
+        assertTrue(response.toString(), response.toString().contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+        return in;
+    }
+
+    private final void writeWebSocket(int opcode, byte[] data, boolean masked) throws IOException {
+        byte[] mask = {0x12, 0x34, 0x56, 0x78};
+        OutputStream out = client.getOutputStream();
+        out.write(0x80 | opcode);
+        if (data.length < 126) {
+            out.write((masked ? 0x80 : 0) | data.length);
+        } else {
+            out.write((masked ? 0x80 : 0) | 126);
+            out.write(data.length >> 8);
+            out.write(data.length);
+        }
+        if (masked) {
+            out.write(mask);
+        }
+        for (int i = 0; i < data.length; ++i) {
+            out.write(masked ? data[i] ^ mask[i & 3] : data[i]);
+        }
+        out.flush();
+    }
+
+    @Test
+    public void webSocket() throws Exception {
+        DataInputStream in = handshake();
+        byte[] a = {(byte) Protocol.PK_REQ_STATS};
+        byte[] b = new byte[500];
+        Arrays.fill(b, (byte) 0xAB);
+        writeWebSocket(0x2, a, true);
+        writeWebSocket(0x2, b, true);
+        pollRequests(2);
+        assertArrayEquals(a, requests.get(0));
+        assertArrayEquals(b, requests.get(1));
+
+        StreamConnection connection = server.getConnection(0);
+        assertEquals(StreamConnection.MODE_WEBSOCKET, connection.getMode());
+        assertTrue(connection.send(packet(new byte[]{1, 2, 3})));
+        assertTrue(connection.send(packet(b)));
+
+        // server frames are unmasked binary messages
+        assertEquals(0x82, in.readUnsignedByte());
+        assertEquals(3, in.readUnsignedByte());
+        byte[] received = new byte[3];
+        in.readFully(received);
+        assertArrayEquals(new byte[]{1, 2, 3}, received);
+        assertEquals(0x82, in.readUnsignedByte());
+        assertEquals(126, in.readUnsignedByte());
+        assertEquals(500, in.readUnsignedShort());
+        received = new byte[500];
+        in.readFully(received);
+        assertArrayEquals(b, received);
+    }
+
+    @Test
+    public void webSocketPingAndClose() throws Exception {
+        DataInputStream in = handshake();
+        writeWebSocket(0x9, new byte[]{5, 6}, true);
+        pollReadable(in);
+        assertEquals(0x8A, in.readUnsignedByte());
+        assertEquals(2, in.readUnsignedByte());
+        assertEquals(5, in.readByte());
+        assertEquals(6, in.readByte());
+
+        writeWebSocket(0x8, new byte[0], true);
+        pollClosed();
+        assertEquals(0x88, in.readUnsignedByte());
+        assertEquals(0, in.readUnsignedByte());
+        assertEquals(0, requests.size());
+    }
+
+    @Test
+    public void unmaskedClientFrameCloses() throws Exception {
+        handshake();
+        writeWebSocket(0x2, new byte[]{1}, false);
+        pollClosed();
+        assertEquals(0, requests.size());
+    }
+
+    @Test
+    public void handshakeWithoutKeyRefused() throws Exception {
+        OutputStream out = client.getOutputStream();
+        out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes("US-ASCII"));
+        out.flush();
+        pollClosed();
+        DataInputStream in = new DataInputStream(client.getInputStream());
+        byte[] status = new byte[12];
+        in.readFully(status);
+        assertEquals("HTTP/1.1 400", new String(status, "US-ASCII"));
+    }
+}
@@ -0,0 +1,112 @@
+package com.wongfei.sensorbroadcaster.protocol;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WireTest {
+
+    private final ByteBuffer buf = ByteBuffer.allocate(64);
+
+    // returns encoded size
+    private final int unsignedRoundTrip(long x) {
+        buf.clear();
+        Wire.writeVarLong(buf, x);
+        int size = buf.position();
+        buf.flip();
+        assertEquals(x, Wire.readVarLong(buf));
+        assertFalse(buf.hasRemaining());
+        return size;
+    }
+
+    private final int signedRoundTrip(long x) {
+        buf.clear();
+        Wire.writeSignedVarLong(buf, x);
+        int size = buf.position();
+        buf.flip();
+        assertEquals(x, Wire.readSignedVarLong(buf));
+        assertFalse(buf.hasRemaining());
+        return size;
+    }
+
+    @Test
+    public void unsignedVarLong() {
+        assertEquals(1, unsignedRoundTrip(0));
+        assertEquals(1, unsignedRoundTrip(1));
+        assertEquals(1, unsignedRoundTrip(127));
+        assertEquals(2, unsignedRoundTrip(128));
+        assertEquals(2, unsignedRoundTrip(16383));
+        assertEquals(3, unsignedRoundTrip(16384));
+        assertEquals(9, unsignedRoundTrip(Long.MAX_VALUE));
+        // negative values keep all 64 bits
+        assertEquals(10, unsignedRoundTrip(-1));
+        assertEquals(10, unsignedRoundTrip(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void signedVarLong() {
+        assertEquals(1, signedRoundTrip(0));
+        assertEquals(1, signedRoundTrip(1));
+        assertEquals(1, signedRoundTrip(-1));
+        assertEquals(1, signedRoundTrip(63));
+        assertEquals(1, signedRoundTrip(-64));
+        assertEquals(2, signedRoundTrip(64));
+        assertEquals(2, signedRoundTrip(-65));
+        assertEquals(10, signedRoundTrip(Long.MAX_VALUE));
+        assertEquals(10, signedRoundTrip(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void signedZigzagOrder() {
+        buf.clear();
+        Wire.writeSignedVarLong(buf, -1);
+        Wire.writeSignedVarLong(buf, 1);
+        buf.flip();
+        assertEquals(1, Wire.readVarLong(buf));
+        assertEquals(2, Wire.readVarLong(buf));
+    }
+
+    @Test
+    public void clamping() {
+        buf.clear();
+        assertEquals(0xFF, Wire.writeU8(buf, 300));
+        Wire.writeU16(buf, -5);
+        Wire.writeU16(buf, 0x12345);
+        buf.flip();
+        assertEquals(0xFF, Wire.readU8(buf));
+        assertEquals(0, Wire.readU16(buf));
+        assertEquals(0xFFFF, Wire.readU16(buf));
+    }
+
+    @Test
+    public void strings() throws Exception {
+        buf.clear();
+        Wire.writeStringU8(buf, "secret");
+        Wire.writeStringU8(buf, "");
+        Wire.writeStringU8(buf, "other");
+        buf.flip();
+        assertEquals("secret", Wire.readStringU8(buf));
+        assertEquals("", Wire.readStringU8(buf));
+        assertFalse(Wire.matchStringU8(buf, "secret".getBytes("UTF-8")));
+        // field consumed either way
+        assertFalse(buf.hasRemaining());
+
+        buf.clear();
+        Wire.writeStringU8(buf, "secret");
+        buf.flip();
+        assertTrue(Wire.matchStringU8(buf, "secret".getBytes("UTF-8")));
+    }
+
+    @Test
+    public void initPacketClears() {
+        buf.clear();
+        buf.putLong(42);
+        Wire.initPacket(buf, Protocol.PK_REQ_STATS);
+        assertEquals(1, buf.position());
+        assertEquals(Protocol.PK_REQ_STATS, Wire.castU8(buf.get(0)));
+    }
+}